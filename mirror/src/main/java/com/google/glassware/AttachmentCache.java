@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.mirror.model.Attachment;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A disk cache of attachment bytes, so that viewing an attachment again needs no Mirror API
+ * calls.
+ * <p/>
+ * Entries are keyed by user, timeline item and attachment; the user is part of the key so that
+ * one user can never be served another user's attachment from the cache. Each entry is a data
+ * file plus a small properties file with its content type and ETag, so the cache survives
+ * restarts. When the data files grow past {@code attachments.cacheMb} megabytes, the least
+ * recently used entries are deleted.
+ */
+public class AttachmentCache {
+  private static final Logger LOG = Logger.getLogger(AttachmentCache.class.getSimpleName());
+
+  private static final String DATA_SUFFIX = ".data";
+  private static final String METADATA_SUFFIX = ".properties";
+
+  private static final AttachmentCache sShared = new AttachmentCache(
+      new File(System.getProperty("attachments.cacheDir", "./attachment-cache")),
+      Long.getLong("attachments.cacheMb", 256) * 1024 * 1024);
+
+  /**
+   * A cached attachment.
+   */
+  public static class Entry {
+    private final File mFile;
+    private final String mContentType;
+    private final String mETag;
+    private final long mLength;
+    private final long mLastModified;
+
+    Entry(File file, String contentType, String eTag) {
+      mFile = file;
+      mContentType = contentType;
+      mETag = eTag;
+      mLength = file.length();
+      // HTTP dates only have whole seconds.
+      mLastModified = file.lastModified() / 1000 * 1000;
+    }
+
+    public File getFile() {
+      return mFile;
+    }
+
+    public String getContentType() {
+      return mContentType;
+    }
+
+    /**
+     * Gets the entity tag of the attachment's bytes, including the quotes.
+     */
+    public String getETag() {
+      return mETag;
+    }
+
+    public long getLength() {
+      return mLength;
+    }
+
+    /**
+     * Gets the time the attachment was first fetched, in whole seconds since the epoch.
+     */
+    public long getLastModified() {
+      return mLastModified;
+    }
+  }
+
+  private final File mDirectory;
+  private final long mMaxBytes;
+
+  /**
+   * Serializes fetches of the same attachment, so concurrent misses download it once.
+   */
+  private final Striped<Lock> mFetchLocks = Striped.lock(64);
+
+  /**
+   * The cached entries by key, least recently used first. Guarded by {@code this}.
+   */
+  private final LinkedHashMap<String, Entry> mEntries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long mTotalBytes;
+
+  /**
+   * Gets the cache used by the app.
+   */
+  public static AttachmentCache getShared() {
+    return sShared;
+  }
+
+  /**
+   * Initializes a cache in the specified directory, indexing any entries already in it.
+   *
+   * @param directory the directory to keep attachments in
+   * @param maxBytes  the most attachment bytes to keep
+   */
+  public AttachmentCache(File directory, long maxBytes) {
+    mDirectory = directory;
+    mMaxBytes = maxBytes;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      LOG.warning("Could not create attachment cache directory " + directory);
+    }
+    loadIndex();
+  }
+
+  /**
+   * Gets the specified attachment from the cache, fetching it from the Mirror API first if it
+   * isn't cached. A fetch makes one metadata call and one download.
+   *
+   * @param userId         the user whose attachment it is
+   * @param credential     the user's credential, used only on a miss
+   * @param timelineItemId the timeline item the attachment belongs to
+   * @param attachmentId   the attachment's ID
+   */
+  public Entry get(String userId, Credential credential, String timelineItemId,
+      String attachmentId) throws IOException {
+    String key = getKey(userId, timelineItemId, attachmentId);
+    Entry entry = getCached(key);
+    if (entry != null) {
+      return entry;
+    }
+
+    Lock lock = mFetchLocks.get(key);
+    lock.lock();
+    try {
+      entry = getCached(key);
+      if (entry == null) {
+        entry = fetch(key, credential, timelineItemId, attachmentId);
+      }
+      return entry;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private synchronized Entry getCached(String key) {
+    Entry entry = mEntries.get(key);
+    if (entry != null && !entry.getFile().exists()) {
+      remove(key);
+      return null;
+    }
+    return entry;
+  }
+
+  private Entry fetch(String key, Credential credential, String timelineItemId,
+      String attachmentId) throws IOException {
+    Attachment attachment = MirrorClient.getAttachment(credential, timelineItemId, attachmentId);
+    String contentType = attachment.getContentType() != null
+        ? attachment.getContentType() : "application/octet-stream";
+
+    // Download under a temporary name, hashing the bytes for the ETag on the way.
+    File temporaryFile = new File(mDirectory, key + ".tmp");
+    Hasher hasher = Hashing.sha256().newHasher();
+    InputStream in = MirrorClient.getAttachmentInputStream(credential, attachment);
+    try {
+      OutputStream out = new FileOutputStream(temporaryFile);
+      try {
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          out.write(buffer, 0, read);
+          hasher.putBytes(buffer, 0, read);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    String eTag = "\"" + hasher.hash().toString().substring(0, 32) + "\"";
+
+    Properties metadata = new Properties();
+    metadata.setProperty("contentType", contentType);
+    metadata.setProperty("eTag", eTag);
+    OutputStream metadataStream =
+        new FileOutputStream(new File(mDirectory, key + METADATA_SUFFIX));
+    try {
+      metadata.store(metadataStream, null);
+    } finally {
+      metadataStream.close();
+    }
+
+    File file = new File(mDirectory, key + DATA_SUFFIX);
+    if (!temporaryFile.renameTo(file)) {
+      throw new IOException("Could not rename " + temporaryFile + " to " + file);
+    }
+    Entry entry = new Entry(file, contentType, eTag);
+    synchronized (this) {
+      put(key, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * Adds an entry and evicts the least recently used ones past the size limit. The new entry
+   * itself stays even if it alone is over the limit, until the next fetch evicts it.
+   */
+  private void put(String key, Entry entry) {
+    remove(key);
+    mEntries.put(key, entry);
+    mTotalBytes += entry.getLength();
+    Iterator<Map.Entry<String, Entry>> eldest = mEntries.entrySet().iterator();
+    while (mTotalBytes > mMaxBytes && eldest.hasNext()) {
+      Map.Entry<String, Entry> candidate = eldest.next();
+      if (candidate.getKey().equals(key)) {
+        break;
+      }
+      eldest.remove();
+      mTotalBytes -= candidate.getValue().getLength();
+      deleteFiles(candidate.getKey());
+    }
+  }
+
+  private void remove(String key) {
+    Entry entry = mEntries.remove(key);
+    if (entry != null) {
+      mTotalBytes -= entry.getLength();
+      deleteFiles(key);
+    }
+  }
+
+  private void deleteFiles(String key) {
+    // A request still sending the file keeps reading it after it's deleted.
+    new File(mDirectory, key + DATA_SUFFIX).delete();
+    new File(mDirectory, key + METADATA_SUFFIX).delete();
+  }
+
+  /**
+   * Indexes the entries already on disk, oldest first, and removes incomplete ones.
+   */
+  private synchronized void loadIndex() {
+    File[] files = mDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+      }
+    });
+    List<String> keys = new ArrayList<String>();
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(".tmp")) {
+        file.delete();
+      } else if (name.endsWith(DATA_SUFFIX)) {
+        keys.add(name.substring(0, name.length() - DATA_SUFFIX.length()));
+      }
+    }
+    for (String key : keys) {
+      File metadataFile = new File(mDirectory, key + METADATA_SUFFIX);
+      try {
+        Properties metadata = new Properties();
+        InputStream metadataStream = new FileInputStream(metadataFile);
+        try {
+          metadata.load(metadataStream);
+        } finally {
+          metadataStream.close();
+        }
+        put(key, new Entry(new File(mDirectory, key + DATA_SUFFIX),
+            metadata.getProperty("contentType"), metadata.getProperty("eTag")));
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Dropping cached attachment " + key, e);
+        deleteFiles(key);
+      }
+    }
+    LOG.info("Indexed " + mEntries.size() + " cached attachments (" + mTotalBytes / 1024
+        + " KB)");
+  }
+
+  private static String getKey(String userId, String timelineItemId, String attachmentId) {
+    // Hashing keeps arbitrary IDs safe to use as file names.
+    return Hashing.sha256().newHasher()
+        .putString(String.valueOf(userId), Charsets.UTF_8).putByte((byte) 0)
+        .putString(timelineItemId, Charsets.UTF_8).putByte((byte) 0)
+        .putString(attachmentId, Charsets.UTF_8)
+        .hash().toString();
+  }
+}
@@ -16,10 +16,12 @@
 package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.common.io.ByteStreams;
 
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -30,12 +32,23 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Allows logged in users to view their timeline item attachments by proxying
  * their app engine session to their OAuth session.
+ * <p/>
+ * Attachments are served from the {@link AttachmentCache}, so only the first view of each
+ * attachment calls the Mirror API. Responses carry an ETag and Last-Modified date that browsers
+ * can revalidate with, and single byte ranges are supported so that large attachments can be
+ * resumed or seeked.
  *
  * @author Jenny Murphy - http://google.com/+JennyMurphy
  */
 public class AttachmentProxyServlet extends HttpServlet {
   private static final Logger LOG = Logger.getLogger(AttachmentProxyServlet.class.getSimpleName());
 
+  /**
+   * How long browsers may reuse an attachment without revalidating it. Attachments never
+   * change, but they're private to the user.
+   */
+  private static final String CACHE_CONTROL = "private, max-age=86400";
+
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException,
       IOException {
@@ -44,20 +57,114 @@ public class AttachmentProxyServlet extends HttpServlet {
     if (attachmentId == null || timelineItemId == null) {
       LOG.warning("attempted to load image attachment with missing IDs");
       resp.sendError(400);
+      return;
     }
     // identify the viewing user
+    String userId = AuthUtil.getUserId(req);
     Credential credential = AuthUtil.getCredential(req);
 
-    // Get the content type
-    String contentType =
-        MirrorClient.getAttachmentContentType(credential, timelineItemId, attachmentId);
+    AttachmentCache.Entry attachment =
+        AttachmentCache.getShared().get(userId, credential, timelineItemId, attachmentId);
 
-    // Get the attachment bytes
-    InputStream attachmentInputStream =
-        MirrorClient.getAttachmentInputStream(credential, timelineItemId, attachmentId);
+    resp.setHeader("ETag", attachment.getETag());
+    resp.setDateHeader("Last-Modified", attachment.getLastModified());
+    resp.setHeader("Cache-Control", CACHE_CONTROL);
+    resp.setHeader("Accept-Ranges", "bytes");
+    if (isNotModified(req, attachment)) {
+      resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    long length = attachment.getLength();
+    long start = 0;
+    long end = length - 1;
+    long[] range = getRange(req, attachment);
+    if (range != null) {
+      if (range[0] >= length || range[0] > range[1]) {
+        resp.setHeader("Content-Range", "bytes */" + length);
+        resp.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+      start = range[0];
+      end = Math.min(range[1], length - 1);
+      resp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      resp.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+    }
 
     // Write it out
-    resp.setContentType(contentType);
-    ByteStreams.copy(attachmentInputStream, resp.getOutputStream());
+    resp.setContentType(attachment.getContentType());
+    resp.setHeader("Content-Length", Long.toString(end - start + 1));
+    FileInputStream in = new FileInputStream(attachment.getFile());
+    try {
+      FileChannel channel = in.getChannel();
+      WritableByteChannel out = Channels.newChannel(resp.getOutputStream());
+      long position = start;
+      while (position <= end) {
+        position += channel.transferTo(position, end - position + 1, out);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns true if the browser's copy, identified by If-None-Match or If-Modified-Since, is
+   * still current.
+   */
+  private static boolean isNotModified(HttpServletRequest req, AttachmentCache.Entry attachment) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(attachment.getETag());
+    }
+    long ifModifiedSince = getDateHeader(req, "If-Modified-Since");
+    return ifModifiedSince >= 0 && attachment.getLastModified() <= ifModifiedSince;
+  }
+
+  /**
+   * Parses a single-range Range header into the first and last byte positions requested, or
+   * returns null to send the whole attachment. Multiple ranges aren't supported and are served
+   * as the whole attachment, as HTTP allows.
+   */
+  private static long[] getRange(HttpServletRequest req, AttachmentCache.Entry attachment) {
+    String range = req.getHeader("Range");
+    if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+      return null;
+    }
+    // If-Range only asks for part of the attachment if the browser's copy is still current.
+    String ifRange = req.getHeader("If-Range");
+    if (ifRange != null && !ifRange.equals(attachment.getETag())
+        && getDateHeader(req, "If-Range") != attachment.getLastModified()) {
+      return null;
+    }
+
+    String spec = range.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return null;
+    }
+    try {
+      long length = attachment.getLength();
+      if (dash == 0) {
+        // The last N bytes.
+        long suffix = Long.parseLong(spec.substring(1));
+        if (suffix == 0) {
+          return new long[] {length, length};
+        }
+        return new long[] {Math.max(0, length - suffix), length - 1};
+      }
+      long first = Long.parseLong(spec.substring(0, dash));
+      long last = dash == spec.length() - 1 ? length - 1 : Long.parseLong(spec.substring(dash + 1));
+      return new long[] {first, last};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static long getDateHeader(HttpServletRequest req, String name) {
+    try {
+      return req.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1;
+    }
   }
 }
@@ -15,6 +15,10 @@
  */
 package com.google.glassware;
 
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.glassware.metrics.Histogram;
+import com.google.glassware.metrics.MetricsRegistry;
+
 import java.io.IOException;
 import java.util.logging.Logger;
 
@@ -36,31 +40,41 @@ import javax.servlet.http.HttpServletResponse;
 public class AuthFilter implements Filter {
   private static final Logger LOG = Logger.getLogger(AuthFilter.class.getSimpleName());
 
+  private static final Histogram FILTER_TIME = MetricsRegistry.getShared().histogram(
+      "auth_filter_duration_seconds",
+      "Time spent checking a request's login, not counting the servlet that handles it", 1e-9,
+      MetricsRegistry.LATENCY_BUCKETS);
+
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain filterChain)
       throws IOException, ServletException {
+    long start = System.nanoTime();
     if (response instanceof HttpServletResponse && request instanceof HttpServletRequest) {
       HttpServletRequest httpRequest = (HttpServletRequest) request;
       HttpServletResponse httpResponse = (HttpServletResponse) response;
 
-      // skip auth for static content, middle of auth flow, notify servlet
+      // skip auth for static content, middle of auth flow, notify servlet, metrics scrapes
+      // (which MetricsServlet checks against its own token and allowed addresses)
       if (httpRequest.getRequestURI().startsWith("/static") ||
           httpRequest.getRequestURI().equals("/oauth2callback") ||
-          httpRequest.getRequestURI().equals("/notify")) {
+          httpRequest.getRequestURI().equals("/notify") ||
+          httpRequest.getRequestURI().equals("/metrics")) {
         LOG.info("Skipping auth check during auth flow");
+        FILTER_TIME.recordSince(start);
         filterChain.doFilter(request, response);
         return;
       }
 
       LOG.fine("Checking to see if anyone is logged in");
-      if (AuthUtil.getUserId(httpRequest) == null
-          || AuthUtil.getCredential(AuthUtil.getUserId(httpRequest)) == null
-          || AuthUtil.getCredential(AuthUtil.getUserId(httpRequest)).getAccessToken() == null) {
+      Credential credential = AuthUtil.getCredential(httpRequest);
+      if (credential == null || credential.getAccessToken() == null) {
         // redirect to auth flow
         httpResponse.sendRedirect(WebUtil.buildUrl(httpRequest, "/oauth2callback"));
+        FILTER_TIME.recordSince(start);
         return;
       }
 
       // Things checked out OK :)
+      FILTER_TIME.recordSince(start);
       filterChain.doFilter(request, response);
     } else {
       LOG.warning("Unexpected non HTTP servlet response. Proceeding anyway.");
@@ -49,7 +49,7 @@ public class AuthServlet extends HttpServlet {
     if (req.getParameter("code") != null) {
       LOG.info("Got a code. Attempting to exchange for access token.");
 
-      AuthorizationCodeFlow flow = AuthUtil.newAuthorizationCodeFlow();
+      AuthorizationCodeFlow flow = AuthUtil.getAuthorizationCodeFlow();
       TokenResponse tokenResponse =
           flow.newTokenRequest(req.getParameter("code"))
               .setRedirectUri(WebUtil.buildUrl(req, "/oauth2callback")).execute();
@@ -74,7 +74,7 @@ public class AuthServlet extends HttpServlet {
     // Else, we have a new flow. Initiate a new flow.
     LOG.info("No auth context found. Kicking off a new auth flow.");
 
-    AuthorizationCodeFlow flow = AuthUtil.newAuthorizationCodeFlow();
+    AuthorizationCodeFlow flow = AuthUtil.getAuthorizationCodeFlow();
     GenericUrl url =
         flow.newAuthorizationUrl().setRedirectUri(WebUtil.buildUrl(req, "/oauth2callback"));
     url.set("approval_prompt", "force");
@@ -18,9 +18,8 @@ package com.google.glassware;
 import com.google.api.client.auth.oauth2.AuthorizationCodeFlow;
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
-import com.google.api.client.http.javanet.NetHttpTransport;
-
-import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.glassware.metrics.Counter;
+import com.google.glassware.metrics.MetricsRegistry;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -30,6 +29,7 @@ import java.net.URL;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
@@ -42,35 +42,152 @@ import javax.servlet.http.HttpSession;
  * @author Jenny Murphy - http://google.com/+JennyMurphy
  */
 public class AuthUtil {
-  public static ListableMemoryCredentialStore store = new ListableMemoryCredentialStore();
+  public static ListableCredentialStore store = newCredentialStore();
   public static final String GLASS_SCOPE = "https://www.googleapis.com/auth/glass.timeline "
       + "https://www.googleapis.com/auth/glass.location "
       + "https://www.googleapis.com/auth/userinfo.profile";
   private static final Logger LOG = Logger.getLogger(AuthUtil.class.getSimpleName());
 
   /**
-   * Creates and returns a new {@link AuthorizationCodeFlow} for this app.
+   * How often {@link #getAuthorizationCodeFlow} checks whether oauth.properties has changed, in
+   * milliseconds.
    */
-  public static AuthorizationCodeFlow newAuthorizationCodeFlow() throws IOException {
-    URL resource = AuthUtil.class.getResource("/oauth.properties");
-    File propertiesFile = new File("./src/main/resources/oauth.properties");
-    try {
-      propertiesFile = new File(resource.toURI());
-      //LOG.info("Able to find oauth properties from file.");
-    } catch (URISyntaxException e) {
-      LOG.info(e.toString());
-      LOG.info("Using default source path.");
+  private static final long PROPERTIES_CHECK_INTERVAL_MS = 5000;
+
+  /**
+   * The request attribute that {@link #getCredential(HttpServletRequest)} memoizes the current
+   * user's credential in, suffixed with the user ID it was loaded for.
+   */
+  private static final String CREDENTIAL_ATTRIBUTE = AuthUtil.class.getName() + ".credential.";
+
+  /**
+   * Stands in for a missing credential in a request attribute, which can't hold null.
+   */
+  private static final Object NO_CREDENTIAL = new Object();
+
+  private static final Counter CREDENTIAL_HITS = MetricsRegistry.getShared().counter(
+      "credential_store_lookups_total", "Credentials looked up in the credential store",
+      "result", "hit");
+  private static final Counter CREDENTIAL_MISSES = MetricsRegistry.getShared().counter(
+      "credential_store_lookups_total", "Credentials looked up in the credential store",
+      "result", "miss");
+
+  private static volatile AuthorizationCodeFlow sFlow;
+  private static volatile long sNextPropertiesCheckMillis;
+  private static long sFlowPropertiesModified;
+
+  /**
+   * Gets the {@link AuthorizationCodeFlow} for this app. The flow is built once and shared; it is
+   * only rebuilt when oauth.properties changes, which is checked at most every few seconds.
+   */
+  public static AuthorizationCodeFlow getAuthorizationCodeFlow() throws IOException {
+    AuthorizationCodeFlow flow = sFlow;
+    if (flow != null && System.currentTimeMillis() < sNextPropertiesCheckMillis) {
+      return flow;
+    }
+    synchronized (AuthUtil.class) {
+      long now = System.currentTimeMillis();
+      if (sFlow == null || now >= sNextPropertiesCheckMillis) {
+        File propertiesFile = getPropertiesFile();
+        long lastModified = propertiesFile.lastModified();
+        if (sFlow == null || lastModified != sFlowPropertiesModified) {
+          if (sFlow != null) {
+            LOG.info("oauth.properties changed; rebuilding the authorization code flow");
+          }
+          sFlow = newAuthorizationCodeFlow(propertiesFile);
+          sFlowPropertiesModified = lastModified;
+        }
+        sNextPropertiesCheckMillis = now + PROPERTIES_CHECK_INTERVAL_MS;
+      }
+      return sFlow;
     }
+  }
+
+  /**
+   * Creates and returns a new {@link AuthorizationCodeFlow} for this app.
+   */
+  private static AuthorizationCodeFlow newAuthorizationCodeFlow(File propertiesFile)
+      throws IOException {
     FileInputStream authPropertiesStream = new FileInputStream(propertiesFile);
     Properties authProperties = new Properties();
-    authProperties.load(authPropertiesStream);
+    try {
+      authProperties.load(authPropertiesStream);
+    } finally {
+      authPropertiesStream.close();
+    }
 
     String clientId = authProperties.getProperty("client_id");
     String clientSecret = authProperties.getProperty("client_secret");
 
-    return new GoogleAuthorizationCodeFlow.Builder(new NetHttpTransport(), new JacksonFactory(),
-        clientId, clientSecret, Collections.singleton(GLASS_SCOPE)).setAccessType("offline")
-        .setCredentialStore(store).build();
+    return new GoogleAuthorizationCodeFlow.Builder(MirrorClient.getHttpTransport(),
+        MirrorClient.getJsonFactory(), clientId, clientSecret,
+        Collections.singleton(GLASS_SCOPE)).setAccessType("offline")
+        .setCredentialStore(TokenRefreshScheduler.getShared().wrap(store)).build();
+  }
+
+  private static File getPropertiesFile() {
+    URL resource = AuthUtil.class.getResource("/oauth.properties");
+    File propertiesFile = new File("./src/main/resources/oauth.properties");
+    if (resource != null) {
+      try {
+        propertiesFile = new File(resource.toURI());
+      } catch (URISyntaxException e) {
+        LOG.info(e.toString());
+        LOG.info("Using default source path.");
+      }
+    }
+    return propertiesFile;
+  }
+
+  /**
+   * Creates the credential store selected by the {@code auth.credentialStore} system property:
+   * {@code memory} (the default) keeps credentials only until the server stops, {@code log}
+   * saves them in the directory named by {@code auth.credentialStore.dir} so that users stay
+   * authorized across restarts (see {@link LogCredentialStore}), and {@code offheap} keeps them
+   * in compact slots outside the heap, dropping users idle for
+   * {@code auth.credentialStore.maxIdleDays} or beyond {@code auth.credentialStore.maxUsers}
+   * (see {@link OffHeapCredentialStore}).
+   *
+   * <p>If the credential log can't be opened the server fails to start, since carrying on would
+   * silently forget every user at the next restart. Set
+   * {@code auth.credentialStore.allowMemoryFallback} to {@code true} to fall back to the memory
+   * store instead.
+   */
+  private static ListableCredentialStore newCredentialStore() {
+    String type = System.getProperty("auth.credentialStore", "memory");
+    if (type.equals("log")) {
+      File directory = new File(System.getProperty("auth.credentialStore.dir", "./credentials"));
+      long compactionBytes =
+          Long.getLong("auth.credentialStore.compactionMb", 64) * 1024 * 1024;
+      try {
+        return new LogCredentialStore(directory, compactionBytes);
+      } catch (IOException e) {
+        if (!Boolean.getBoolean("auth.credentialStore.allowMemoryFallback")) {
+          throw new IllegalStateException(
+              "Could not open the credential log in " + directory, e);
+        }
+        LOG.log(Level.SEVERE, "Could not open the credential log in " + directory
+            + "; credentials will only be kept in memory", e);
+      }
+    } else if (type.equals("offheap")) {
+      return new OffHeapCredentialStore(
+          Integer.getInteger("auth.credentialStore.maxUsers", 1000000),
+          Integer.getInteger("auth.credentialStore.maxIdleDays", 30));
+    } else if (!type.equals("memory")) {
+      LOG.warning("Unknown credential store " + type + "; keeping credentials in memory");
+    }
+    return new ListableMemoryCredentialStore();
+  }
+
+  /**
+   * Saves any pending credential changes and releases the credential store's resources.
+   */
+  public static void closeStore() {
+    try {
+      store.close();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not close the credential store", e);
+    }
   }
 
   /**
@@ -92,6 +209,9 @@ public class AuthUtil {
     // Delete the credential in the credential store
     String userId = getUserId(request);
     store.delete(userId, getCredential(userId));
+    if (userId != null) {
+      request.removeAttribute(CREDENTIAL_ATTRIBUTE + userId);
+    }
 
     // Remove their ID from the local session
     request.getSession().removeAttribute("userId");
@@ -101,12 +221,33 @@ public class AuthUtil {
     if (userId == null) {
       return null;
     } else {
-      return AuthUtil.newAuthorizationCodeFlow().loadCredential(userId);
+      Credential credential = getAuthorizationCodeFlow().loadCredential(userId);
+      if (credential != null) {
+        CREDENTIAL_HITS.increment();
+      } else {
+        CREDENTIAL_MISSES.increment();
+      }
+      return credential;
     }
   }
 
+  /**
+   * Gets the credential of the user logged in to the request's session, or null if there is
+   * none. The credential is loaded once per request and remembered for later calls.
+   */
   public static Credential getCredential(HttpServletRequest req) throws IOException {
-    return AuthUtil.newAuthorizationCodeFlow().loadCredential(getUserId(req));
+    String userId = getUserId(req);
+    if (userId == null) {
+      return null;
+    }
+    String attribute = CREDENTIAL_ATTRIBUTE + userId;
+    Object memoized = req.getAttribute(attribute);
+    if (memoized == null) {
+      Credential credential = getCredential(userId);
+      req.setAttribute(attribute, credential == null ? NO_CREDENTIAL : credential);
+      return credential;
+    }
+    return memoized == NO_CREDENTIAL ? null : (Credential) memoized;
   }
 
   public static List<String> getAllUserIds() {
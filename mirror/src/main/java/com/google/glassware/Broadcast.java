@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One card sent to a list of users by the {@link BroadcastEngine}, along with the outcome for
+ * each user so far.
+ * <p/>
+ * A broadcast is saved as three files in the engine's directory: {@code <id>.properties} with
+ * the card's text, {@code <id>.users} with one user ID per line, and {@code <id>.outcomes}, which
+ * gets a line appended for every user as their card is sent or fails, and a final {@code DONE}
+ * line. After a restart, the users without an outcome line are the ones still to be sent.
+ */
+public class Broadcast {
+
+  /**
+   * How a broadcast is progressing.
+   */
+  public enum State {
+    /** Cards are still being sent. */
+    RUNNING,
+    /** Every user has an outcome. */
+    COMPLETE
+  }
+
+  private static final String SUCCEEDED_PREFIX = "S\t";
+  private static final String FAILED_PREFIX = "F\t";
+  private static final String DONE_LINE = "DONE";
+
+  private final String mId;
+  private final String mText;
+  private final long mStartTimeMillis;
+  private final List<String> mUsers;
+
+  /**
+   * The error for each user whose card failed.
+   */
+  private final ConcurrentMap<String, String> mFailures =
+      new ConcurrentHashMap<String, String>();
+  private final ConcurrentMap<String, Boolean> mSucceeded =
+      new ConcurrentHashMap<String, Boolean>();
+  private final AtomicInteger mRemainingChunks = new AtomicInteger();
+  private volatile State mState = State.RUNNING;
+  private volatile long mFinishTimeMillis;
+
+  private final File mOutcomesFile;
+  private Writer mOutcomes;
+
+  private Broadcast(String id, String text, long startTimeMillis, List<String> users,
+      File directory) {
+    mId = id;
+    mText = text;
+    mStartTimeMillis = startTimeMillis;
+    mUsers = Collections.unmodifiableList(users);
+    mOutcomesFile = new File(directory, id + ".outcomes");
+  }
+
+  /**
+   * Saves a new broadcast of the specified text to the specified users.
+   */
+  static Broadcast create(File directory, String id, String text, List<String> users)
+      throws IOException {
+    Broadcast broadcast =
+        new Broadcast(id, text, System.currentTimeMillis(), new ArrayList<String>(users),
+            directory);
+    Properties properties = new Properties();
+    properties.setProperty("text", text);
+    properties.setProperty("startTimeMillis", Long.toString(broadcast.mStartTimeMillis));
+    FileOutputStream propertiesStream =
+        new FileOutputStream(new File(directory, id + ".properties"));
+    try {
+      properties.store(propertiesStream, null);
+    } finally {
+      propertiesStream.close();
+    }
+
+    Writer usersWriter = newWriter(new File(directory, id + ".users"), false);
+    try {
+      for (String user : users) {
+        usersWriter.write(user);
+        usersWriter.write('\n');
+      }
+    } finally {
+      usersWriter.close();
+    }
+    broadcast.mOutcomes = newWriter(broadcast.mOutcomesFile, false);
+    return broadcast;
+  }
+
+  /**
+   * Reads a saved broadcast and the outcomes recorded for it so far.
+   *
+   * @param propertiesFile the broadcast's {@code <id>.properties} file
+   */
+  static Broadcast read(File propertiesFile) throws IOException {
+    File directory = propertiesFile.getParentFile();
+    String name = propertiesFile.getName();
+    String id = name.substring(0, name.length() - ".properties".length());
+
+    Properties properties = new Properties();
+    FileInputStream propertiesStream = new FileInputStream(propertiesFile);
+    try {
+      properties.load(propertiesStream);
+    } finally {
+      propertiesStream.close();
+    }
+
+    List<String> users = new ArrayList<String>();
+    for (String line : readLines(new File(directory, id + ".users"))) {
+      if (!line.isEmpty()) {
+        users.add(line);
+      }
+    }
+
+    Broadcast broadcast = new Broadcast(id, properties.getProperty("text", ""),
+        Long.parseLong(properties.getProperty("startTimeMillis", "0")), users, directory);
+    boolean done = false;
+    if (broadcast.mOutcomesFile.exists()) {
+      for (String line : readLines(broadcast.mOutcomesFile)) {
+        if (line.startsWith(SUCCEEDED_PREFIX)) {
+          broadcast.mSucceeded.put(line.substring(SUCCEEDED_PREFIX.length()), true);
+        } else if (line.startsWith(FAILED_PREFIX)) {
+          String[] fields = line.split("\t", 3);
+          broadcast.mFailures.put(fields[1], fields.length > 2 ? fields[2] : "");
+        } else if (line.equals(DONE_LINE)) {
+          done = true;
+        }
+      }
+    }
+    if (done) {
+      broadcast.mState = State.COMPLETE;
+      broadcast.mFinishTimeMillis = broadcast.mOutcomesFile.lastModified();
+    } else {
+      broadcast.mOutcomes = newWriter(broadcast.mOutcomesFile, true);
+    }
+    return broadcast;
+  }
+
+  public String getId() {
+    return mId;
+  }
+
+  public String getText() {
+    return mText;
+  }
+
+  public State getState() {
+    return mState;
+  }
+
+  public long getStartTimeMillis() {
+    return mStartTimeMillis;
+  }
+
+  /**
+   * Gets the time the last outcome was recorded, or 0 if the broadcast is still running.
+   */
+  public long getFinishTimeMillis() {
+    return mFinishTimeMillis;
+  }
+
+  public int getUserCount() {
+    return mUsers.size();
+  }
+
+  public int getSucceededCount() {
+    return mSucceeded.size();
+  }
+
+  public int getFailedCount() {
+    return mFailures.size();
+  }
+
+  /**
+   * Gets the error for each user whose card could not be sent.
+   */
+  public Map<String, String> getFailures() {
+    return Collections.unmodifiableMap(mFailures);
+  }
+
+  /**
+   * Gets the users that have no outcome yet.
+   */
+  List<String> getPendingUsers() {
+    List<String> pending = new ArrayList<String>();
+    for (String user : mUsers) {
+      if (!mSucceeded.containsKey(user) && !mFailures.containsKey(user)) {
+        pending.add(user);
+      }
+    }
+    return pending;
+  }
+
+  /**
+   * Sets the number of chunks of users that are still to be sent.
+   */
+  void setRemainingChunks(int count) {
+    mRemainingChunks.set(count);
+  }
+
+  /**
+   * Records the outcomes of one chunk of users and saves them, completing the broadcast if it
+   * was the last chunk.
+   *
+   * @param succeeded the users whose cards were inserted
+   * @param failures  the error for each user whose card was not
+   */
+  void recordChunk(List<String> succeeded, Map<String, String> failures) throws IOException {
+    recordOutcomes(succeeded, failures);
+    if (mRemainingChunks.decrementAndGet() == 0) {
+      complete();
+    }
+  }
+
+  /**
+   * Records and saves the outcomes of some users of a chunk that isn't finished yet, because the
+   * rest of it will be sent again later.
+   *
+   * @param succeeded the users whose cards were inserted
+   * @param failures  the error for each user whose card was not
+   */
+  synchronized void recordOutcomes(List<String> succeeded, Map<String, String> failures)
+      throws IOException {
+    if (succeeded.isEmpty() && failures.isEmpty()) {
+      return;
+    }
+    StringBuilder lines = new StringBuilder();
+    for (String user : succeeded) {
+      mSucceeded.put(user, true);
+      lines.append(SUCCEEDED_PREFIX).append(user).append('\n');
+    }
+    for (Map.Entry<String, String> failure : failures.entrySet()) {
+      mFailures.put(failure.getKey(), failure.getValue());
+      lines.append(FAILED_PREFIX).append(failure.getKey()).append('\t')
+          .append(failure.getValue().replace('\n', ' ').replace('\t', ' ')).append('\n');
+    }
+    mOutcomes.write(lines.toString());
+    mOutcomes.flush();
+  }
+
+  /**
+   * Marks the broadcast complete and closes its outcomes file.
+   */
+  synchronized void complete() throws IOException {
+    if (mState == State.COMPLETE) {
+      return;
+    }
+    mOutcomes.write(DONE_LINE + "\n");
+    mOutcomes.close();
+    mFinishTimeMillis = System.currentTimeMillis();
+    mState = State.COMPLETE;
+  }
+
+  private static Writer newWriter(File file, boolean append) throws IOException {
+    return new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(file, append), Charsets.UTF_8));
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(file), Charsets.UTF_8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(line);
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.mirror.model.NotificationConfig;
+import com.google.api.services.mirror.model.TimelineItem;
+
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends a timeline card to every user in the background.
+ * <p/>
+ * A broadcast's users are split into chunks of at most {@code broadcast.batchSize} users, and
+ * each chunk is sent as one Mirror API batch request. A fixed pool of
+ * {@code broadcast.threads} workers sends chunks in parallel, so a broadcast to many users never
+ * ties up a servlet thread and never has more than that many batches in flight. Cards are
+ * rate limited by their own {@link MirrorQuota.Method#BROADCAST_INSERT} bucket, taken a chunk at
+ * a time, so that broadcasts can't use up the quota for the cards users are waiting for. Each
+ * batch goes through {@link MirrorClient#executeBatch}, so it counts against the circuit breaker
+ * and concurrency limit of other Mirror API calls and is measured with them. The
+ * outcome for each user is recorded as each chunk finishes and saved to {@code broadcast.dir},
+ * and any broadcast that was still running when the server stopped is resumed by
+ * {@link #start} from the users that have no outcome yet.
+ * <p/>
+ * A batch that was turned away before it reached the API, by the quota, the circuit breaker,
+ * the concurrency limit or a failed connection, is sent again later, after an exponentially
+ * growing delay with full jitter, for as long as it takes. A batch that fails once it may have
+ * reached the API is never sent again, since its cards may have been inserted; its users without
+ * an answer are recorded as failed.
+ */
+public class BroadcastEngine {
+  private static final Logger LOG = Logger.getLogger(BroadcastEngine.class.getSimpleName());
+
+  /**
+   * The longest delay before a chunk turned away by the first attempt is sent again. The limit
+   * doubles with each attempt, up to {@link #MAX_RETRY_DELAY_MS}.
+   */
+  private static final long INITIAL_RETRY_DELAY_MS = 1000;
+  private static final long MAX_RETRY_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+
+  /**
+   * How long {@link #stop} waits for the batches in flight to finish.
+   */
+  private static final long STOP_WAIT_MS = TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * How long a chunk waits for the {@link MirrorQuota} for all of its cards before it is
+   * retried.
+   */
+  private static final long QUOTA_WAIT_MS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final BroadcastEngine sShared = new BroadcastEngine(
+      new File(System.getProperty("broadcast.dir", "./broadcasts")),
+      Integer.getInteger("broadcast.batchSize", 50),
+      Integer.getInteger("broadcast.threads", 4));
+
+  private final File mDirectory;
+  private final int mBatchSize;
+  private final int mThreads;
+  private final Random mRandom = new Random();
+  private final ConcurrentMap<String, Broadcast> mBroadcasts =
+      new ConcurrentHashMap<String, Broadcast>();
+  private final AtomicInteger mNextId = new AtomicInteger();
+  private volatile ScheduledThreadPoolExecutor mExecutor;
+
+  /**
+   * Gets the engine used by the app.
+   */
+  public static BroadcastEngine getShared() {
+    return sShared;
+  }
+
+  /**
+   * Initializes an engine.
+   *
+   * @param directory the directory to save broadcasts in
+   * @param batchSize the most users to send to in one batch request
+   * @param threads   the most batch requests to run at once
+   */
+  public BroadcastEngine(File directory, int batchSize, int threads) {
+    mDirectory = directory;
+    mBatchSize = batchSize;
+    mThreads = threads;
+  }
+
+  /**
+   * Loads the saved broadcasts and resumes the ones that did not finish, including any that
+   * were running when the engine was last stopped.
+   */
+  public synchronized void start() {
+    if (mExecutor != null) {
+      return;
+    }
+    mExecutor = new ScheduledThreadPoolExecutor(mThreads, new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "broadcast-" + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    mExecutor.setKeepAliveTime(60, TimeUnit.SECONDS);
+    mExecutor.allowCoreThreadTimeOut(true);
+
+    File[] files = mDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (!name.endsWith(".properties")
+            || mBroadcasts.containsKey(name.substring(0, name.length() - ".properties".length()))) {
+          continue;
+        }
+        try {
+          Broadcast broadcast = Broadcast.read(file);
+          mBroadcasts.putIfAbsent(broadcast.getId(), broadcast);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Could not read broadcast " + file, e);
+        }
+      }
+    }
+    for (Broadcast broadcast : mBroadcasts.values()) {
+      if (broadcast.getState() == Broadcast.State.RUNNING) {
+        LOG.info("Resuming broadcast " + broadcast.getId());
+        try {
+          send(broadcast);
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Could not resume broadcast " + broadcast.getId(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Stops sending cards, waiting a few seconds for the batches in flight. Broadcasts that are
+   * still running resume at the next {@link #start}.
+   */
+  public synchronized void stop() {
+    if (mExecutor == null) {
+      return;
+    }
+    mExecutor.shutdownNow();
+    try {
+      if (!mExecutor.awaitTermination(STOP_WAIT_MS, TimeUnit.MILLISECONDS)) {
+        LOG.warning("Broadcast batches still running after " + STOP_WAIT_MS + " ms");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    mExecutor = null;
+  }
+
+  /**
+   * Starts sending a card with the specified text to every user, and returns immediately. If the
+   * engine is stopped, the broadcast is saved and sent at the next {@link #start}.
+   *
+   * @param text the text of the card
+   * @return the new broadcast, whose progress can be followed with {@link #getBroadcast}
+   */
+  public Broadcast broadcast(String text) throws IOException {
+    if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+      throw new IOException("Could not create broadcast directory " + mDirectory);
+    }
+    String id = System.currentTimeMillis() + "-" + mNextId.incrementAndGet();
+    Broadcast broadcast = Broadcast.create(mDirectory, id, text, AuthUtil.getAllUserIds());
+    mBroadcasts.put(id, broadcast);
+    LOG.info("Starting broadcast " + id + " to " + broadcast.getUserCount() + " users");
+    send(broadcast);
+    return broadcast;
+  }
+
+  /**
+   * Gets the broadcast with the specified ID, or null if there is none.
+   */
+  public Broadcast getBroadcast(String id) {
+    return mBroadcasts.get(id);
+  }
+
+  /**
+   * Gets every known broadcast, newest first.
+   */
+  public List<Broadcast> getBroadcasts() {
+    List<Broadcast> broadcasts = new ArrayList<Broadcast>(mBroadcasts.values());
+    Collections.sort(broadcasts, new Comparator<Broadcast>() {
+      @Override
+      public int compare(Broadcast a, Broadcast b) {
+        return Long.valueOf(b.getStartTimeMillis()).compareTo(a.getStartTimeMillis());
+      }
+    });
+    return broadcasts;
+  }
+
+  /**
+   * Queues a chunk task for each group of the broadcast's pending users.
+   */
+  private void send(Broadcast broadcast) throws IOException {
+    ScheduledExecutorService executor = mExecutor;
+    if (executor == null) {
+      return;
+    }
+    List<String> pending = broadcast.getPendingUsers();
+    int chunkCount = (pending.size() + mBatchSize - 1) / mBatchSize;
+    broadcast.setRemainingChunks(chunkCount);
+    if (chunkCount == 0) {
+      broadcast.complete();
+      return;
+    }
+    for (int start = 0; start < pending.size(); start += mBatchSize) {
+      List<String> chunk = pending.subList(start, Math.min(pending.size(), start + mBatchSize));
+      scheduleChunk(executor, broadcast, chunk, 1, 0);
+    }
+  }
+
+  /**
+   * Queues an attempt at sending a chunk after the specified delay. Nothing is queued once the
+   * engine is stopping, which leaves the chunk's users pending for the next {@link #start}.
+   */
+  private void scheduleChunk(final ScheduledExecutorService executor, final Broadcast broadcast,
+      final List<String> users, final int attempt, long delayMillis) {
+    try {
+      executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          sendChunk(executor, broadcast, users, attempt);
+        }
+      }, delayMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      LOG.fine("Not sending " + users.size() + " cards of broadcast " + broadcast.getId()
+          + " until the next start");
+    }
+  }
+
+  /**
+   * Makes one attempt at sending a chunk, and records the outcome of each user that got an
+   * answer. Users left without one are sent again later if the batch never reached the API, left
+   * pending if the engine is stopping, and recorded as failed otherwise.
+   */
+  private void sendChunk(ScheduledExecutorService executor, Broadcast broadcast,
+      List<String> users, int attempt) {
+    final Set<String> succeeded = new HashSet<String>();
+    final Map<String, String> failures = new HashMap<String, String>();
+    IOException batchFailure = null;
+    boolean batchStarted = false;
+    MirrorQuota quota = MirrorQuota.getShared();
+
+    try {
+      Map<String, Credential> credentials = new LinkedHashMap<String, Credential>();
+      for (String user : users) {
+        Credential credential = AuthUtil.getCredential(user);
+        if (credential == null) {
+          failures.put(user, "No stored credential");
+        } else {
+          credentials.put(user, credential);
+        }
+      }
+
+      // Take the quota for the whole chunk before queueing anything, so that running out of
+      // it fails the attempt without spending tokens on a batch that is never sent. Broadcasts
+      // are in no hurry, so they wait longer for quota than page requests.
+      quota.acquireGlobal(MirrorQuota.Method.BROADCAST_INSERT, credentials.size(),
+          QUOTA_WAIT_MS);
+      int unsent = 0;
+      BatchRequest batch = MirrorClient.getMirror(null).batch();
+      for (Map.Entry<String, Credential> entry : credentials.entrySet()) {
+        final String user = entry.getKey();
+        Credential credential = entry.getValue();
+        if (!quota.tryAcquireUser(MirrorQuota.Method.BROADCAST_INSERT, credential)) {
+          failures.put(user, "Over the user's Mirror API rate");
+          unsent++;
+          continue;
+        }
+        TimelineItem item = new TimelineItem().setText(broadcast.getText())
+            .setNotification(new NotificationConfig().setLevel("DEFAULT"));
+        MirrorClient.getMirror(credential).timeline().insert(item).queue(batch,
+            new JsonBatchCallback<TimelineItem>() {
+              @Override
+              public void onSuccess(TimelineItem item, HttpHeaders headers) {
+                succeeded.add(user);
+              }
+
+              @Override
+              public void onFailure(GoogleJsonError error, HttpHeaders headers) {
+                failures.put(user, error.getCode() + " " + error.getMessage());
+              }
+            });
+      }
+      quota.releaseGlobal(MirrorQuota.Method.BROADCAST_INSERT, unsent);
+      if (batch.size() > 0) {
+        batchStarted = true;
+        MirrorClient.executeBatch(batch);
+      }
+    } catch (IOException e) {
+      batchFailure = e;
+    }
+
+    List<String> unanswered = new ArrayList<String>();
+    for (String user : users) {
+      if (!succeeded.contains(user) && !failures.containsKey(user)) {
+        unanswered.add(user);
+      }
+    }
+    boolean finished = true;
+    if (!unanswered.isEmpty()) {
+      if (executor.isShutdown() || Thread.currentThread().isInterrupted()) {
+        // Stopping; the next start sends to whoever is still pending.
+        finished = false;
+      } else if (batchFailure != null && (!batchStarted || isUnsent(batchFailure))) {
+        long delay = nextRetryDelay(attempt);
+        LOG.log(Level.WARNING, "Broadcast " + broadcast.getId() + " batch was not sent (attempt "
+            + attempt + "); sending " + unanswered.size() + " cards again in " + delay + " ms",
+            batchFailure);
+        scheduleChunk(executor, broadcast, unanswered, attempt + 1, delay);
+        finished = false;
+      } else {
+        // The batch may have been applied, so sending it again could give users the card twice.
+        LOG.log(Level.WARNING, "Broadcast " + broadcast.getId() + " batch failed; "
+            + unanswered.size() + " cards may or may not have been inserted", batchFailure);
+        String error = batchFailure != null
+            ? "Batch request failed after it was sent: " + batchFailure.getMessage()
+            : "No answer in the batch response";
+        for (String user : unanswered) {
+          failures.put(user, error);
+        }
+      }
+    }
+
+    try {
+      List<String> succeededList = new ArrayList<String>(succeeded);
+      if (!finished) {
+        broadcast.recordOutcomes(succeededList, failures);
+        return;
+      }
+      broadcast.recordChunk(succeededList, failures);
+      if (broadcast.getState() == Broadcast.State.COMPLETE) {
+        LOG.info("Broadcast " + broadcast.getId() + " complete: " + broadcast.getSucceededCount()
+            + " sent, " + broadcast.getFailedCount() + " failed in "
+            + (broadcast.getFinishTimeMillis() - broadcast.getStartTimeMillis()) + " ms");
+      }
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Could not save outcomes for broadcast " + broadcast.getId(), e);
+    }
+  }
+
+  /**
+   * Returns true if a batch request failed before it could reach the API, so that sending it
+   * again can't insert any card twice.
+   */
+  private static boolean isUnsent(IOException e) {
+    if (e instanceof HttpResponseException) {
+      return ((HttpResponseException) e).getStatusCode() == 429;
+    }
+    return e instanceof QuotaExceededException || e instanceof CircuitOpenException
+        || e instanceof ConcurrencyLimitException || e instanceof ConnectException
+        || e instanceof ConnectTimeoutException || e instanceof NoRouteToHostException
+        || e instanceof UnknownHostException;
+  }
+
+  private long nextRetryDelay(int attempt) {
+    long cap = Math.min(MAX_RETRY_DELAY_MS, INITIAL_RETRY_DELAY_MS << Math.min(attempt - 1, 20));
+    synchronized (mRandom) {
+      return (long) (mRandom.nextDouble() * cap);
+    }
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports the progress of broadcasts as JSON: the broadcast named by the {@code id} parameter,
+ * or every broadcast if there is none.
+ */
+public class BroadcastServlet extends HttpServlet {
+
+  /**
+   * The most per-user failures included in a broadcast's status.
+   */
+  private static final int MAX_REPORTED_FAILURES = 100;
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    BroadcastEngine engine = BroadcastEngine.getShared();
+    String id = req.getParameter("id");
+    try {
+      Object status;
+      if (id != null) {
+        Broadcast broadcast = engine.getBroadcast(id);
+        if (broadcast == null) {
+          res.sendError(HttpServletResponse.SC_NOT_FOUND, "No broadcast " + id);
+          return;
+        }
+        status = toJson(broadcast, true);
+      } else {
+        JSONArray broadcasts = new JSONArray();
+        for (Broadcast broadcast : engine.getBroadcasts()) {
+          broadcasts.put(toJson(broadcast, false));
+        }
+        status = broadcasts;
+      }
+      res.setContentType("application/json");
+      res.setCharacterEncoding("UTF-8");
+      res.getWriter().write(status.toString());
+    } catch (JSONException e) {
+      throw new IOException("Could not write broadcast status", e);
+    }
+  }
+
+  private static JSONObject toJson(Broadcast broadcast, boolean includeFailures)
+      throws JSONException {
+    int users = broadcast.getUserCount();
+    int succeeded = broadcast.getSucceededCount();
+    int failed = broadcast.getFailedCount();
+    JSONObject json = new JSONObject()
+        .put("id", broadcast.getId())
+        .put("text", broadcast.getText())
+        .put("state", broadcast.getState().name())
+        .put("startTimeMillis", broadcast.getStartTimeMillis())
+        .put("finishTimeMillis", broadcast.getFinishTimeMillis())
+        .put("users", users)
+        .put("succeeded", succeeded)
+        .put("failed", failed)
+        .put("pending", users - succeeded - failed);
+    if (includeFailures) {
+      JSONObject failures = new JSONObject();
+      for (Map.Entry<String, String> failure : broadcast.getFailures().entrySet()) {
+        if (failures.length() == MAX_REPORTED_FAILURES) {
+          break;
+        }
+        failures.put(failure.getKey(), failure.getValue());
+      }
+      json.put("failures", failures);
+    }
+    return json;
+  }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a Mirror API call is shed because the app already has as many calls in flight as
+ * the API is handling well, and no slot came free in time.
+ */
+public class ConcurrencyLimitException extends IOException {
+
+  public ConcurrencyLimitException(int limit) {
+    super("Too many Mirror API calls in flight (limit " + limit + ")");
+  }
+}
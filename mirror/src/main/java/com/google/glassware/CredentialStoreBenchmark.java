@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.ClientParametersAuthentication;
+import com.google.api.client.auth.oauth2.Credential;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A command-line microbenchmark that measures credential load throughput from
+ * {@link ListableMemoryCredentialStore} with one thread, then with twice as many, up to the
+ * number of available cores. Each thread repeatedly loads random users while one writer keeps
+ * refreshing credentials in the background. Run it with an optional user count:
+ * <pre>
+ * java -cp target/classes:... com.google.glassware.CredentialStoreBenchmark 100000
+ * </pre>
+ */
+public class CredentialStoreBenchmark {
+
+  private static final long RUN_MILLIS = 2000;
+
+  public static void main(String[] args) throws InterruptedException {
+    int users = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    final ListableMemoryCredentialStore store = new ListableMemoryCredentialStore();
+    final String[] userIds = new String[users];
+    for (int i = 0; i < users; i++) {
+      userIds[i] = "user" + i;
+      store.store(userIds[i], newCredential().setAccessToken("token" + i)
+          .setRefreshToken("refresh" + i).setExpirationTimeMilliseconds(3600000L));
+    }
+
+    int cores = Runtime.getRuntime().availableProcessors();
+    System.out.println(users + " users, " + cores + " cores");
+    // The first round warms up the store and the JIT and is not reported.
+    run(store, userIds, 1);
+    double baseline = 0;
+    for (int threads = 1; threads <= cores; threads *= 2) {
+      double loadsPerSecond = run(store, userIds, threads);
+      if (threads == 1) {
+        baseline = loadsPerSecond;
+      }
+      System.out.printf("%3d threads: %12.0f loads/s (%.2fx)%n", threads, loadsPerSecond,
+          loadsPerSecond / baseline);
+    }
+  }
+
+  private static double run(final ListableMemoryCredentialStore store, final String[] userIds,
+      int threads) throws InterruptedException {
+    final AtomicLong loads = new AtomicLong();
+    final CountDownLatch startSignal = new CountDownLatch(1);
+    final long deadline = System.currentTimeMillis() + RUN_MILLIS;
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final long seed = t;
+      workers[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          Random random = new Random(seed);
+          Credential credential = newCredential();
+          long count = 0;
+          awaitQuietly(startSignal);
+          while ((count & 1023) != 0 || System.currentTimeMillis() < deadline) {
+            store.load(userIds[random.nextInt(userIds.length)], credential);
+            count++;
+          }
+          loads.addAndGet(count);
+        }
+      });
+      workers[t].start();
+    }
+
+    Thread writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Random random = new Random(-1);
+        awaitQuietly(startSignal);
+        while (System.currentTimeMillis() < deadline) {
+          int i = random.nextInt(userIds.length);
+          store.store(userIds[i], newCredential().setAccessToken("token" + random.nextInt()));
+        }
+      }
+    });
+    writer.start();
+
+    long start = System.nanoTime();
+    startSignal.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long elapsedNanos = System.nanoTime() - start;
+    writer.join();
+    return loads.get() * 1e9 / elapsedNanos;
+  }
+
+  private static Credential newCredential() {
+    // Credentials with refresh tokens need the details of the token server.
+    return new Credential.Builder(BearerToken.authorizationHeaderAccessMethod())
+        .setTransport(MirrorClient.getHttpTransport())
+        .setJsonFactory(MirrorClient.getJsonFactory())
+        .setTokenServerEncodedUrl("https://accounts.google.com/o/oauth2/token")
+        .setClientAuthentication(new ClientParametersAuthentication("client", "secret"))
+        .build();
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
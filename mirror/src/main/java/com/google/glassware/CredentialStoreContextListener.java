@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Opens the credential store when the web app starts, so that recovering saved credentials
+ * doesn't delay the first request, and starts refreshing tokens before they expire. When the
+ * web app shuts down, stops the refreshes and flushes the store to disk.
+ */
+public class CredentialStoreContextListener implements ServletContextListener {
+  private static final Logger LOG =
+      Logger.getLogger(CredentialStoreContextListener.class.getSimpleName());
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    LOG.info("Serving " + AuthUtil.store.size() + " stored credentials");
+    TokenRefreshScheduler.getShared().start(AuthUtil.store);
+    if (AuthUtil.store instanceof OffHeapCredentialStore) {
+      LOG.info("Credentials use " + ((OffHeapCredentialStore) AuthUtil.store)
+          .getResidentBytesPerUser() + " bytes per user off the heap");
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    TokenRefreshScheduler.getShared().stop();
+    AuthUtil.closeStore();
+  }
+}
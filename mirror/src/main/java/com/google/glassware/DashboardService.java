@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.mirror.model.Attachment;
+import com.google.api.services.mirror.model.Contact;
+import com.google.api.services.mirror.model.Subscription;
+import com.google.api.services.mirror.model.TimelineItem;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads everything index.jsp shows about a user: their contact, recent timeline items and
+ * subscriptions.
+ * <p/>
+ * The Mirror API calls for a dashboard are made at the same time on a shared pool of
+ * {@code dashboard.threads} threads, so loading a dashboard takes about as long as its slowest
+ * call rather than the sum of them. Attachments whose content type didn't come back with their
+ * timeline item are looked up together once the items arrive. Loaded dashboards are kept for
+ * {@code dashboard.ttlSeconds} (10 by default) so that reloading the page doesn't repeat the
+ * calls; {@link MainServlet} invalidates a user's dashboard whenever it changes something on it.
+ */
+public class DashboardService {
+
+  /**
+   * How many timeline items the dashboard shows.
+   */
+  private static final long TIMELINE_ITEM_COUNT = 3;
+
+  private static final DashboardService sShared = new DashboardService(
+      Long.getLong("dashboard.ttlSeconds", 10), TimeUnit.SECONDS,
+      Long.getLong("dashboard.maxEntries", 10000),
+      Integer.getInteger("dashboard.threads", 8));
+
+  /**
+   * The data for one user's dashboard.
+   */
+  public static class Dashboard {
+    private final Contact mContact;
+    private final List<TimelineItem> mTimelineItems;
+    private final List<Subscription> mSubscriptions;
+
+    Dashboard(Contact contact, List<TimelineItem> timelineItems,
+        List<Subscription> subscriptions) {
+      mContact = contact;
+      mTimelineItems = Collections.unmodifiableList(timelineItems);
+      mSubscriptions = Collections.unmodifiableList(subscriptions);
+    }
+
+    /**
+     * Gets the app's contact, or null if the user has deleted it.
+     */
+    public Contact getContact() {
+      return mContact;
+    }
+
+    /**
+     * Gets the user's most recent timeline items. Every attachment has its content type set.
+     */
+    public List<TimelineItem> getTimelineItems() {
+      return mTimelineItems;
+    }
+
+    public List<Subscription> getSubscriptions() {
+      return mSubscriptions;
+    }
+
+    /**
+     * Returns true if the app is subscribed to the specified collection.
+     */
+    public boolean isSubscribed(String collection) {
+      for (Subscription subscription : mSubscriptions) {
+        if (collection.equals(subscription.getId())) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private final Cache<String, Dashboard> mDashboards;
+  private final ThreadPoolExecutor mExecutor;
+
+  /**
+   * Gets the service used by the app.
+   */
+  public static DashboardService getShared() {
+    return sShared;
+  }
+
+  /**
+   * Initializes a service.
+   *
+   * @param ttl        how long to keep a loaded dashboard
+   * @param unit       the unit of {@code ttl}
+   * @param maxEntries the most dashboards to keep
+   * @param threads    the most Mirror API calls to make at once, across all users
+   */
+  public DashboardService(long ttl, TimeUnit unit, long maxEntries, int threads) {
+    mDashboards = CacheBuilder.newBuilder()
+        .expireAfterWrite(ttl, unit)
+        .maximumSize(maxEntries)
+        .build();
+    mExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger mCount = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "dashboard-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    mExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Gets the user's dashboard, loading it if there is no recent copy. Concurrent requests for
+   * the same user share one load.
+   */
+  public Dashboard get(String userId, final Credential credential) throws IOException {
+    try {
+      return mDashboards.get(userId, new Callable<Dashboard>() {
+        @Override
+        public Dashboard call() throws IOException {
+          return load(credential);
+        }
+      });
+    } catch (ExecutionException e) {
+      throw asIOException(e);
+    }
+  }
+
+  /**
+   * Forgets the user's dashboard, so the next {@link #get} loads it again.
+   */
+  public void invalidate(String userId) {
+    mDashboards.invalidate(userId);
+  }
+
+  private Dashboard load(final Credential credential) throws IOException {
+    Future<Contact> contact = mExecutor.submit(new Callable<Contact>() {
+      @Override
+      public Contact call() throws IOException {
+        return MirrorClient.getContact(credential, MainServlet.CONTACT_ID);
+      }
+    });
+    Future<List<TimelineItem>> timelineItems = mExecutor.submit(
+        new Callable<List<TimelineItem>>() {
+          @Override
+          public List<TimelineItem> call() throws IOException {
+            return MirrorClient.listItems(credential, TIMELINE_ITEM_COUNT).getItems();
+          }
+        });
+    Future<List<Subscription>> subscriptions = mExecutor.submit(
+        new Callable<List<Subscription>>() {
+          @Override
+          public List<Subscription> call() throws IOException {
+            return MirrorClient.listSubscriptions(credential).getItems();
+          }
+        });
+
+    List<TimelineItem> items = nonNull(await(timelineItems));
+    fillInContentTypes(credential, items);
+    return new Dashboard(await(contact), items, nonNull(await(subscriptions)));
+  }
+
+  /**
+   * Looks up the content types that are missing from the items' attachments, all at once.
+   */
+  private void fillInContentTypes(final Credential credential, List<TimelineItem> items)
+      throws IOException {
+    List<Attachment> attachments = new ArrayList<Attachment>();
+    List<Future<Attachment>> lookups = new ArrayList<Future<Attachment>>();
+    for (final TimelineItem item : items) {
+      if (item.getAttachments() == null) {
+        continue;
+      }
+      for (final Attachment attachment : item.getAttachments()) {
+        if (attachment.getContentType() != null) {
+          continue;
+        }
+        attachments.add(attachment);
+        lookups.add(mExecutor.submit(new Callable<Attachment>() {
+          @Override
+          public Attachment call() throws IOException {
+            return MirrorClient.getAttachment(credential, item.getId(), attachment.getId());
+          }
+        }));
+      }
+    }
+    for (int i = 0; i < attachments.size(); i++) {
+      String contentType = await(lookups.get(i)).getContentType();
+      attachments.get(i).setContentType(
+          contentType != null ? contentType : "application/octet-stream");
+    }
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading the dashboard", e);
+    } catch (ExecutionException e) {
+      throw asIOException(e);
+    }
+  }
+
+  private static IOException asIOException(ExecutionException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof IOException) {
+      return (IOException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    return new IOException(cause);
+  }
+
+  private static <T> List<T> nonNull(List<T> list) {
+    return list != null ? list : Collections.<T>emptyList();
+  }
+}
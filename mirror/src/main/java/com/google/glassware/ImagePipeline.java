@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Prepares images for timeline cards by shrinking them to the Glass display size.
+ * <p/>
+ * An image is downloaded once, hashed, decoded and scaled down to fit in 640x360, then
+ * re-encoded as a JPEG (or a PNG if it has transparency). Resized images are cached by the hash
+ * of their source bytes, up to {@code images.cacheMb} megabytes, and each URL remembers the hash
+ * of what it served for {@code images.urlTtlMinutes} minutes, so inserting the same picture again
+ * neither downloads nor resizes it. URLs that serve something too big or that can't be decoded
+ * are remembered for as long, so they aren't downloaded again just to be turned down. Decoding
+ * and scaling run on a pool of {@code images.threads} threads (one per processor by default),
+ * which bounds the CPU that image cards can take from the rest of the server.
+ */
+public class ImagePipeline {
+  private static final Logger LOG = Logger.getLogger(ImagePipeline.class.getSimpleName());
+
+  /**
+   * The size of the Glass display.
+   */
+  private static final int MAX_WIDTH = 640;
+  private static final int MAX_HEIGHT = 360;
+
+  private static final float JPEG_QUALITY = 0.85f;
+
+  /**
+   * The most pixels a source image may have, from the {@code images.maxSourceMegapixels} system
+   * property. A small file can hold a huge image, so this is checked before decoding.
+   */
+  private static final long MAX_SOURCE_PIXELS =
+      Long.getLong("images.maxSourceMegapixels", 50) * 1000 * 1000;
+
+  private static final ImagePipeline sShared = new ImagePipeline(
+      Long.getLong("images.cacheMb", 32) * 1024 * 1024,
+      Long.getLong("images.urlTtlMinutes", 10), TimeUnit.MINUTES,
+      Long.getLong("images.maxSourceMb", 16) * 1024 * 1024,
+      Integer.getInteger("images.threads", Runtime.getRuntime().availableProcessors()));
+
+  /**
+   * An image ready to attach to a timeline item.
+   */
+  public static class Image {
+    private final String mContentType;
+    private final byte[] mBytes;
+
+    Image(String contentType, byte[] bytes) {
+      mContentType = contentType;
+      mBytes = bytes;
+    }
+
+    /**
+     * Gets the type of the encoded image, or null if the source couldn't be decoded and is
+     * returned as it was downloaded.
+     */
+    public String getContentType() {
+      return mContentType;
+    }
+
+    /**
+     * Gets the encoded image. The array is shared with the cache and must not be modified.
+     */
+    public byte[] getBytes() {
+      return mBytes;
+    }
+  }
+
+  /**
+   * Stands in for source images that can't be decoded, so they aren't downloaded again.
+   */
+  private static final Image NOT_AN_IMAGE = new Image(null, new byte[0]);
+
+  private final Cache<HashCode, Image> mImages;
+  private final Cache<String, HashCode> mSourceHashes;
+  private final Cache<String, Boolean> mNotImageUrls;
+  private final Striped<Lock> mFetchLocks = Striped.lock(64);
+  private final long mMaxSourceBytes;
+  private final ThreadPoolExecutor mExecutor;
+
+  /**
+   * Gets the pipeline used by the app.
+   */
+  public static ImagePipeline getShared() {
+    return sShared;
+  }
+
+  /**
+   * Initializes a pipeline.
+   *
+   * @param cacheBytes     the most bytes of resized images to keep
+   * @param urlTtl         how long to trust that a URL still serves the same image
+   * @param unit           the unit of {@code urlTtl}
+   * @param maxSourceBytes the largest source image to download
+   * @param threads        the most images to decode and resize at once
+   */
+  public ImagePipeline(long cacheBytes, long urlTtl, TimeUnit unit, long maxSourceBytes,
+      int threads) {
+    mImages = CacheBuilder.newBuilder()
+        .maximumWeight(cacheBytes)
+        .weigher(new Weigher<HashCode, Image>() {
+          @Override
+          public int weigh(HashCode hash, Image image) {
+            return image.getBytes().length + 64;
+          }
+        })
+        .build();
+    mSourceHashes = CacheBuilder.newBuilder()
+        .expireAfterWrite(urlTtl, unit)
+        .maximumSize(10000)
+        .build();
+    mNotImageUrls = CacheBuilder.newBuilder()
+        .expireAfterWrite(urlTtl, unit)
+        .maximumSize(10000)
+        .build();
+    mMaxSourceBytes = maxSourceBytes;
+    mExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger mCount = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "image-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            // Keep resizing from crowding out request threads.
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+          }
+        });
+    mExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Gets the image at the specified URL, shrunk to fit the Glass display.
+   *
+   * @return the image; or, the first time a URL is found to serve something this pipeline can't
+   *     decode, the source as it was downloaded, with a null content type; or null if the source
+   *     is bigger than {@code images.maxSourceMb} or was recently found not to be an image, in
+   *     which case it should be sent from the URL as it is
+   */
+  public Image process(String url) throws IOException {
+    Image image = getCached(url);
+    if (image == null) {
+      Lock lock = mFetchLocks.get(url);
+      lock.lock();
+      try {
+        image = getCached(url);
+        if (image == null) {
+          image = fetch(url);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return image != NOT_AN_IMAGE ? image : null;
+  }
+
+  private Image getCached(String url) {
+    if (mNotImageUrls.getIfPresent(url) != null) {
+      return NOT_AN_IMAGE;
+    }
+    HashCode hash = mSourceHashes.getIfPresent(url);
+    return hash != null ? mImages.getIfPresent(hash) : null;
+  }
+
+  private Image fetch(String url) throws IOException {
+    final byte[] source;
+    InputStream in = new URL(url).openStream();
+    try {
+      // Read one byte past the limit to tell whether the image is over it.
+      source = ByteStreams.toByteArray(ByteStreams.limit(in, mMaxSourceBytes + 1));
+    } finally {
+      in.close();
+    }
+    if (source.length > mMaxSourceBytes) {
+      LOG.info("Not resizing " + url + "; it is bigger than " + mMaxSourceBytes + " bytes");
+      mNotImageUrls.put(url, Boolean.TRUE);
+      return NOT_AN_IMAGE;
+    }
+
+    HashCode hash = Hashing.sha256().hashBytes(source);
+    try {
+      Image image = mImages.get(hash, new Callable<Image>() {
+        @Override
+        public Image call() throws IOException {
+          return resizeOnPool(source);
+        }
+      });
+      if (image == NOT_AN_IMAGE) {
+        mNotImageUrls.put(url, Boolean.TRUE);
+        // Spare the caller downloading it again to send it as it is.
+        return new Image(null, source);
+      }
+      mSourceHashes.put(url, hash);
+      return image;
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private Image resizeOnPool(final byte[] source) throws IOException {
+    Future<Image> resized = mExecutor.submit(new Callable<Image>() {
+      @Override
+      public Image call() throws IOException {
+        return resize(source);
+      }
+    });
+    try {
+      return resized.get();
+    } catch (InterruptedException e) {
+      resized.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while resizing an image", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Decodes, scales and re-encodes an image.
+   */
+  static Image resize(byte[] source) throws IOException {
+    ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(source));
+    BufferedImage image;
+    String format;
+    try {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        return NOT_AN_IMAGE;
+      }
+      ImageReader reader = readers.next();
+      format = reader.getFormatName().toLowerCase();
+      try {
+        reader.setInput(input, true, true);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        if ((long) width * height > MAX_SOURCE_PIXELS) {
+          LOG.info("Not resizing a " + width + "x" + height + " image; it has more than "
+              + MAX_SOURCE_PIXELS + " pixels");
+          return NOT_AN_IMAGE;
+        }
+        // Skip pixels while decoding huge images, which saves most of the decoding time and
+        // memory, but keep at least twice the final size so that scaling can smooth it. The
+        // side that is furthest over the display decides the scale, and so the subsampling.
+        int subsampling = (int) Math.max(1,
+            Math.max(width / (2.0 * MAX_WIDTH), height / (2.0 * MAX_HEIGHT)));
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        image = reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    } catch (IOException e) {
+      LOG.log(Level.INFO, "Could not decode an image", e);
+      return NOT_AN_IMAGE;
+    } finally {
+      input.close();
+    }
+
+    boolean transparent = image.getColorModel().hasAlpha();
+    BufferedImage scaled = scale(image, transparent);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    String contentType;
+    if (transparent) {
+      ImageIO.write(scaled, "png", out);
+      contentType = "image/png";
+    } else {
+      writeJpeg(scaled, out);
+      contentType = "image/jpeg";
+    }
+    // A JPEG or PNG that already fits can come out bigger for being re-encoded.
+    if (scaled == image && out.size() >= source.length
+        && (format.equals("jpeg") || format.equals("png"))) {
+      return new Image("image/" + format, source);
+    }
+    return new Image(contentType, out.toByteArray());
+  }
+
+  /**
+   * Scales an image down to fit the display, halving it in steps first so that large
+   * reductions stay smooth. Images that already fit are returned as they are.
+   */
+  private static BufferedImage scale(BufferedImage image, boolean transparent) {
+    double ratio = Math.min(1.0, Math.min((double) MAX_WIDTH / image.getWidth(),
+        (double) MAX_HEIGHT / image.getHeight()));
+    int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * ratio));
+    int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * ratio));
+    if (targetWidth == image.getWidth() && targetHeight == image.getHeight()) {
+      return image;
+    }
+    int type = transparent ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+    BufferedImage current = image;
+    int width = image.getWidth();
+    int height = image.getHeight();
+    do {
+      width = Math.max(targetWidth, width / 2);
+      height = Math.max(targetHeight, height / 2);
+      BufferedImage next = new BufferedImage(width, height, type);
+      Graphics2D graphics = next.createGraphics();
+      try {
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+            RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(current, 0, 0, width, height, null);
+      } finally {
+        graphics.dispose();
+      }
+      current = next;
+    } while (width != targetWidth || height != targetHeight);
+    return current;
+  }
+
+  private static void writeJpeg(BufferedImage image, ByteArrayOutputStream out)
+      throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    ImageOutputStream output = ImageIO.createImageOutputStream(out);
+    try {
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(JPEG_QUALITY);
+      writer.setOutput(output);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+      output.close();
+    }
+  }
+}
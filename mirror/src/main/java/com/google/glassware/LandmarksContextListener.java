@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.glassware.model.Landmarks;
+import com.google.glassware.model.LandmarksLoader;
+
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Loads the shared landmarks snapshot when the web app starts, and stops watching the
+ * landmarks file for changes when it shuts down.
+ */
+public class LandmarksContextListener implements ServletContextListener {
+  private static final Logger LOG =
+      Logger.getLogger(LandmarksContextListener.class.getSimpleName());
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    LandmarksLoader.getShared().start();
+    Landmarks landmarks = LandmarksLoader.getShared().getLandmarks();
+    LOG.info("Serving landmarks version " + landmarks.getVersion() + " loaded at "
+        + landmarks.getLoadTimeMillis());
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    LandmarksLoader.getShared().stop();
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.CredentialStore;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A {@link CredentialStore} that can also list the users it holds credentials for, which the
+ * app needs to broadcast to every user.
+ */
+public interface ListableCredentialStore extends CredentialStore, Closeable {
+
+  /**
+   * Gets a copy of the IDs of all stored users.
+   */
+  List<String> listAllUsers();
+
+  /**
+   * Iterates over the IDs of all stored users without copying them.
+   */
+  Iterator<String> iterateUsers();
+
+  /**
+   * Gets the number of stored users.
+   */
+  int size();
+}
@@ -16,96 +16,112 @@
 package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.auth.oauth2.CredentialStore;
 
-
-import java.util.*;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A new credential store. It's exactly the same as
  * com.google.api.client.auth.oauth2.MemoryCredentialStore except it
  * has the added ability to list all of the users.
+ * <p/>
+ * Credentials are kept in a concurrent map as immutable values, so loads never take a lock
+ * and each store or delete replaces a user's entry in one atomic step. A load sees either the
+ * old credential or the new one, never a mix of the two.
  *
  * @author Jenny Murphy - http://google.com/+JennyMurphy
  */
-public class ListableMemoryCredentialStore implements CredentialStore {
-
-  /**
-   * Lock on access to the store.
-   */
-  private final Lock lock = new ReentrantLock();
+public class ListableMemoryCredentialStore implements ListableCredentialStore {
 
   /**
    * Store of memory persisted credentials, indexed by userId.
    */
-  private final Map<String, MemoryPersistedCredential> store =
-      new HashMap<String, MemoryPersistedCredential>();
+  private final ConcurrentMap<String, MemoryPersistedCredential> store =
+      new ConcurrentHashMap<String, MemoryPersistedCredential>();
 
   public void store(String userId, Credential credential) {
-    lock.lock();
-    try {
-      MemoryPersistedCredential item = store.get(userId);
-      if (item == null) {
-        item = new MemoryPersistedCredential();
-        store.put(userId, item);
-      }
-      item.store(credential);
-    } finally {
-      lock.unlock();
-    }
+    store.put(userId, new MemoryPersistedCredential(credential));
   }
 
   public void delete(String userId, Credential credential) {
-    lock.lock();
-    try {
-      store.remove(userId);
-    } finally {
-      lock.unlock();
-    }
+    store.remove(userId);
   }
 
   public boolean load(String userId, Credential credential) {
-    lock.lock();
-    try {
-      MemoryPersistedCredential item = store.get(userId);
-      if (item != null) {
-        item.load(credential);
-      }
-      return item != null;
-    } finally {
-      lock.unlock();
+    MemoryPersistedCredential item = store.get(userId);
+    if (item != null) {
+      item.load(credential);
     }
+    return item != null;
+  }
+
+  /**
+   * Stores a credential from its saved fields, such as when reading it back from disk.
+   */
+  void restore(String userId, String accessToken, String refreshToken,
+      Long expirationTimeMillis) {
+    store.put(userId,
+        new MemoryPersistedCredential(accessToken, refreshToken, expirationTimeMillis));
   }
 
+  /**
+   * Gets the saved fields of the specified user's credential, or null if there are none.
+   */
+  MemoryPersistedCredential get(String userId) {
+    return store.get(userId);
+  }
+
+  /**
+   * Gets a copy of the IDs of all stored users. Users stored or deleted while the copy is being
+   * made may or may not be included, but every user present for the whole call is.
+   */
   public List<String> listAllUsers() {
-    List<String> allUsers = new ArrayList<String>();
-    // Is that a 47 character long generic for one line of behavior? Yes, yes it is.
-    for (Iterator<Map.Entry<String, MemoryPersistedCredential>> iterator = store.entrySet()
-        .iterator();
-         iterator.hasNext(); ) {
-      allUsers.add(iterator.next().getKey());
-    }
-    return allUsers;
+    return new ArrayList<String>(store.keySet());
   }
 
-  class MemoryPersistedCredential {
+  /**
+   * Iterates over the IDs of all stored users without copying them, for callers that walk a
+   * large number of users. The iterator never throws
+   * {@link java.util.ConcurrentModificationException}; it reflects the store as of some point
+   * during the iteration, like {@link #listAllUsers}.
+   */
+  public Iterator<String> iterateUsers() {
+    return Collections.unmodifiableSet(store.keySet()).iterator();
+  }
+
+  /**
+   * Gets the number of stored users.
+   */
+  public int size() {
+    return store.size();
+  }
+
+  /**
+   * Does nothing; credentials in memory need no cleanup.
+   */
+  public void close() {
+  }
+
+  static class MemoryPersistedCredential {
 
     /**
      * Access token or {@code null} for none.
      */
-    private String accessToken;
+    private final String accessToken;
 
     /**
      * Refresh token {@code null} for none.
      */
-    private String refreshToken;
+    private final String refreshToken;
 
     /**
      * Expiration time in milliseconds {@code null} for none.
      */
-    private Long expirationTimeMillis;
+    private final Long expirationTimeMillis;
 
     /**
      * Store information from the credential.
@@ -114,12 +130,31 @@ public class ListableMemoryCredentialStore implements CredentialStore {
      *                   {@link Credential#getRefreshToken refresh token}, and
      *                   {@link Credential#getExpirationTimeMilliseconds expiration time} need to be stored
      */
-    void store(Credential credential) {
+    MemoryPersistedCredential(Credential credential) {
       accessToken = credential.getAccessToken();
       refreshToken = credential.getRefreshToken();
       expirationTimeMillis = credential.getExpirationTimeMilliseconds();
     }
 
+    MemoryPersistedCredential(String accessToken, String refreshToken,
+        Long expirationTimeMillis) {
+      this.accessToken = accessToken;
+      this.refreshToken = refreshToken;
+      this.expirationTimeMillis = expirationTimeMillis;
+    }
+
+    String getAccessToken() {
+      return accessToken;
+    }
+
+    String getRefreshToken() {
+      return refreshToken;
+    }
+
+    Long getExpirationTimeMillis() {
+      return expirationTimeMillis;
+    }
+
     /**
      * Load information into the credential.
      *
@@ -0,0 +1,612 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.Striped;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A credential store that survives restarts. Credentials are served from memory, and every
+ * store and delete is also appended to a log file in a directory of its own.
+ * <p/>
+ * Request threads only encode the record and queue it. A single writer thread appends queued
+ * records in batches and syncs the log to disk once per batch, so many concurrent stores share
+ * one fsync. A store that returns has not necessarily reached the disk yet; a crash can lose
+ * the last batch, and those users authorize again.
+ * <p/>
+ * When the log grows past a size limit, the writer starts a new log generation and a background
+ * thread writes every current credential to a snapshot file for that generation. Once the
+ * snapshot is safely on disk, older logs and snapshots are deleted. At startup the newest
+ * snapshot and the logs from its generation onwards are memory-mapped and replayed in order.
+ * Replaying a log over a snapshot is safe even though the snapshot is taken while writes
+ * continue, because records hold whole credentials and later records win.
+ * <p/>
+ * Each record is framed with its length and a CRC-32 of its contents. Replay stops at the first
+ * damaged record in a file, which after a crash is the torn end of the last log.
+ */
+public class LogCredentialStore implements ListableCredentialStore {
+  private static final Logger LOG = Logger.getLogger(LogCredentialStore.class.getSimpleName());
+
+  /**
+   * The magic number at the start of every log file ("KCLG").
+   */
+  private static final int LOG_MAGIC = 0x4B434C47;
+
+  /**
+   * The magic number at the start of every snapshot file ("KCSN").
+   */
+  private static final int SNAPSHOT_MAGIC = 0x4B43534E;
+
+  private static final int FORMAT_VERSION = 1;
+  private static final int FILE_HEADER_BYTES = 8;
+  private static final int RECORD_HEADER_BYTES = 8;
+  private static final int MAX_RECORD_BYTES = 64 * 1024;
+
+  private static final byte STORE_RECORD = 1;
+  private static final byte DELETE_RECORD = 2;
+
+  private static final String LOG_PREFIX = "log-";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SUFFIX = ".dat";
+
+  /**
+   * The most records appended between two syncs.
+   */
+  private static final int MAX_BATCH_RECORDS = 4096;
+
+  /**
+   * The number of queued records at which stores start to wait for the writer.
+   */
+  private static final int MAX_PENDING_RECORDS = 100000;
+
+  /**
+   * Queued by {@link #close} to tell the writer to sync and exit.
+   */
+  private static final byte[] CLOSE = new byte[0];
+
+  private final File mDirectory;
+  private final long mCompactionBytes;
+  private final ListableMemoryCredentialStore mCredentials = new ListableMemoryCredentialStore();
+
+  /**
+   * Held while a user's credential is updated in memory and its record is queued, so that the
+   * log records each user's changes in the same order as memory applies them.
+   */
+  private final Striped<Lock> mUserLocks = Striped.lock(64);
+
+  private final BlockingQueue<byte[]> mPending =
+      new LinkedBlockingQueue<byte[]>(MAX_PENDING_RECORDS);
+  private final AtomicBoolean mCompacting = new AtomicBoolean();
+  private final ExecutorService mCompactor;
+  private final Thread mWriter;
+  private volatile boolean mClosed;
+  private volatile IOException mWriteFailure;
+
+  // Only used by the writer thread once the store is open.
+  private long mGeneration;
+  private FileOutputStream mLogFile;
+  private DataOutputStream mLogStream;
+  private long mLogBytes;
+
+  /**
+   * Opens the store in the specified directory, recovering any credentials stored there before.
+   *
+   * @param directory       the directory to keep logs and snapshots in; created if needed
+   * @param compactionBytes the log size, in bytes, at which the log is compacted into a snapshot
+   * @throws IOException if the directory can't be used or a file can't be read
+   */
+  public LogCredentialStore(File directory, long compactionBytes) throws IOException {
+    mDirectory = directory;
+    mCompactionBytes = compactionBytes;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create credential directory " + directory);
+    }
+
+    deleteTemporaryFiles();
+
+    long startNanos = System.nanoTime();
+    long snapshotGeneration = newestGeneration(SNAPSHOT_PREFIX);
+    long records = 0;
+    if (snapshotGeneration >= 0) {
+      records += replay(getFile(SNAPSHOT_PREFIX, snapshotGeneration), SNAPSHOT_MAGIC);
+    }
+    long lastGeneration = snapshotGeneration;
+    for (long generation : listGenerations(LOG_PREFIX)) {
+      if (generation >= snapshotGeneration) {
+        records += replay(getFile(LOG_PREFIX, generation), LOG_MAGIC);
+        lastGeneration = Math.max(lastGeneration, generation);
+      }
+    }
+    LOG.info("Recovered " + mCredentials.size() + " credentials from " + records + " records in "
+        + directory + " in " + (System.nanoTime() - startNanos) / 1000000 + " ms");
+
+    // Start a fresh generation rather than appending after a possibly torn record, and fold
+    // everything recovered so far into a snapshot for it.
+    mGeneration = lastGeneration + 1;
+    openLog(mGeneration);
+
+    mCompactor = Executors.newSingleThreadExecutor(newThreadFactory("credential-compactor"));
+    mCompacting.set(true);
+    scheduleSnapshot(mGeneration);
+
+    mWriter = newThreadFactory("credential-writer").newThread(new Runnable() {
+      @Override
+      public void run() {
+        writeLoop();
+      }
+    });
+    mWriter.start();
+  }
+
+  @Override
+  public void store(String userId, Credential credential) throws IOException {
+    byte[] record = encodeStore(userId, credential.getAccessToken(),
+        credential.getRefreshToken(), credential.getExpirationTimeMilliseconds());
+    Lock lock = mUserLocks.get(userId);
+    lock.lock();
+    try {
+      checkOpen();
+      mCredentials.store(userId, credential);
+      enqueue(record);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void delete(String userId, Credential credential) throws IOException {
+    byte[] record = encodeDelete(userId);
+    Lock lock = mUserLocks.get(userId);
+    lock.lock();
+    try {
+      checkOpen();
+      mCredentials.delete(userId, credential);
+      enqueue(record);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean load(String userId, Credential credential) {
+    return mCredentials.load(userId, credential);
+  }
+
+  @Override
+  public List<String> listAllUsers() {
+    return mCredentials.listAllUsers();
+  }
+
+  @Override
+  public Iterator<String> iterateUsers() {
+    return mCredentials.iterateUsers();
+  }
+
+  @Override
+  public int size() {
+    return mCredentials.size();
+  }
+
+  /**
+   * Syncs every queued record to disk and stops the writer. Later stores and deletes fail.
+   */
+  @Override
+  public void close() throws IOException {
+    if (mClosed) {
+      return;
+    }
+    mClosed = true;
+    try {
+      mPending.put(CLOSE);
+      mWriter.join();
+      mCompactor.shutdown();
+      mCompactor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while closing the credential log");
+    }
+    if (mWriteFailure != null) {
+      throw mWriteFailure;
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (mWriteFailure != null) {
+      throw new IOException("The credential log can no longer be written", mWriteFailure);
+    }
+    if (mClosed) {
+      throw new IOException("The credential store is closed");
+    }
+  }
+
+  private void enqueue(byte[] record) throws IOException {
+    try {
+      mPending.put(record);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while queueing a credential record");
+    }
+  }
+
+  /**
+   * Appends queued records until {@link #close} is called, syncing once per batch.
+   */
+  private void writeLoop() {
+    List<byte[]> batch = new ArrayList<byte[]>();
+    try {
+      while (true) {
+        batch.add(mPending.take());
+        mPending.drainTo(batch, MAX_BATCH_RECORDS - 1);
+        boolean closing = false;
+        for (byte[] record : batch) {
+          if (record == CLOSE) {
+            closing = true;
+          } else {
+            mLogStream.write(record);
+            mLogBytes += record.length;
+          }
+        }
+        batch.clear();
+        mLogStream.flush();
+        mLogFile.getChannel().force(false);
+
+        if (closing) {
+          mLogStream.close();
+          return;
+        }
+        if (mLogBytes >= mCompactionBytes && mCompacting.compareAndSet(false, true)) {
+          mLogStream.close();
+          mGeneration++;
+          openLog(mGeneration);
+          scheduleSnapshot(mGeneration);
+        }
+      }
+    } catch (IOException e) {
+      mWriteFailure = e;
+      LOG.log(Level.SEVERE, "Could not write the credential log; new credentials will not be "
+          + "saved", e);
+    } catch (InterruptedException e) {
+      LOG.warning("Credential writer interrupted; queued records were not saved");
+    }
+  }
+
+  private void openLog(long generation) throws IOException {
+    mLogFile = new FileOutputStream(getFile(LOG_PREFIX, generation));
+    mLogStream = new DataOutputStream(new BufferedOutputStream(mLogFile, 64 * 1024));
+    mLogStream.writeInt(LOG_MAGIC);
+    mLogStream.writeInt(FORMAT_VERSION);
+    mLogBytes = FILE_HEADER_BYTES;
+  }
+
+  /**
+   * Writes a snapshot for the specified generation in the background, then deletes the files it
+   * replaces. Every record before that generation's log is already applied in memory, so the
+   * snapshot plus the logs from that generation on hold every credential.
+   */
+  private void scheduleSnapshot(final long generation) {
+    mCompactor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          long startNanos = System.nanoTime();
+          int count = writeSnapshot(generation);
+          deleteBefore(generation);
+          LOG.info("Compacted " + count + " credentials into snapshot " + generation + " in "
+              + (System.nanoTime() - startNanos) / 1000000 + " ms");
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Could not write credential snapshot " + generation
+              + "; keeping the logs", e);
+        } finally {
+          mCompacting.set(false);
+        }
+      }
+    });
+  }
+
+  private int writeSnapshot(long generation) throws IOException {
+    File file = getFile(SNAPSHOT_PREFIX, generation);
+    File temporaryFile = new File(file.getPath() + ".tmp");
+    FileOutputStream fileStream = new FileOutputStream(temporaryFile);
+    int count = 0;
+    try {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(fileStream, 64 * 1024));
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      for (Iterator<String> users = mCredentials.iterateUsers(); users.hasNext(); ) {
+        String userId = users.next();
+        ListableMemoryCredentialStore.MemoryPersistedCredential credential =
+            mCredentials.get(userId);
+        if (credential != null) {
+          out.write(encodeStore(userId, credential.getAccessToken(),
+              credential.getRefreshToken(), credential.getExpirationTimeMillis()));
+          count++;
+        }
+      }
+      out.flush();
+      fileStream.getFD().sync();
+    } finally {
+      fileStream.close();
+    }
+    if (!temporaryFile.renameTo(file)) {
+      throw new IOException("Could not rename " + temporaryFile + " to " + file);
+    }
+    return count;
+  }
+
+  private void deleteBefore(long generation) {
+    for (String prefix : new String[] {LOG_PREFIX, SNAPSHOT_PREFIX}) {
+      for (long older : listGenerations(prefix)) {
+        if (older < generation && !getFile(prefix, older).delete()) {
+          LOG.warning("Could not delete " + getFile(prefix, older));
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies every intact record in the specified file to the in-memory credentials.
+   *
+   * @return the number of records applied
+   */
+  private long replay(File file, int magic) throws IOException {
+    MappedByteBuffer buffer;
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is too large to replay");
+      }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      randomAccessFile.close();
+    }
+
+    if (buffer.limit() < FILE_HEADER_BYTES || buffer.getInt(0) != magic
+        || buffer.getInt(4) != FORMAT_VERSION) {
+      LOG.warning("Skipping " + file + ", which is not a credential file");
+      return 0;
+    }
+
+    byte[] payload = new byte[MAX_RECORD_BYTES];
+    CRC32 crc = new CRC32();
+    long records = 0;
+    int position = FILE_HEADER_BYTES;
+    while (buffer.limit() - position >= RECORD_HEADER_BYTES) {
+      int length = buffer.getInt(position);
+      int checksum = buffer.getInt(position + 4);
+      if (length <= 0 || length > MAX_RECORD_BYTES
+          || length > buffer.limit() - position - RECORD_HEADER_BYTES) {
+        break;
+      }
+      buffer.position(position + RECORD_HEADER_BYTES);
+      buffer.get(payload, 0, length);
+      crc.reset();
+      crc.update(payload, 0, length);
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      apply(payload, length);
+      records++;
+      position += RECORD_HEADER_BYTES + length;
+    }
+    if (position != buffer.limit()) {
+      LOG.warning("Ignoring " + (buffer.limit() - position) + " damaged bytes at the end of "
+          + file);
+    }
+    return records;
+  }
+
+  private void apply(byte[] payload, int length) throws IOException {
+    RecordReader reader = new RecordReader(payload, length);
+    byte type = reader.readByte();
+    String userId = reader.readString();
+    if (type == STORE_RECORD) {
+      String accessToken = reader.readString();
+      String refreshToken = reader.readString();
+      Long expirationTimeMillis = reader.readByte() != 0 ? reader.readLong() : null;
+      mCredentials.restore(userId, accessToken, refreshToken, expirationTimeMillis);
+    } else if (type == DELETE_RECORD) {
+      mCredentials.delete(userId, null);
+    } else {
+      throw new IOException("Unknown credential record type " + type);
+    }
+  }
+
+  private static byte[] encodeStore(String userId, String accessToken, String refreshToken,
+      Long expirationTimeMillis) throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+    DataOutputStream out = new DataOutputStream(payload);
+    out.writeByte(STORE_RECORD);
+    writeString(out, userId);
+    writeString(out, accessToken);
+    writeString(out, refreshToken);
+    out.writeByte(expirationTimeMillis != null ? 1 : 0);
+    if (expirationTimeMillis != null) {
+      out.writeLong(expirationTimeMillis);
+    }
+    return frame(payload.toByteArray());
+  }
+
+  private static byte[] encodeDelete(String userId) throws IOException {
+    ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(payload);
+    out.writeByte(DELETE_RECORD);
+    writeString(out, userId);
+    return frame(payload.toByteArray());
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = value.getBytes(Charsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Prefixes a record's payload with its length and checksum.
+   */
+  private static byte[] frame(byte[] payload) throws IOException {
+    if (payload.length > MAX_RECORD_BYTES) {
+      throw new IOException("Credential record is too large: " + payload.length + " bytes");
+    }
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteArrayOutputStream record = new ByteArrayOutputStream(RECORD_HEADER_BYTES + payload.length);
+    DataOutputStream out = new DataOutputStream(record);
+    out.writeInt(payload.length);
+    out.writeInt((int) crc.getValue());
+    out.write(payload);
+    return record.toByteArray();
+  }
+
+  /**
+   * Reads the fields of a record payload written by {@link #encodeStore} or
+   * {@link #encodeDelete}.
+   */
+  private static class RecordReader {
+    private final byte[] mBytes;
+    private final int mLength;
+    private int mPosition;
+
+    RecordReader(byte[] bytes, int length) {
+      mBytes = bytes;
+      mLength = length;
+    }
+
+    byte readByte() throws IOException {
+      require(1);
+      return mBytes[mPosition++];
+    }
+
+    int readInt() throws IOException {
+      require(4);
+      int value = ((mBytes[mPosition] & 0xff) << 24) | ((mBytes[mPosition + 1] & 0xff) << 16)
+          | ((mBytes[mPosition + 2] & 0xff) << 8) | (mBytes[mPosition + 3] & 0xff);
+      mPosition += 4;
+      return value;
+    }
+
+    long readLong() throws IOException {
+      long high = readInt() & 0xffffffffL;
+      long low = readInt() & 0xffffffffL;
+      return (high << 32) | low;
+    }
+
+    String readString() throws IOException {
+      int length = readInt();
+      if (length < 0) {
+        return null;
+      }
+      require(length);
+      String value = new String(mBytes, mPosition, length, Charsets.UTF_8);
+      mPosition += length;
+      return value;
+    }
+
+    private void require(int count) throws IOException {
+      if (count > mLength - mPosition) {
+        throw new IOException("Credential record is truncated");
+      }
+    }
+  }
+
+  /**
+   * Deletes snapshots that a crash left half-written.
+   */
+  private void deleteTemporaryFiles() {
+    File[] files = mDirectory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(SUFFIX + ".tmp") && !file.delete()) {
+          LOG.warning("Could not delete " + file);
+        }
+      }
+    }
+  }
+
+  private File getFile(String prefix, long generation) {
+    return new File(mDirectory, prefix + String.format("%019d", generation) + SUFFIX);
+  }
+
+  /**
+   * Lists the generations of the files with the specified prefix, oldest first.
+   */
+  private List<Long> listGenerations(String prefix) {
+    List<Long> generations = new ArrayList<Long>();
+    String[] names = mDirectory.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith(prefix) && name.endsWith(SUFFIX)) {
+          try {
+            generations.add(Long.parseLong(
+                name.substring(prefix.length(), name.length() - SUFFIX.length())));
+          } catch (NumberFormatException e) {
+            LOG.warning("Ignoring unexpected file " + name + " in " + mDirectory);
+          }
+        }
+      }
+    }
+    Collections.sort(generations);
+    return generations;
+  }
+
+  private long newestGeneration(String prefix) {
+    List<Long> generations = listGenerations(prefix);
+    return generations.isEmpty() ? -1 : generations.get(generations.size() - 1);
+  }
+
+  private static ThreadFactory newThreadFactory(final String name) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
@@ -16,11 +16,7 @@
 package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.batch.BatchRequest;
-import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
-import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.HttpHeaders;
 import com.google.api.services.mirror.model.Command;
 import com.google.api.services.mirror.model.Contact;
 import com.google.api.services.mirror.model.MenuItem;
@@ -31,6 +27,7 @@ import com.google.common.collect.Lists;
 
 import java.io.IOException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Logger;
@@ -46,28 +43,6 @@ import javax.servlet.http.HttpServletResponse;
  */
 public class MainServlet extends HttpServlet {
 
-  /**
-   * Private class to process batch request results.
-   * <p/>
-   * For more information, see
-   * https://code.google.com/p/google-api-java-client/wiki/Batch.
-   */
-  private final class BatchCallback extends JsonBatchCallback<TimelineItem> {
-    private int success = 0;
-    private int failure = 0;
-
-    @Override
-    public void onSuccess(TimelineItem item, HttpHeaders headers) throws IOException {
-      ++success;
-    }
-
-    @Override
-    public void onFailure(GoogleJsonError error, HttpHeaders headers) throws IOException {
-      ++failure;
-      LOG.info("Failed to insert item: " + error.getMessage());
-    }
-  }
-
   private static final Logger LOG = Logger.getLogger(MainServlet.class.getSimpleName());
   public static final String CONTACT_ID = "com.google.glassware.contact.java-quick-start";
   public static final String CONTACT_NAME = "Java Quick Start";
@@ -91,7 +66,7 @@ public class MainServlet extends HttpServlet {
   protected void doPost(HttpServletRequest req, HttpServletResponse res) throws IOException {
 
     String userId = AuthUtil.getUserId(req);
-    Credential credential = AuthUtil.newAuthorizationCodeFlow().loadCredential(userId);
+    Credential credential = AuthUtil.getCredential(req);
     String message = "";
 
     if (req.getParameter("operation").equals("insertSubscription")) {
@@ -126,10 +101,21 @@ public class MainServlet extends HttpServlet {
       timelineItem.setNotification(new NotificationConfig().setLevel("DEFAULT"));
 
       if (req.getParameter("imageUrl") != null) {
-        // Attach an image, if we have one
-        URL url = new URL(req.getParameter("imageUrl"));
-        String contentType = req.getParameter("contentType");
-        MirrorClient.insertTimelineItem(credential, timelineItem, contentType, url.openStream());
+        // Attach an image, if we have one, shrunk to the size of the display
+        ImagePipeline.Image image = ImagePipeline.getShared().process(req.getParameter("imageUrl"));
+        if (image != null) {
+          // Images that couldn't be decoded come back as downloaded, for the given type.
+          String contentType = image.getContentType() != null ? image.getContentType()
+              : req.getParameter("contentType");
+          MirrorClient.insertTimelineItem(credential, timelineItem, contentType,
+              image.getBytes());
+        } else {
+          URLConnection connection = new URL(req.getParameter("imageUrl")).openConnection();
+          String contentType = req.getParameter("contentType");
+          // Stream the image straight through; its length picks a single or resumable upload.
+          MirrorClient.insertTimelineItem(credential, timelineItem, contentType,
+              connection.getInputStream(), connection.getContentLength());
+        }
       } else {
         MirrorClient.insertTimelineItem(credential, timelineItem);
       }
@@ -203,36 +189,13 @@ public class MainServlet extends HttpServlet {
     } else if (req.getParameter("operation").equals("insertItemAllUsers")) {
       if (req.getServerName().contains("glass-java-starter-demo.appspot.com")) {
         message = "This function is disabled on the demo instance.";
-      }
-
-      // Insert a contact
-      List<String> users = AuthUtil.getAllUserIds();
-      LOG.info("found " + users.size() + " users");
-      if (users.size() > 10) {
-        // We wouldn't want you to run out of quota on your first day!
-        message =
-            "Total user count is " + users.size() + ". Aborting broadcast " + "to save your quota.";
       } else {
-        TimelineItem allUsersItem = new TimelineItem();
-        allUsersItem.setText("Hello Everyone!");
-
-        BatchRequest batch = MirrorClient.getMirror(null).batch();
-        BatchCallback callback = new BatchCallback();
-
         // TODO: add a picture of a cat
-        for (String user : users) {
-          Credential userCredential = AuthUtil.getCredential(user);
-          MirrorClient.getMirror(userCredential).timeline().insert(allUsersItem)
-              .queue(batch, callback);
-        }
-
-        batch.execute();
-        message =
-            "Successfully sent cards to " + callback.success + " users (" + callback.failure
-                + " failed).";
+        Broadcast broadcast = BroadcastEngine.getShared().broadcast("Hello Everyone!");
+        message = "Sending cards to " + broadcast.getUserCount() + " users. Follow its progress "
+            + "at " + WebUtil.buildUrl(req, "/broadcast?id=" + broadcast.getId());
       }
 
-
     } else if (req.getParameter("operation").equals("deleteTimelineItem")) {
 
       // Delete a timeline item
@@ -246,6 +209,8 @@ public class MainServlet extends HttpServlet {
       LOG.warning("Unknown operation specified " + operation);
       message = "I don't know how to do that";
     }
+    // Every operation changes something the dashboard shows.
+    DashboardService.getShared().invalidate(userId);
     WebUtil.setFlash(req, message);
     res.sendRedirect(WebUtil.buildUrl(req, "/"));
   }
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.glassware.metrics.Gauge;
+import com.google.glassware.metrics.MetricsRegistry;
+import com.google.glassware.model.LandmarksLoader;
+import com.google.glassware.util.CircuitBreaker;
+import com.google.glassware.util.ConcurrencyLimiter;
+import com.google.glassware.util.TokenBucket;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the app's {@link MetricsRegistry} in the Prometheus text format, for scraping. Besides
+ * the metrics recorded as the app runs, it exports the counts already kept by the quota, circuit
+ * breakers, concurrency limiter, token refresher, credential store and landmarks.
+ * <p/>
+ * Scrapers can't log in, so {@link AuthFilter} lets them through and this servlet checks them
+ * instead: a scrape must send {@code Authorization: Bearer <metrics.token>}, or come from one of
+ * the comma-separated addresses in {@code metrics.allowedAddresses}. With neither set, every
+ * scrape is refused.
+ */
+public class MetricsServlet extends HttpServlet {
+  private static final Logger LOG = Logger.getLogger(MetricsServlet.class.getSimpleName());
+
+  private static final String TOKEN = System.getProperty("metrics.token");
+  private static final Set<String> ALLOWED_ADDRESSES = ImmutableSet.copyOf(
+      Splitter.on(',').trimResults().omitEmptyStrings()
+          .split(System.getProperty("metrics.allowedAddresses", "")));
+
+  @Override
+  public void init() throws ServletException {
+    if (TOKEN == null && ALLOWED_ADDRESSES.isEmpty()) {
+      LOG.warning("Neither metrics.token nor metrics.allowedAddresses is set; "
+          + "refusing every metrics scrape");
+    }
+    MetricsRegistry registry = MetricsRegistry.getShared();
+
+    for (final MirrorQuota.Method method : MirrorQuota.Method.values()) {
+      final TokenBucket bucket = MirrorQuota.getShared().getGlobalBucket(method);
+      if (bucket != null) {
+        registry.gauge("mirror_quota_available_tokens",
+            "Tokens left in the app-wide quota bucket of each class of Mirror API call",
+            "method", method.getName(), new Gauge() {
+              @Override
+              public double getValue() {
+                return bucket.getAvailable();
+              }
+            });
+      }
+      registry.counter("mirror_quota_rejected_total",
+          "Mirror API calls refused for lack of quota", "method", method.getName(), new Gauge() {
+            @Override
+            public double getValue() {
+              return MirrorQuota.getShared().getRejectedCount(method);
+            }
+          });
+    }
+
+    final ConcurrencyLimiter limiter = MirrorClient.getConcurrencyLimiter();
+    registry.gauge("mirror_concurrency_limit", "Mirror API calls currently allowed in flight",
+        new Gauge() {
+          @Override
+          public double getValue() {
+            return limiter.getLimit();
+          }
+        });
+    registry.gauge("mirror_concurrency_in_flight", "Mirror API calls in flight", new Gauge() {
+      @Override
+      public double getValue() {
+        return limiter.getInFlight();
+      }
+    });
+    registry.gauge("mirror_concurrency_queued", "Mirror API calls waiting for a slot",
+        new Gauge() {
+          @Override
+          public double getValue() {
+            return limiter.getQueued();
+          }
+        });
+    registry.gauge("mirror_latency_ratio",
+        "How many times their baseline latency recent Mirror API calls have taken", new Gauge() {
+          @Override
+          public double getValue() {
+            return limiter.getLatencyRatio();
+          }
+        });
+    registry.counter("mirror_concurrency_rejected_total",
+        "Mirror API calls shed because no slot came free in time", null, null, new Gauge() {
+          @Override
+          public double getValue() {
+            return limiter.getRejectedCount();
+          }
+        });
+
+    final TokenRefreshScheduler refresher = TokenRefreshScheduler.getShared();
+    registry.counter("token_refreshes_total", "Access tokens refreshed in the background",
+        null, null, new Gauge() {
+          @Override
+          public double getValue() {
+            return refresher.getRefreshCount();
+          }
+        });
+    registry.counter("token_refresh_failures_total", "Background token refreshes that failed",
+        null, null, new Gauge() {
+          @Override
+          public double getValue() {
+            return refresher.getFailureCount();
+          }
+        });
+    registry.gauge("token_refreshes_scheduled", "Users with a token refresh scheduled",
+        new Gauge() {
+          @Override
+          public double getValue() {
+            return refresher.getScheduledCount();
+          }
+        });
+
+    registry.gauge("credential_store_users", "Users with a stored credential", new Gauge() {
+      @Override
+      public double getValue() {
+        return AuthUtil.store.size();
+      }
+    });
+    if (AuthUtil.store instanceof OffHeapCredentialStore) {
+      final OffHeapCredentialStore store = (OffHeapCredentialStore) AuthUtil.store;
+      registry.gauge("credential_store_resident_bytes",
+          "Off-heap memory holding stored credentials", new Gauge() {
+            @Override
+            public double getValue() {
+              return store.getResidentBytes();
+            }
+          });
+    }
+
+    registry.gauge("landmarks_version", "Version of the landmarks being served", new Gauge() {
+      @Override
+      public double getValue() {
+        return LandmarksLoader.getShared().getLandmarks().getVersion();
+      }
+    });
+    registry.gauge("landmarks_count", "Landmarks being served", new Gauge() {
+      @Override
+      public double getValue() {
+        return LandmarksLoader.getShared().getLandmarks().size();
+      }
+    });
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    if (!isAllowed(req)) {
+      res.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    // Breakers are created as endpoints are first called, so they are picked up on each scrape.
+    MetricsRegistry registry = MetricsRegistry.getShared();
+    for (final CircuitBreaker breaker : MirrorResilience.getShared().getBreakers()) {
+      registry.gauge("mirror_breaker_open",
+          "Whether the circuit breaker of each Mirror API endpoint is refusing calls",
+          "endpoint", breaker.getName(), new Gauge() {
+            @Override
+            public double getValue() {
+              return breaker.getState() == CircuitBreaker.State.OPEN ? 1 : 0;
+            }
+          });
+      registry.counter("mirror_breaker_opened_total",
+          "Times the circuit breaker of each Mirror API endpoint has opened", "endpoint",
+          breaker.getName(), new Gauge() {
+            @Override
+            public double getValue() {
+              return breaker.getTransitionCount(CircuitBreaker.State.OPEN);
+            }
+          });
+    }
+
+    res.setContentType("text/plain; version=0.0.4");
+    res.setCharacterEncoding("UTF-8");
+    Writer writer = res.getWriter();
+    registry.write(writer);
+    writer.flush();
+  }
+
+  private static boolean isAllowed(HttpServletRequest req) {
+    if (ALLOWED_ADDRESSES.contains(req.getRemoteAddr())) {
+      return true;
+    }
+    String authorization = req.getHeader("Authorization");
+    if (TOKEN == null || authorization == null || !authorization.startsWith("Bearer ")) {
+      return false;
+    }
+    // Compare in constant time so the token can't be guessed a byte at a time.
+    return MessageDigest.isEqual(TOKEN.getBytes(Charsets.UTF_8),
+        authorization.substring("Bearer ".length()).trim().getBytes(Charsets.UTF_8));
+  }
+}
@@ -16,24 +16,57 @@
 package com.google.glassware;
 
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.batch.BatchRequest;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.mirror.Mirror;
 import com.google.api.services.mirror.model.Attachment;
 import com.google.api.services.mirror.model.Contact;
 import com.google.api.services.mirror.model.ContactsListResponse;
+import com.google.api.services.mirror.model.Location;
 import com.google.api.services.mirror.model.Subscription;
 import com.google.api.services.mirror.model.SubscriptionsListResponse;
 import com.google.api.services.mirror.model.TimelineItem;
 import com.google.api.services.mirror.model.TimelineListResponse;
-import com.google.common.io.ByteStreams;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.glassware.metrics.Counter;
+import com.google.glassware.metrics.Histogram;
+import com.google.glassware.metrics.MetricsRegistry;
+import com.google.glassware.util.ConcurrencyLimiter;
+
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Logger;
 
 /**
@@ -44,30 +77,169 @@ import java.util.logging.Logger;
 public class MirrorClient {
   private static final Logger LOG = Logger.getLogger(MirrorClient.class.getSimpleName());
 
+  private static final String APPLICATION_NAME = "PG Java Starter";
+
+  /**
+   * The HTTP transport shared by every Mirror client and auth flow in the process. It keeps a
+   * pool of keep-alive connections (sized by the {@code mirror.http.poolSize} system property)
+   * so calls reuse connections instead of paying for a new TLS handshake each time.
+   */
+  private static final HttpTransport HTTP_TRANSPORT =
+      newPooledTransport(Integer.getInteger("mirror.http.poolSize", 50));
+
+  /**
+   * The JSON factory shared by every Mirror client and auth flow in the process.
+   */
+  private static final JsonFactory JSON_FACTORY = new JacksonFactory();
+
+  /**
+   * Mirror clients built for recently used credentials, so that handlers which call
+   * {@link #getMirror} several times with the same credential get the same client. Credentials
+   * are compared by identity. Each client holds on to its credential, so entries only leave the
+   * cache when it grows past the {@code mirror.clientCacheSize} system property.
+   */
+  private static final Cache<Credential, Mirror> MIRROR_CACHE = CacheBuilder.newBuilder()
+      .maximumSize(Integer.getInteger("mirror.clientCacheSize", 1000))
+      .build();
+
+  /**
+   * The size of each request of a resumable attachment upload, from the
+   * {@code mirror.upload.chunkSizeKb} system property rounded up to the 256 KB multiple the
+   * upload protocol requires. An upload holds at most one chunk in memory, and attachments no
+   * bigger than one chunk whose size is known are sent in a single request instead.
+   */
+  private static final int UPLOAD_CHUNK_SIZE =
+      roundUpToChunkSize(Integer.getInteger("mirror.upload.chunkSizeKb", 1024) * 1024);
+
+  /**
+   * How long calls wait for {@link MirrorQuota} by default before failing, from the
+   * {@code mirror.quota.maxWaitMs} system property.
+   */
+  private static final long QUOTA_WAIT_MS = Long.getLong("mirror.quota.maxWaitMs", 2000);
+
+  /**
+   * The HTTP methods whose requests can be repeated without changing the result.
+   */
+  private static final Set<String> IDEMPOTENT_METHODS =
+      ImmutableSet.of("GET", "HEAD", "PUT", "DELETE");
+
+  /**
+   * Limits how many Mirror API calls are in flight at once, adapting to their latency so that
+   * a slowdown at Google doesn't pile up calls and servlet threads behind it. Configured with
+   * the {@code mirror.concurrency.*} system properties.
+   */
+  private static final ConcurrencyLimiter CONCURRENCY_LIMITER = new ConcurrencyLimiter(
+      Integer.getInteger("mirror.concurrency.initialLimit", 20),
+      Integer.getInteger("mirror.concurrency.minLimit", 2),
+      Integer.getInteger("mirror.concurrency.maxLimit", 200),
+      Double.parseDouble(System.getProperty("mirror.concurrency.tolerance", "2.0")),
+      0.9,
+      Integer.getInteger("mirror.concurrency.maxQueued", 100));
+
+  /**
+   * How long a call waits for a slot under {@link #CONCURRENCY_LIMITER} before it is shed.
+   */
+  private static final long CONCURRENCY_WAIT_MS =
+      Long.getLong("mirror.concurrency.maxWaitMs", 500);
+
+  /**
+   * The metrics of each endpoint called so far, by endpoint.
+   */
+  private static final ConcurrentMap<String, EndpointMetrics> ENDPOINT_METRICS =
+      new ConcurrentHashMap<String, EndpointMetrics>();
+
+  /**
+   * The endpoint that batches of requests are measured and limited under.
+   */
+  private static final String BATCH_ENDPOINT = "POST batch";
+
+  /**
+   * A Mirror client without credentials, used to create batch requests.
+   */
+  private static final Mirror UNAUTHENTICATED_MIRROR =
+      new Mirror.Builder(HTTP_TRANSPORT, JSON_FACTORY, null)
+          .setApplicationName(APPLICATION_NAME).build();
+
+  /**
+   * Gets the HTTP transport shared by the whole process.
+   */
+  public static HttpTransport getHttpTransport() {
+    return HTTP_TRANSPORT;
+  }
+
+  /**
+   * Gets the JSON factory shared by the whole process.
+   */
+  public static JsonFactory getJsonFactory() {
+    return JSON_FACTORY;
+  }
+
   public static Mirror getMirror(Credential credential) {
-    return new Mirror.Builder(new NetHttpTransport(), new JacksonFactory(), credential)
-        .setApplicationName("PG Java Starter").build();
+    if (credential == null) {
+      return UNAUTHENTICATED_MIRROR;
+    }
+    Mirror mirror = MIRROR_CACHE.getIfPresent(credential);
+    if (mirror == null) {
+      mirror = new Mirror.Builder(HTTP_TRANSPORT, JSON_FACTORY, credential)
+          .setApplicationName(APPLICATION_NAME).build();
+      MIRROR_CACHE.put(credential, mirror);
+    }
+    return mirror;
+  }
+
+  /**
+   * Creates an HTTP transport backed by a thread-safe pool of keep-alive connections.
+   *
+   * @param poolSize the maximum number of open connections, both in total and to any one host
+   */
+  // The connection manager and scheme classes are deprecated from HttpClient 4.1 on, but their
+  // replacements don't exist in 4.0, which ApacheHttpTransport is built against.
+  @SuppressWarnings("deprecation")
+  private static HttpTransport newPooledTransport(int poolSize) {
+    HttpParams params = new BasicHttpParams();
+    HttpConnectionParams.setStaleCheckingEnabled(params, false);
+    HttpConnectionParams.setSocketBufferSize(params, 8192);
+    ConnManagerParams.setMaxTotalConnections(params, poolSize);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(poolSize));
+
+    SchemeRegistry registry = new SchemeRegistry();
+    registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+    DefaultHttpClient client =
+        new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+    // Retries are left to the callers, as with the default transport.
+    client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+    return new ApacheHttpTransport(client);
+  }
+
+  /**
+   * Rounds a chunk size up to a multiple of the smallest chunk resumable uploads allow.
+   */
+  private static int roundUpToChunkSize(int bytes) {
+    int minimum = MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    return Math.max(1, (bytes + minimum - 1) / minimum) * minimum;
   }
 
   public static Contact insertContact(Credential credential, Contact contact) throws IOException {
     Mirror.Contacts contacts = getMirror(credential).contacts();
-    return contacts.insert(contact).execute();
+    return execute(contacts.insert(contact), credential, MirrorQuota.Method.OTHER);
   }
 
   public static void deleteContact(Credential credential, String contactId) throws IOException {
     Mirror.Contacts contacts = getMirror(credential).contacts();
-    contacts.delete(contactId).execute();
+    execute(contacts.delete(contactId), credential, MirrorQuota.Method.OTHER);
   }
 
   public static ContactsListResponse listContacts(Credential credential) throws IOException {
     Mirror.Contacts contacts = getMirror(credential).contacts();
-    return contacts.list().execute();
+    return execute(contacts.list(), credential, MirrorQuota.Method.OTHER);
   }
 
   public static Contact getContact(Credential credential, String id) throws IOException {
     try {
       Mirror.Contacts contacts = getMirror(credential).contacts();
-      return contacts.get(id).execute();
+      return execute(contacts.get(id), credential, MirrorQuota.Method.OTHER);
     } catch (GoogleJsonResponseException e) {
       LOG.warning("Could not find contact with ID " + id);
       return null;
@@ -80,7 +252,7 @@ public class MirrorClient {
     Mirror.Timeline timelineItems = getMirror(credential).timeline();
     Mirror.Timeline.List list = timelineItems.list();
     list.setMaxResults(count);
-    return list.execute();
+    return execute(list, credential, MirrorQuota.Method.OTHER);
   }
 
 
@@ -101,20 +273,22 @@ public class MirrorClient {
     subscription.setCallbackUrl(callbackUrl);
     subscription.setUserToken(userId);
 
-    return getMirror(credential).subscriptions().insert(subscription).execute();
+    return execute(getMirror(credential).subscriptions().insert(subscription), credential,
+        MirrorQuota.Method.OTHER);
   }
 
   /**
    * Subscribes to notifications on the user's timeline.
    */
   public static void deleteSubscription(Credential credential, String id) throws IOException {
-    getMirror(credential).subscriptions().delete(id).execute();
+    execute(getMirror(credential).subscriptions().delete(id), credential,
+        MirrorQuota.Method.OTHER);
   }
 
   public static SubscriptionsListResponse listSubscriptions(Credential credential)
       throws IOException {
     Mirror.Subscriptions subscriptions = getMirror(credential).subscriptions();
-    return subscriptions.list().execute();
+    return execute(subscriptions.list(), credential, MirrorQuota.Method.OTHER);
   }
 
   /**
@@ -125,7 +299,8 @@ public class MirrorClient {
    */
   public static TimelineItem insertTimelineItem(Credential credential, TimelineItem item)
       throws IOException {
-    return getMirror(credential).timeline().insert(item).execute();
+    return execute(getMirror(credential).timeline().insert(item), credential,
+        MirrorQuota.Method.TIMELINE_INSERT);
   }
 
   /**
@@ -140,12 +315,13 @@ public class MirrorClient {
   public static void insertTimelineItem(Credential credential, TimelineItem item,
       String attachmentContentType, byte[] attachmentData) throws IOException {
     Mirror.Timeline timeline = getMirror(credential).timeline();
-    timeline.insert(item, new ByteArrayContent(attachmentContentType, attachmentData)).execute();
-
+    execute(timeline.insert(item, new ByteArrayContent(attachmentContentType, attachmentData)),
+        credential, MirrorQuota.Method.TIMELINE_INSERT);
   }
 
   /**
-   * Inserts an item with an attachment provided as an input stream.
+   * Inserts an item with an attachment provided as an input stream of unknown length. The
+   * attachment is streamed with a resumable upload, so it is never held in memory whole.
    *
    * @param credential            the user's credential
    * @param item                  the item to insert
@@ -156,29 +332,245 @@ public class MirrorClient {
    */
   public static void insertTimelineItem(Credential credential, TimelineItem item,
       String attachmentContentType, InputStream attachmentInputStream) throws IOException {
-    insertTimelineItem(credential, item, attachmentContentType,
-        ByteStreams.toByteArray(attachmentInputStream));
+    insertTimelineItem(credential, item, attachmentContentType, attachmentInputStream, -1);
   }
 
-  public static InputStream getAttachmentInputStream(Credential credential, String timelineItemId,
+  /**
+   * Inserts an item with an attachment provided as an input stream. Attachments that fit in
+   * one upload chunk are sent in a single request; bigger ones, and ones of unknown length, are
+   * streamed with a resumable upload one chunk at a time.
+   *
+   * @param credential            the user's credential
+   * @param item                  the item to insert
+   * @param attachmentContentType the MIME type of the attachment
+   * @param attachmentInputStream input stream for the attachment, which is closed when the
+   *                              upload finishes
+   * @param attachmentLength      the length of the attachment in bytes, or -1 if unknown
+   */
+  public static void insertTimelineItem(Credential credential, TimelineItem item,
+      String attachmentContentType, InputStream attachmentInputStream, long attachmentLength)
+      throws IOException {
+    InputStreamContent content =
+        new InputStreamContent(attachmentContentType, attachmentInputStream)
+            .setLength(attachmentLength);
+    Mirror.Timeline.Insert insert = getMirror(credential).timeline().insert(item, content);
+    insert.getMediaHttpUploader()
+        .setDirectUploadEnabled(attachmentLength >= 0 && attachmentLength <= UPLOAD_CHUNK_SIZE)
+        .setChunkSize(UPLOAD_CHUNK_SIZE);
+    execute(insert, credential, MirrorQuota.Method.TIMELINE_INSERT);
+  }
+
+  /**
+   * Gets the metadata of a timeline item's attachment, including its content type and the URL
+   * of its bytes.
+   */
+  public static Attachment getAttachment(Credential credential, String timelineItemId,
       String attachmentId) throws IOException {
-    Mirror mirrorService = getMirror(credential);
-    Mirror.Timeline.Attachments attachments = mirrorService.timeline().attachments();
-    Attachment attachmentMetadata = attachments.get(timelineItemId, attachmentId).execute();
-    HttpResponse resp =
-        mirrorService.getRequestFactory()
-            .buildGetRequest(new GenericUrl(attachmentMetadata.getContentUrl())).execute();
+    return execute(getMirror(credential).timeline().attachments().get(timelineItemId, attachmentId),
+        credential, MirrorQuota.Method.ATTACHMENTS);
+  }
+
+  /**
+   * Opens the bytes of an attachment whose metadata has already been fetched.
+   */
+  public static InputStream getAttachmentInputStream(final Credential credential,
+      Attachment attachment) throws IOException {
+    final HttpRequest request = getMirror(credential).getRequestFactory()
+        .buildGetRequest(new GenericUrl(attachment.getContentUrl()));
+    HttpResponse resp = callMeasured("GET attachment content", true,
+        new MirrorResilience.Call<HttpResponse>() {
+          @Override
+          public HttpResponse execute() throws IOException {
+            MirrorQuota.getShared().acquire(MirrorQuota.Method.ATTACHMENTS, credential,
+                QUOTA_WAIT_MS);
+            return executeLimited("GET attachment content",
+                new MirrorResilience.Call<HttpResponse>() {
+                  @Override
+                  public HttpResponse execute() throws IOException {
+                    return request.execute();
+                  }
+                }, true);
+          }
+        });
     return resp.getContent();
   }
 
+  public static InputStream getAttachmentInputStream(Credential credential, String timelineItemId,
+      String attachmentId) throws IOException {
+    return getAttachmentInputStream(credential,
+        getAttachment(credential, timelineItemId, attachmentId));
+  }
+
   public static String getAttachmentContentType(Credential credential, String timelineItemId,
       String attachmentId) throws IOException {
-    Mirror.Timeline.Attachments attachments = getMirror(credential).timeline().attachments();
-    Attachment attachmentMetadata = attachments.get(timelineItemId, attachmentId).execute();
-    return attachmentMetadata.getContentType();
+    return getAttachment(credential, timelineItemId, attachmentId).getContentType();
   }
 
   public static void deleteTimelineItem(Credential credential, String timelineItemId) throws IOException {
-    getMirror(credential).timeline().delete(timelineItemId).execute();    
+    execute(getMirror(credential).timeline().delete(timelineItemId), credential,
+        MirrorQuota.Method.OTHER);
+  }
+
+  /**
+   * Gets one of the user's locations, usually {@code latest}.
+   */
+  public static Location getLocation(Credential credential, String id) throws IOException {
+    return execute(getMirror(credential).locations().get(id), credential,
+        MirrorQuota.Method.LOCATIONS_GET);
+  }
+
+  /**
+   * Executes a request once {@link MirrorQuota} allows it, waiting up to
+   * {@code mirror.quota.maxWaitMs} for the quota.
+   *
+   * @throws QuotaExceededException if the request was over its rate limit for the whole wait
+   */
+  public static <T> T execute(AbstractGoogleClientRequest<T> request, Credential credential,
+      MirrorQuota.Method method) throws IOException {
+    return execute(request, credential, method, QUOTA_WAIT_MS);
+  }
+
+  /**
+   * Executes a request once {@link MirrorQuota} allows it, through {@link MirrorResilience} so
+   * that idempotent requests are retried after transient failures and requests to a failing
+   * endpoint fail fast.
+   *
+   * @param request       the request to execute
+   * @param credential    the credential the request is made with
+   * @param method        the class of request, which chooses its rate limits
+   * @param maxWaitMillis the longest to wait for the quota; 0 fails at once if the request is
+   *                      over its rate
+   * @throws QuotaExceededException if the request was over its rate limit for the whole wait
+   * @throws CircuitOpenException   if the endpoint has been failing
+   */
+  public static <T> T execute(final AbstractGoogleClientRequest<T> request,
+      final Credential credential, final MirrorQuota.Method method, final long maxWaitMillis)
+      throws IOException {
+    String httpMethod = request.getRequestMethod();
+    final String endpoint = httpMethod + " " + request.getUriTemplate();
+    // Uploads take as long as the attachment needs, which says nothing about congestion.
+    final boolean sampleLatency = request.getMediaHttpUploader() == null;
+    return callMeasured(endpoint, IDEMPOTENT_METHODS.contains(httpMethod),
+        new MirrorResilience.Call<T>() {
+          @Override
+          public T execute() throws IOException {
+            MirrorQuota.getShared().acquire(method, credential, maxWaitMillis);
+            return executeLimited(endpoint, new MirrorResilience.Call<T>() {
+              @Override
+              public T execute() throws IOException {
+                return request.execute();
+              }
+            }, sampleLatency);
+          }
+        });
+  }
+
+  /**
+   * Executes a batch of requests, whose quota the caller has already taken, through
+   * {@link MirrorResilience} and the concurrency limit under the {@code POST batch} endpoint.
+   * The batch is not retried, since its inserts would be made twice; the caller decides what to
+   * send again from the callbacks that ran.
+   *
+   * @throws CircuitOpenException      if the batch endpoint has been failing
+   * @throws ConcurrencyLimitException if no slot came free in time
+   */
+  public static void executeBatch(final BatchRequest batch) throws IOException {
+    callMeasured(BATCH_ENDPOINT, false, new MirrorResilience.Call<Void>() {
+      @Override
+      public Void execute() throws IOException {
+        // A batch takes as long as its requests add up to, which says nothing about congestion.
+        return executeLimited(BATCH_ENDPOINT, new MirrorResilience.Call<Void>() {
+          @Override
+          public Void execute() throws IOException {
+            batch.execute();
+            return null;
+          }
+        }, false);
+      }
+    });
+  }
+
+  /**
+   * Makes a call through {@link MirrorResilience}, recording how long it took in all, with
+   * retries and waits for quota, and whether it failed in the end.
+   */
+  private static <T> T callMeasured(String endpoint, boolean idempotent,
+      MirrorResilience.Call<T> call) throws IOException {
+    EndpointMetrics metrics = ENDPOINT_METRICS.get(endpoint);
+    if (metrics == null) {
+      EndpointMetrics newMetrics = new EndpointMetrics(endpoint);
+      metrics = ENDPOINT_METRICS.putIfAbsent(endpoint, newMetrics);
+      if (metrics == null) {
+        metrics = newMetrics;
+      }
+    }
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      T result = MirrorResilience.getShared().call(endpoint, idempotent, call);
+      failed = false;
+      return result;
+    } finally {
+      metrics.latency.recordSince(start);
+      if (failed) {
+        metrics.errors.increment();
+      }
+    }
+  }
+
+  /**
+   * The metrics of one endpoint, looked up once so that recording a call allocates nothing.
+   */
+  private static class EndpointMetrics {
+    final Histogram latency;
+    final Counter errors;
+
+    EndpointMetrics(String endpoint) {
+      MetricsRegistry registry = MetricsRegistry.getShared();
+      latency = registry.histogram("mirror_request_duration_seconds",
+          "How long Mirror API operations take, including retries and waits for quota",
+          1e-9, MetricsRegistry.LATENCY_BUCKETS, "endpoint", endpoint);
+      errors = registry.counter("mirror_request_errors_total",
+          "Mirror API operations that failed after any retries", "endpoint", endpoint);
+    }
+  }
+
+  /**
+   * Gets the limiter of concurrent Mirror API calls.
+   */
+  public static ConcurrencyLimiter getConcurrencyLimiter() {
+    return CONCURRENCY_LIMITER;
+  }
+
+  /**
+   * Makes one HTTP call within {@link #CONCURRENCY_LIMITER}, waiting briefly for a slot and
+   * feeding the call's latency and outcome back to the limiter.
+   *
+   * @throws ConcurrencyLimitException if no slot came free in time
+   */
+  private static <T> T executeLimited(String endpoint, MirrorResilience.Call<T> call,
+      boolean sampleLatency) throws IOException {
+    try {
+      if (!CONCURRENCY_LIMITER.acquire(CONCURRENCY_WAIT_MS)) {
+        throw new ConcurrencyLimitException(CONCURRENCY_LIMITER.getLimit());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to call the Mirror API");
+    }
+    long start = System.nanoTime();
+    boolean overloaded = false;
+    try {
+      return call.execute();
+    } catch (HttpResponseException e) {
+      overloaded = e.getStatusCode() == 429 || e.getStatusCode() == 503;
+      throw e;
+    } catch (SocketTimeoutException e) {
+      overloaded = true;
+      throw e;
+    } finally {
+      CONCURRENCY_LIMITER.release(endpoint, sampleLatency ? System.nanoTime() - start : -1,
+          overloaded);
+    }
   }
 }
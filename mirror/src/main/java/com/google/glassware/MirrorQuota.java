@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.glassware.util.TokenBucket;
+
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limits Mirror API calls so that bursts of notifications or broadcasts can't use up the
+ * app's quota.
+ * <p/>
+ * Calls are grouped into {@link Method} classes, and each class has a token bucket for the whole
+ * app plus one per user. A call takes a token from both before it is made. The rates are set with
+ * system properties named after the class, for example
+ * {@code mirror.quota.timelineInsert.perSecond} and {@code .burst} for the app-wide bucket, and
+ * {@code .userPerSecond} and {@code .userBurst} for each user's; a rate of 0 turns that bucket
+ * off. Users are told apart by their refresh token, the one stable thing a {@link Credential}
+ * carries, and a user's buckets are dropped after ten idle minutes.
+ */
+public class MirrorQuota {
+
+  /**
+   * The classes of Mirror API calls, which are limited separately.
+   */
+  public enum Method {
+    TIMELINE_INSERT("timelineInsert", 20, 50, 1, 5),
+    /**
+     * Timeline inserts sent by broadcasts, which have a bucket of their own so that a broadcast
+     * to every user can't starve the inserts users are waiting for. Its app-wide rate is the
+     * share of the Mirror API's insert quota given to broadcasts, and with
+     * {@code timelineInsert.perSecond} it should add up to no more than the quota. A broadcast
+     * sends each user one card, so it has no per-user limit by default.
+     */
+    BROADCAST_INSERT("broadcastInsert", 5, 50, 0, 0),
+    LOCATIONS_GET("locationsGet", 20, 50, 2, 10),
+    ATTACHMENTS("attachments", 20, 50, 5, 20),
+    OTHER("other", 50, 100, 5, 20);
+
+    private final String mName;
+    private final double mPerSecond;
+    private final double mBurst;
+    private final double mUserPerSecond;
+    private final double mUserBurst;
+
+    private Method(String name, double perSecond, double burst, double userPerSecond,
+        double userBurst) {
+      mName = name;
+      mPerSecond = getRate(name + ".perSecond", perSecond);
+      mBurst = getRate(name + ".burst", burst);
+      mUserPerSecond = getRate(name + ".userPerSecond", userPerSecond);
+      mUserBurst = getRate(name + ".userBurst", userBurst);
+    }
+
+    /**
+     * Gets the name used in this class's system properties.
+     */
+    public String getName() {
+      return mName;
+    }
+
+    private static double getRate(String property, double defaultValue) {
+      String value = System.getProperty("mirror.quota." + property);
+      return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+  }
+
+  private static final MirrorQuota sShared = new MirrorQuota();
+
+  private final Map<Method, TokenBucket> mGlobalBuckets =
+      new EnumMap<Method, TokenBucket>(Method.class);
+  private final Map<Method, Cache<String, TokenBucket>> mUserBuckets =
+      new EnumMap<Method, Cache<String, TokenBucket>>(Method.class);
+  private final Map<Method, AtomicLong> mRejectedCounts =
+      new EnumMap<Method, AtomicLong>(Method.class);
+
+  /**
+   * Gets the quota used by the app.
+   */
+  public static MirrorQuota getShared() {
+    return sShared;
+  }
+
+  /**
+   * Initializes a quota with the rates configured by system properties.
+   */
+  public MirrorQuota() {
+    for (Method method : Method.values()) {
+      if (method.mPerSecond > 0) {
+        mGlobalBuckets.put(method, new TokenBucket(method.mBurst, method.mPerSecond));
+      }
+      if (method.mUserPerSecond > 0) {
+        mUserBuckets.put(method, CacheBuilder.newBuilder()
+            .expireAfterAccess(10, TimeUnit.MINUTES)
+            .<String, TokenBucket>build());
+      }
+      mRejectedCounts.put(method, new AtomicLong());
+    }
+  }
+
+  /**
+   * Takes a token for one call from the app's and the user's buckets, waiting for them if
+   * necessary.
+   *
+   * @param method        the class of the call
+   * @param credential    the credential the call is made with, or null if it isn't made for
+   *                      one user
+   * @param maxWaitMillis the longest to wait for a token; 0 fails at once if none is available
+   * @throws QuotaExceededException if the tokens can't be had within the wait
+   */
+  public void acquire(Method method, Credential credential, long maxWaitMillis)
+      throws InterruptedIOException, QuotaExceededException {
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    TokenBucket userBucket = getUserBucket(method, credential);
+    TokenBucket globalBucket = mGlobalBuckets.get(method);
+    try {
+      if (userBucket != null && !userBucket.acquire(deadlineNanos)) {
+        throw rejected(method, "this user's");
+      }
+      if (globalBucket != null && !globalBucket.acquire(deadlineNanos)) {
+        if (userBucket != null) {
+          userBucket.release();
+        }
+        throw rejected(method, "the app's");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for Mirror API quota");
+    }
+  }
+
+  /**
+   * Takes tokens for several calls at once from the app's bucket, waiting for them if
+   * necessary. The users' buckets are left alone; see {@link #tryAcquireUser}.
+   *
+   * @param method        the class of the calls
+   * @param count         how many calls to take tokens for
+   * @param maxWaitMillis the longest to wait for the tokens
+   * @throws QuotaExceededException if the tokens can't be had within the wait, in which case
+   *                                none are taken
+   */
+  public void acquireGlobal(Method method, int count, long maxWaitMillis)
+      throws InterruptedIOException, QuotaExceededException {
+    TokenBucket bucket = mGlobalBuckets.get(method);
+    if (bucket == null) {
+      return;
+    }
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    // The bucket can't hold more than its capacity, so large counts are taken a bucketful at
+    // a time.
+    int step = (int) bucket.getCapacity();
+    int taken = 0;
+    try {
+      while (taken < count) {
+        int next = Math.min(step, count - taken);
+        if (!bucket.acquire(next, deadlineNanos)) {
+          bucket.release(taken);
+          throw rejected(method, "the app's");
+        }
+        taken += next;
+      }
+    } catch (InterruptedException e) {
+      bucket.release(taken);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for Mirror API quota");
+    }
+  }
+
+  /**
+   * Puts back tokens taken from the app's bucket by {@link #acquireGlobal} for calls that
+   * weren't made after all.
+   */
+  public void releaseGlobal(Method method, int count) {
+    TokenBucket bucket = mGlobalBuckets.get(method);
+    if (bucket != null && count > 0) {
+      bucket.release(count);
+    }
+  }
+
+  /**
+   * Takes a token for one call from the user's bucket, without waiting.
+   *
+   * @return true if the call may be made, or false if the user is over their rate
+   */
+  public boolean tryAcquireUser(Method method, Credential credential) {
+    TokenBucket bucket = getUserBucket(method, credential);
+    if (bucket == null || bucket.tryAcquire()) {
+      return true;
+    }
+    mRejectedCounts.get(method).incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Gets the number of tokens currently available in the app-wide bucket of each class of call.
+   * Classes without an app-wide limit are left out.
+   */
+  public Map<Method, Double> getAvailableTokens() {
+    Map<Method, Double> levels = new EnumMap<Method, Double>(Method.class);
+    for (Map.Entry<Method, TokenBucket> bucket : mGlobalBuckets.entrySet()) {
+      levels.put(bucket.getKey(), bucket.getValue().getAvailable());
+    }
+    return levels;
+  }
+
+  /**
+   * Gets the app-wide bucket of a class of call, or null if it has no app-wide limit.
+   */
+  public TokenBucket getGlobalBucket(Method method) {
+    return mGlobalBuckets.get(method);
+  }
+
+  /**
+   * Gets the number of users with a recently used bucket for a class of call.
+   */
+  public long getUserBucketCount(Method method) {
+    Cache<String, TokenBucket> buckets = mUserBuckets.get(method);
+    return buckets != null ? buckets.size() : 0;
+  }
+
+  /**
+   * Gets the number of calls of a class that were refused for lack of a token.
+   */
+  public long getRejectedCount(Method method) {
+    return mRejectedCounts.get(method).get();
+  }
+
+  private TokenBucket getUserBucket(final Method method, Credential credential) {
+    Cache<String, TokenBucket> buckets = mUserBuckets.get(method);
+    if (buckets == null || credential == null) {
+      return null;
+    }
+    String key = credential.getRefreshToken() != null
+        ? credential.getRefreshToken() : credential.getAccessToken();
+    if (key == null) {
+      return null;
+    }
+    try {
+      return buckets.get(key, new Callable<TokenBucket>() {
+        @Override
+        public TokenBucket call() {
+          return new TokenBucket(method.mUserBurst, method.mUserPerSecond);
+        }
+      });
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private QuotaExceededException rejected(Method method, String bucket) {
+    mRejectedCounts.get(method).incrementAndGet();
+    return new QuotaExceededException(method,
+        "Over " + bucket + " " + method.getName() + " rate for Mirror API calls");
+  }
+}
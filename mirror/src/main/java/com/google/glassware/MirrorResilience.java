@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.glassware.util.CircuitBreaker;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Retries and circuit breakers for Mirror API calls.
+ * <p/>
+ * A call that fails with a 429, a 5xx or an I/O error is retried if it is idempotent, after an
+ * exponentially growing delay with full jitter: a random time up to
+ * {@code mirror.retry.initialDelayMs} (100 by default), doubling on each attempt up to
+ * {@code mirror.retry.maxDelayMs} (2000). It is tried at most {@code mirror.retry.maxAttempts}
+ * times (4), and never retried if the delay would take it past its deadline of
+ * {@code mirror.retry.deadlineMs} (10000) from the first attempt.
+ * <p/>
+ * Each endpoint also has a {@link CircuitBreaker}, which opens after
+ * {@code mirror.breaker.failureThreshold} (5) such failures in a row, not counting 429s, which
+ * are usually one user going over their own rate limit, and then refuses calls with
+ * a {@link CircuitOpenException} for {@code mirror.breaker.openSeconds} (30), so that an outage
+ * costs callers nothing rather than a timeout each.
+ */
+public class MirrorResilience {
+  private static final Logger LOG = Logger.getLogger(MirrorResilience.class.getSimpleName());
+
+  private static final MirrorResilience sShared = new MirrorResilience(
+      Integer.getInteger("mirror.retry.maxAttempts", 4),
+      Long.getLong("mirror.retry.initialDelayMs", 100),
+      Long.getLong("mirror.retry.maxDelayMs", 2000),
+      Long.getLong("mirror.retry.deadlineMs", 10000),
+      Integer.getInteger("mirror.breaker.failureThreshold", 5),
+      TimeUnit.SECONDS.toMillis(Integer.getInteger("mirror.breaker.openSeconds", 30)));
+
+  /**
+   * One attempt at a call.
+   */
+  public interface Call<T> {
+    T execute() throws IOException;
+  }
+
+  private final int mMaxAttempts;
+  private final long mInitialDelayMillis;
+  private final long mMaxDelayMillis;
+  private final long mDeadlineMillis;
+  private final int mFailureThreshold;
+  private final long mOpenMillis;
+  private final Random mRandom = new Random();
+  private final ConcurrentMap<String, CircuitBreaker> mBreakers =
+      new ConcurrentHashMap<String, CircuitBreaker>();
+
+  /**
+   * Gets the instance used by the app.
+   */
+  public static MirrorResilience getShared() {
+    return sShared;
+  }
+
+  /**
+   * Initializes an instance.
+   *
+   * @param maxAttempts        the most times to try an idempotent call
+   * @param initialDelayMillis the longest delay before the first retry
+   * @param maxDelayMillis     the longest delay before any retry
+   * @param deadlineMillis     how long after the first attempt to stop retrying
+   * @param failureThreshold   how many failures in a row open an endpoint's breaker
+   * @param openMillis         how long a breaker stays open before probing
+   */
+  public MirrorResilience(int maxAttempts, long initialDelayMillis, long maxDelayMillis,
+      long deadlineMillis, int failureThreshold, long openMillis) {
+    mMaxAttempts = maxAttempts;
+    mInitialDelayMillis = initialDelayMillis;
+    mMaxDelayMillis = maxDelayMillis;
+    mDeadlineMillis = deadlineMillis;
+    mFailureThreshold = failureThreshold;
+    mOpenMillis = openMillis;
+  }
+
+  /**
+   * Makes a call through its endpoint's breaker, retrying it if it is idempotent and fails
+   * transiently.
+   *
+   * @param endpoint   the endpoint called, such as {@code GET timeline}, which picks the breaker
+   * @param idempotent whether the call can safely be made again after a failure
+   * @param call       the call
+   * @throws CircuitOpenException if the endpoint's breaker is open
+   */
+  public <T> T call(String endpoint, boolean idempotent, Call<T> call) throws IOException {
+    CircuitBreaker breaker = getBreaker(endpoint);
+    long deadline = System.currentTimeMillis() + mDeadlineMillis;
+    IOException lastFailure = null;
+    for (int attempt = 1; ; attempt++) {
+      if (!breaker.allowRequest()) {
+        // A retry that finds the breaker just opened reports the failure that opened it.
+        throw lastFailure != null ? lastFailure : new CircuitOpenException(endpoint);
+      }
+      T result;
+      try {
+        result = call.execute();
+      } catch (IOException e) {
+        if (e instanceof HttpResponseException && !isTransient(e)) {
+          // The API answered, so it's up, even though it refused this call.
+          breaker.recordSuccess();
+          throw e;
+        }
+        if (!isTransient(e)) {
+          breaker.recordSkipped();
+          throw e;
+        }
+        if (isRateLimited(e)) {
+          // Usually one user over their own rate, which says nothing about the endpoint.
+          breaker.recordSkipped();
+        } else {
+          breaker.recordFailure();
+        }
+        long delay = nextDelay(attempt);
+        if (!idempotent || attempt >= mMaxAttempts
+            || System.currentTimeMillis() + delay > deadline) {
+          throw e;
+        }
+        LOG.fine("Retrying " + endpoint + " in " + delay + " ms after attempt " + attempt
+            + " failed: " + e.getMessage());
+        lastFailure = e;
+        sleep(delay);
+        continue;
+      } catch (RuntimeException e) {
+        breaker.recordSkipped();
+        throw e;
+      }
+      breaker.recordSuccess();
+      return result;
+    }
+  }
+
+  /**
+   * Gets the breakers of every endpoint called so far, by endpoint.
+   */
+  public List<CircuitBreaker> getBreakers() {
+    List<CircuitBreaker> breakers = new ArrayList<CircuitBreaker>(mBreakers.values());
+    Collections.sort(breakers, new Comparator<CircuitBreaker>() {
+      @Override
+      public int compare(CircuitBreaker a, CircuitBreaker b) {
+        return a.getName().compareTo(b.getName());
+      }
+    });
+    return breakers;
+  }
+
+  private CircuitBreaker getBreaker(String endpoint) {
+    CircuitBreaker breaker = mBreakers.get(endpoint);
+    if (breaker == null) {
+      CircuitBreaker newBreaker = new CircuitBreaker(endpoint, mFailureThreshold, mOpenMillis);
+      breaker = mBreakers.putIfAbsent(endpoint, newBreaker);
+      if (breaker == null) {
+        breaker = newBreaker;
+      }
+    }
+    return breaker;
+  }
+
+  /**
+   * Returns true if the failure is likely to go away by itself: the API is overloaded or down,
+   * or the connection failed.
+   */
+  private static boolean isTransient(IOException e) {
+    if (e instanceof HttpResponseException) {
+      int status = ((HttpResponseException) e).getStatusCode();
+      return status == 429 || status >= 500;
+    }
+    if (e instanceof SocketTimeoutException) {
+      return true;
+    }
+    return !(e instanceof QuotaExceededException || e instanceof CircuitOpenException
+        || e instanceof ConcurrencyLimitException || e instanceof InterruptedIOException);
+  }
+
+  private static boolean isRateLimited(IOException e) {
+    return e instanceof HttpResponseException
+        && ((HttpResponseException) e).getStatusCode() == 429;
+  }
+
+  private long nextDelay(int attempt) {
+    long cap = Math.min(mMaxDelayMillis, mInitialDelayMillis << Math.min(attempt - 1, 20));
+    synchronized (mRandom) {
+      return (long) (mRandom.nextDouble() * cap);
+    }
+  }
+
+  private static void sleep(long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to retry a Mirror API call");
+    }
+  }
+}
@@ -46,7 +46,7 @@ public class NewUserBootstrapper {
    * </ul>
    */
   public static void bootstrapNewUser(HttpServletRequest req, String userId) throws IOException {
-    Credential credential = AuthUtil.newAuthorizationCodeFlow().loadCredential(userId);
+    Credential credential = AuthUtil.getCredential(userId);
 
     try {
       // Subscribe to locations updates
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.services.mirror.model.Location;
+import com.google.api.services.mirror.model.MenuItem;
+import com.google.api.services.mirror.model.MenuValue;
+import com.google.api.services.mirror.model.NotificationConfig;
+import com.google.api.services.mirror.model.TimelineItem;
+import com.google.common.collect.Lists;
+import com.google.glassware.metrics.Histogram;
+import com.google.glassware.metrics.MetricsRegistry;
+import com.google.glassware.model.Landmarks;
+import com.google.glassware.model.LandmarksLoader;
+import com.google.glassware.model.Place;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes location notifications off the servlet thread, in three stages that each have
+ * their own worker pool and bounded queue:
+ * <ol>
+ * <li>location: load the user's credential and fetch their latest location from the Mirror
+ * API</li>
+ * <li>nearby: find the landmark closest to that location</li>
+ * <li>card: insert a timeline card about the landmark, unless the user was recently sent one
+ * about the same landmark (see {@link NotifiedPlacesCache})</li>
+ * </ol>
+ * A slow Mirror API only backs up the stages that call it; {@link #submit} never waits on it.
+ * Notifications are coalesced per user: when a newer notification arrives for a user whose
+ * previous one is still queued or in flight, the older one is dropped at its next stage, since
+ * only the user's latest location matters.
+ * When a stage's queue is full, its {@link RejectionPolicy} decides what happens to the new
+ * work.
+ * <p/>
+ * Each stage is configured with system properties named {@code notify.<stage>.threads},
+ * {@code notify.<stage>.queue} and {@code notify.<stage>.rejection}, where the rejection policy
+ * is one of {@code DROP_NEWEST}, {@code DROP_OLDEST} or {@code CALLER_RUNS}.
+ */
+public class NotificationPipeline {
+  private static final Logger LOG = Logger.getLogger(NotificationPipeline.class.getSimpleName());
+
+  private static final Histogram CARD_LATENCY = MetricsRegistry.getShared().histogram(
+      "notification_card_latency_seconds",
+      "Time from starting to parse a location notification to inserting its landmark card",
+      1e-9, MetricsRegistry.LATENCY_BUCKETS);
+  private static final Histogram LANDMARKS_QUERY_TIME = MetricsRegistry.getShared().histogram(
+      "landmarks_query_duration_seconds", "How long nearest landmark queries take", 1e-9,
+      MetricsRegistry.LATENCY_BUCKETS);
+  private static final Histogram LANDMARKS_QUERY_RESULTS = MetricsRegistry.getShared().histogram(
+      "landmarks_query_results", "How many landmarks nearest landmark queries return", 1,
+      new double[] {0, 1, 2, 5, 10, 20, 50, 100});
+
+  /**
+   * What a stage does with new work when its queue is full.
+   */
+  public enum RejectionPolicy {
+    /** Drop the new work. */
+    DROP_NEWEST,
+    /** Drop the oldest queued work to make room for the new work. */
+    DROP_OLDEST,
+    /** Run the new work on the submitting thread, slowing the submitter down. */
+    CALLER_RUNS
+  }
+
+  /**
+   * A location notification as it moves through the pipeline. Each stage fills in the fields
+   * the next one needs.
+   */
+  static class LocationJob {
+    final String userToken;
+    final String itemId;
+    final String iconUrl;
+    final long receivedNanos;
+    Credential credential;
+    Location location;
+    Place place;
+
+    /**
+     * The job this one replaced as the user's latest, kept only while this one is being
+     * queued, so that it can be put back if the location stage refuses this one.
+     */
+    volatile LocationJob previous;
+
+    /**
+     * Whether the location stage has accepted this job, or run or refused it. Until then the
+     * job doesn't supersede older ones, which it would otherwise make drop themselves even if
+     * it is refused.
+     */
+    volatile boolean submitted;
+
+    /**
+     * Whether this job has finished, been dropped or been superseded.
+     */
+    volatile boolean finished;
+
+    LocationJob(String userToken, String itemId, String iconUrl, long receivedNanos) {
+      this.userToken = userToken;
+      this.itemId = itemId;
+      this.iconUrl = iconUrl;
+      this.receivedNanos = receivedNanos;
+    }
+  }
+
+  /**
+   * A job's turn at one stage, which lets the rejection handlers clean up after the jobs they
+   * drop.
+   */
+  private abstract static class StageTask implements Runnable {
+    final LocationJob job;
+
+    StageTask(LocationJob job) {
+      this.job = job;
+    }
+  }
+
+  private final ThreadPoolExecutor mLocationStage;
+  private final ThreadPoolExecutor mNearbyStage;
+  private final ThreadPoolExecutor mCardStage;
+  private final NotifiedPlacesCache mNotifiedPlaces = new NotifiedPlacesCache();
+
+  /**
+   * The newest job submitted for each user that is still queued or in flight.
+   */
+  private final ConcurrentMap<String, LocationJob> mLatestJobs =
+      new ConcurrentHashMap<String, LocationJob>();
+  private final AtomicLong mSupersededCount = new AtomicLong();
+  private final AtomicLong mDroppedCount = new AtomicLong();
+
+  /**
+   * Initializes a pipeline whose stages are configured from system properties.
+   */
+  public NotificationPipeline() {
+    mLocationStage = newStage("location", 4, 1000);
+    mNearbyStage = newStage("nearby", 2, 1000);
+    mCardStage = newStage("card", 4, 1000);
+  }
+
+  /**
+   * Queues a location notification for processing and returns immediately.
+   *
+   * @param userToken     the user the notification is for
+   * @param itemId        the location ID to fetch, usually "latest"
+   * @param iconUrl       the absolute URL of the icon for the card's menu item
+   * @param receivedNanos the {@link System#nanoTime} at which the notification started to be
+   *                      parsed, from which the card's latency is measured
+   */
+  public void submit(String userToken, String itemId, String iconUrl, long receivedNanos) {
+    final LocationJob job = new LocationJob(userToken, itemId, iconUrl, receivedNanos);
+    job.previous = mLatestJobs.put(userToken, job);
+    mLocationStage.execute(new StageTask(job) {
+      @Override
+      public void run() {
+        fetchLocation(job);
+      }
+    });
+    job.previous = null;
+    job.submitted = true;
+  }
+
+  /**
+   * Stops accepting work and waits briefly for queued work to finish.
+   */
+  public void shutdown() {
+    ThreadPoolExecutor[] stages = {mLocationStage, mNearbyStage, mCardStage};
+    for (ThreadPoolExecutor stage : stages) {
+      stage.shutdown();
+      try {
+        stage.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private void fetchLocation(final LocationJob job) {
+    if (isSuperseded(job)) {
+      return;
+    }
+    try {
+      job.credential = AuthUtil.getCredential(job.userToken);
+      if (job.credential == null) {
+        LOG.warning("Dropping location notification for unknown user " + job.userToken);
+        finish(job);
+        return;
+      }
+      // item id is usually 'latest'
+      job.location = MirrorClient.getLocation(job.credential, job.itemId);
+      LOG.info("New location is " + job.location.getLatitude() + ", "
+          + job.location.getLongitude());
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Could not fetch location for user " + job.userToken, e);
+      finish(job);
+      return;
+    }
+
+    mNearbyStage.execute(new StageTask(job) {
+      @Override
+      public void run() {
+        findNearestPlace(job);
+      }
+    });
+  }
+
+  private void findNearestPlace(final LocationJob job) {
+    if (isSuperseded(job)) {
+      return;
+    }
+    Landmarks landmarks = LandmarksLoader.getShared().getLandmarks();
+    long queryStart = System.nanoTime();
+    List<Place> nearestPlaces = landmarks.getNearestLandmarks(job.location.getLatitude(),
+        job.location.getLongitude(), 1, Landmarks.MAX_DISTANCE_KM);
+    LANDMARKS_QUERY_TIME.recordSince(queryStart);
+    LANDMARKS_QUERY_RESULTS.record(nearestPlaces.size());
+    if (nearestPlaces.isEmpty()) {
+      LOG.info("Got a location ping, but not near anything interesting");
+      finish(job);
+      return;
+    }
+
+    // Tell the user about the closest place
+    job.place = nearestPlaces.get(0);
+    LOG.info("Nearest place is " + job.place.getName() + " in landmarks version "
+        + landmarks.getVersion());
+
+    if (!mNotifiedPlaces.markSent(job.userToken, job.place)) {
+      LOG.info("Already told user " + job.userToken + " about " + job.place.getName()
+          + "; skipping card (" + mNotifiedPlaces.getHitCount() + " cards skipped so far)");
+      finish(job);
+      return;
+    }
+
+    // From here on the job is not superseded: once the place is marked as sent, a newer job
+    // for the same place would skip its card, so this one has to deliver it.
+    mCardStage.execute(new StageTask(job) {
+      @Override
+      public void run() {
+        insertCard(job);
+      }
+    });
+  }
+
+  /**
+   * Returns true, and drops the job, if a newer notification has arrived for the same user.
+   * Only the newest location matters, so the older job's Mirror API calls and landmark query
+   * would be wasted.
+   */
+  private boolean isSuperseded(LocationJob job) {
+    LocationJob latest = mLatestJobs.get(job.userToken);
+    if (latest == job || (latest != null && !latest.submitted)) {
+      return false;
+    }
+    job.finished = true;
+    mSupersededCount.incrementAndGet();
+    LOG.fine("Dropping superseded location notification for user " + job.userToken);
+    return true;
+  }
+
+  /**
+   * Forgets the job once it has finished, unless a newer one has replaced it already.
+   */
+  private void finish(LocationJob job) {
+    job.finished = true;
+    mLatestJobs.remove(job.userToken, job);
+  }
+
+  /**
+   * Gets the number of notifications dropped because a newer one for the same user arrived
+   * while they were queued or in flight.
+   */
+  public long getSupersededCount() {
+    return mSupersededCount.get();
+  }
+
+  /**
+   * Gets the number of notifications dropped because a stage's queue was full, or because the
+   * pipeline was shutting down.
+   */
+  public long getDroppedCount() {
+    return mDroppedCount.get();
+  }
+
+  private void insertCard(LocationJob job) {
+    finish(job);
+    try {
+      MirrorClient.insertTimelineItem(
+          job.credential,
+          new TimelineItem()
+              .setText("Meow! Did you know you are close to " + job.place.getName())
+              .setNotification(new NotificationConfig().setLevel("DEFAULT"))
+              .setLocation(new Location()
+                  .setLatitude(job.place.getLatitude())
+                  .setLongitude(job.place.getLongitude()))
+              .setMenuItems(Lists.newArrayList(
+                  new MenuItem()
+                      .setAction("OPEN_URI")
+                      .setPayload("kittycompass://open")
+                      .setValues(
+                          Lists.newArrayList(new MenuValue()
+                              .setDisplayName("Open")
+                              .setIconUrl(job.iconUrl))
+                      )
+              ))
+      );
+      CARD_LATENCY.recordSince(job.receivedNanos);
+    } catch (Exception e) {
+      LOG.log(Level.WARNING, "Could not insert landmark card for user " + job.userToken, e);
+      mNotifiedPlaces.forget(job.userToken, job.place);
+    }
+  }
+
+  /**
+   * Gets the cache of landmark cards recently sent to each user.
+   */
+  public NotifiedPlacesCache getNotifiedPlaces() {
+    return mNotifiedPlaces;
+  }
+
+  /**
+   * Creates the worker pool for one stage, configured from the stage's system properties.
+   */
+  private ThreadPoolExecutor newStage(final String name, int defaultThreads,
+      int defaultQueueSize) {
+    int threads = Integer.getInteger("notify." + name + ".threads", defaultThreads);
+    int queueSize = Integer.getInteger("notify." + name + ".queue", defaultQueueSize);
+    RejectionPolicy policy = RejectionPolicy.valueOf(
+        System.getProperty("notify." + name + ".rejection", RejectionPolicy.DROP_NEWEST.name()));
+
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          private final AtomicInteger mCount = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "notify-" + name + "-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        }, newRejectionHandler(name, policy));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Creates the handler that applies a stage's rejection policy. Unlike the JDK's discard
+   * policies, it finishes the jobs it drops, so they don't linger in {@link #mLatestJobs}, and
+   * counts them.
+   */
+  private RejectedExecutionHandler newRejectionHandler(final String name,
+      final RejectionPolicy policy) {
+    return new RejectedExecutionHandler() {
+      @Override
+      public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+          dropped(runnable, executor);
+          return;
+        }
+        LOG.warning("The " + name + " stage is full; applying the configured rejection policy");
+        switch (policy) {
+          case DROP_OLDEST:
+            Runnable oldest = executor.getQueue().poll();
+            if (oldest != null) {
+              dropped(oldest, executor);
+            }
+            executor.execute(runnable);
+            break;
+          case CALLER_RUNS:
+            runnable.run();
+            break;
+          default:
+            dropped(runnable, executor);
+            break;
+        }
+      }
+    };
+  }
+
+  private void dropped(Runnable runnable, ThreadPoolExecutor stage) {
+    mDroppedCount.incrementAndGet();
+    if (runnable instanceof StageTask) {
+      LocationJob job = ((StageTask) runnable).job;
+      LocationJob previous = job.previous;
+      if (previous != null && !previous.finished
+          && mLatestJobs.replace(job.userToken, job, previous)) {
+        // A refused job must not cost the user the one it replaced, which would otherwise
+        // find itself superseded and drop too. The previous job may have finished meanwhile,
+        // and then it must not be left behind as the latest.
+        job.finished = true;
+        if (previous.finished) {
+          mLatestJobs.remove(job.userToken, previous);
+        }
+      } else {
+        finish(job);
+      }
+      if (stage == mCardStage) {
+        // The place was marked as sent before its card was queued; the card will never be
+        // sent now, so a later notification must be free to send it.
+        mNotifiedPlaces.forget(job.userToken, job.place);
+      }
+    }
+  }
+}
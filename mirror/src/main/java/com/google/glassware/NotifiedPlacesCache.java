@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.glassware.model.Place;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which landmarks each user has recently been sent a card about, so that repeated
+ * location pings near the same place don't insert duplicate cards. Entries expire after a
+ * configurable time ({@code notify.dedupe.ttlMinutes}, 60 by default) and the cache holds at
+ * most {@code notify.dedupe.maxEntries} entries (100000 by default), evicting the least
+ * recently used ones beyond that.
+ */
+public class NotifiedPlacesCache {
+
+  private final Cache<Key, Boolean> mSent;
+  private final AtomicLong mHits = new AtomicLong();
+  private final AtomicLong mMisses = new AtomicLong();
+
+  /**
+   * Initializes a cache configured from system properties.
+   */
+  public NotifiedPlacesCache() {
+    this(Long.getLong("notify.dedupe.ttlMinutes", 60), TimeUnit.MINUTES,
+        Long.getLong("notify.dedupe.maxEntries", 100000));
+  }
+
+  /**
+   * Initializes a cache with the specified expiry and size limit.
+   */
+  public NotifiedPlacesCache(long ttl, TimeUnit unit, long maxEntries) {
+    mSent = CacheBuilder.newBuilder()
+        .expireAfterWrite(ttl, unit)
+        .maximumSize(maxEntries)
+        .build();
+  }
+
+  /**
+   * Records that a card about the place is about to be sent to the user, unless one was sent
+   * recently.
+   *
+   * @return true if the card should be sent, or false if the user was already told about this
+   * place and the card can be skipped
+   */
+  public boolean markSent(String userToken, Place place) {
+    if (mSent.asMap().putIfAbsent(new Key(userToken, place), Boolean.TRUE) == null) {
+      mMisses.incrementAndGet();
+      return true;
+    }
+    mHits.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Forgets that a card about the place was sent to the user, so the next ping near it sends one
+   * again. Used when sending the card failed.
+   */
+  public void forget(String userToken, Place place) {
+    mSent.invalidate(new Key(userToken, place));
+  }
+
+  /**
+   * Gets the number of cards skipped because they had been sent recently. Each one is a Mirror
+   * API call saved.
+   */
+  public long getHitCount() {
+    return mHits.get();
+  }
+
+  /**
+   * Gets the number of cards that were not found in the cache and so were sent.
+   */
+  public long getMissCount() {
+    return mMisses.get();
+  }
+
+  /**
+   * Identifies a place sent to a user. Landmarks have no IDs of their own, so a place is
+   * identified by its name and coordinates, which stay the same across landmark reloads.
+   */
+  private static final class Key {
+    private final String mUserToken;
+    private final String mName;
+    private final double mLatitude;
+    private final double mLongitude;
+
+    Key(String userToken, Place place) {
+      mUserToken = userToken;
+      mName = place.getName();
+      mLatitude = place.getLatitude();
+      mLongitude = place.getLongitude();
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) object;
+      return mUserToken.equals(other.mUserToken) && mName.equals(other.mName)
+          && Double.compare(mLatitude, other.mLatitude) == 0
+          && Double.compare(mLongitude, other.mLongitude) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(mUserToken, mName, mLatitude, mLongitude);
+    }
+  }
+}
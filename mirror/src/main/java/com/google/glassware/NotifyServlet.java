@@ -15,29 +15,23 @@
  */
 package com.google.glassware;
 
-import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.services.mirror.Mirror;
-import com.google.api.services.mirror.model.Location;
-import com.google.api.services.mirror.model.MenuItem;
-import com.google.api.services.mirror.model.MenuValue;
 import com.google.api.services.mirror.model.Notification;
-import com.google.api.services.mirror.model.NotificationConfig;
-import com.google.api.services.mirror.model.TimelineItem;
-import com.google.common.collect.Lists;
-import com.google.glassware.model.Landmarks;
-import com.google.glassware.model.Place;
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.glassware.metrics.Gauge;
+import com.google.glassware.metrics.MetricsRegistry;
+import com.google.glassware.util.LimitedInputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.Writer;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -48,93 +42,99 @@ import java.util.logging.Logger;
 public class NotifyServlet extends HttpServlet {
   private static final Logger LOG = Logger.getLogger(NotifyServlet.class.getSimpleName());
 
+  /**
+   * The longest notification body accepted, in bytes.
+   */
+  private static final int MAX_NOTIFICATION_BYTES =
+      Integer.getInteger("notify.maxBytes", 64 * 1024);
+
+  /**
+   * Logs the raw body of every Nth notification, for debugging; 0 (the default) logs none.
+   */
+  private static final int DEBUG_SAMPLE_INTERVAL =
+      Integer.getInteger("notify.debugSampleInterval", 0);
+
+  private static final AtomicLong sNotificationCount = new AtomicLong();
+
+  private NotificationPipeline mPipeline;
+
+  @Override
+  public void init() throws ServletException {
+    mPipeline = new NotificationPipeline();
+
+    final NotificationPipeline pipeline = mPipeline;
+    MetricsRegistry registry = MetricsRegistry.getShared();
+    registry.counter("notifications_superseded_total",
+        "Location notifications dropped because a newer one arrived for the same user", null,
+        null, new Gauge() {
+          @Override
+          public double getValue() {
+            return pipeline.getSupersededCount();
+          }
+        });
+    registry.counter("notifications_dropped_total",
+        "Location notifications dropped because a pipeline stage was full", null, null,
+        new Gauge() {
+          @Override
+          public double getValue() {
+            return pipeline.getDroppedCount();
+          }
+        });
+    registry.counter("notification_cards_skipped_total",
+        "Landmark cards not sent because the user was recently sent the same one", null, null,
+        new Gauge() {
+          @Override
+          public double getValue() {
+            return pipeline.getNotifiedPlaces().getHitCount();
+          }
+        });
+  }
+
+  @Override
+  public void destroy() {
+    mPipeline.shutdown();
+  }
 
   @Override
   protected void doPost(HttpServletRequest request, HttpServletResponse response)
       throws ServletException, IOException {
+    // No notification would ever be this long. Something is very wrong.
+    if (request.getContentLength() > MAX_NOTIFICATION_BYTES) {
+      response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+      return;
+    }
+
     // Respond with OK and status 200 in a timely fashion to prevent redelivery
     response.setContentType("text/html");
     Writer writer = response.getWriter();
     writer.append("OK");
     writer.close();
 
-    // Get the notification object from the request body (into a string so we
-    // can log it)
-    BufferedReader notificationReader =
-        new BufferedReader(new InputStreamReader(request.getInputStream()));
-    String notificationString = "";
-
-    // Count the lines as a very basic way to prevent Denial of Service attacks
-    int lines = 0;
-    while (notificationReader.ready()) {
-      notificationString += notificationReader.readLine();
-      lines++;
-
-      // No notification would ever be this long. Something is very wrong.
-      if (lines > 1000) {
-        throw new IOException("Attempted to parse notification payload that was unexpectedly long.");
-      }
+    // Parse the notification straight from the request body with the shared JSON factory,
+    // failing if the body turns out to be longer than the limit.
+    long parseStart = System.nanoTime();
+    InputStream body = new LimitedInputStream(request.getInputStream(), MAX_NOTIFICATION_BYTES);
+    if (DEBUG_SAMPLE_INTERVAL > 0
+        && sNotificationCount.incrementAndGet() % DEBUG_SAMPLE_INTERVAL == 0) {
+      byte[] payload = ByteStreams.toByteArray(body);
+      LOG.info("got raw notification " + new String(payload, Charsets.UTF_8));
+      body = new ByteArrayInputStream(payload);
     }
+    Notification notification = MirrorClient.getJsonFactory()
+        .fromInputStream(body, Charsets.UTF_8, Notification.class);
 
-    LOG.info("got raw notification " + notificationString);
-
-    JsonFactory jsonFactory = new JacksonFactory();
-
-    // If logging the payload is not as important, use
-    // jacksonFactory.fromInputStream instead.
-    Notification notification = jsonFactory.fromString(notificationString, Notification.class);
-
-    LOG.info("Got a notification with ID: " + notification.getItemId());
-
-    // Figure out the impacted user and get their credentials for API calls
-    String userId = notification.getUserToken();
-    Credential credential = AuthUtil.getCredential(userId);
-    Mirror mirrorClient = MirrorClient.getMirror(credential);
-
-    if (notification.getCollection().equals("locations")) {
-      LOG.info("Notification of updated location");
-      Mirror glass = MirrorClient.getMirror(credential);
-      // item id is usually 'latest'
-      Location location = glass.locations().get(notification.getItemId()).execute();
-
-      LOG.info("New location is " + location.getLatitude() + ", " + location.getLongitude());
-
-      Landmarks landmarks = new Landmarks();
-      List<Place> nearbyPlaces =
-          landmarks.getNearbyLandmarks(location.getLatitude(), location.getLongitude());
-      if (nearbyPlaces.size() > 0) {
-        LOG.info("Found " + nearbyPlaces.size() + " places");
-
-        // Pick an arbitrary place
-        Place arbitraryNearbyPlace = nearbyPlaces.get(0);
-
-        // If you're doing this for real, don't re-send a notification you've already sent
-
-        MirrorClient.insertTimelineItem(
-            credential,
-            new TimelineItem()
-                .setText("Meow! Did you know you are close to " + arbitraryNearbyPlace.getName())
-                .setNotification(new NotificationConfig().setLevel("DEFAULT"))
-                .setLocation(new Location()
-                    .setLatitude(arbitraryNearbyPlace.getLatitude())
-                    .setLongitude(arbitraryNearbyPlace.getLongitude()))
-                .setMenuItems(Lists.newArrayList(
-                    new MenuItem()
-                        .setAction("OPEN_URI")
-                        .setPayload("kittycompass://open")
-                        .setValues(
-                            Lists.newArrayList(new MenuValue()
-                                .setDisplayName("Open")
-                                .setIconUrl(WebUtil.buildUrl(request, "/static/images/ic_compass.png")))
-                        )
-                ))
-        );
-      } else {
-        LOG.info("Got a location ping, but not near anything interesting");
-      }
+    if (LOG.isLoggable(Level.FINE)) {
+      LOG.fine("Got a notification with ID: " + notification.getItemId());
+    }
 
+    if ("locations".equals(notification.getCollection())) {
+      // The Mirror API calls and landmark lookup happen on the pipeline's own threads
+      mPipeline.submit(notification.getUserToken(), notification.getItemId(),
+          WebUtil.buildUrl(request, "/static/images/ic_compass.png"), parseStart);
     } else {
-      LOG.warning("I don't know how to handle this notification, so ignoring " + notificationString);
+      LOG.warning("I don't know how to handle notifications for the "
+          + notification.getCollection() + " collection, so ignoring item "
+          + notification.getItemId());
     }
   }
 
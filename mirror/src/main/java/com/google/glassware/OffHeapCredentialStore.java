@@ -0,0 +1,583 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+/**
+ * A credential store that keeps credentials outside the Java heap, for servers with many users.
+ * <p/>
+ * Each credential lives in a fixed-width slot in a direct {@link ByteBuffer}, so the heap holds
+ * no objects per user and the garbage collector never has to trace them. Slots are allocated in
+ * chunks as the user count grows and are found through an open-addressed hash table of slot
+ * numbers keyed by user ID. Deleted slots are reused. Slots are sized for typical tokens; the
+ * rare token that doesn't fit is kept on the heap instead.
+ * <p/>
+ * The store is bounded in two ways. Credentials that haven't been stored or loaded for longer
+ * than the maximum idle time are removed by a periodic sweep, since those users have stopped
+ * using the app. When every slot up to the maximum user count is taken, storing a new user
+ * evicts the least recently used of a small random sample of users. Evicted users authorize
+ * again the next time they visit.
+ */
+public class OffHeapCredentialStore implements ListableCredentialStore {
+  private static final Logger LOG =
+      Logger.getLogger(OffHeapCredentialStore.class.getSimpleName());
+
+  /**
+   * The longest user ID, access token and refresh token a slot can hold, in UTF-8 bytes. Google
+   * allows access tokens of up to 2048 bytes and refresh tokens of up to 512, but issues much
+   * shorter ones, so slots hold the usual sizes and longer tokens go in
+   * {@link #mOversizedAccessTokens} and {@link #mOversizedRefreshTokens}.
+   */
+  static final int MAX_USER_ID_BYTES = 64;
+  static final int MAX_ACCESS_TOKEN_BYTES = 256;
+  static final int MAX_REFRESH_TOKEN_BYTES = 128;
+
+  /**
+   * The length recorded in a slot for a token kept on the heap because it didn't fit. A
+   * missing token's length is -1.
+   */
+  private static final short OVERSIZED_LENGTH = -2;
+
+  // The layout of a slot.
+  private static final int IN_USE_OFFSET = 0;
+  private static final int USER_ID_LENGTH_OFFSET = 1;
+  private static final int ACCESS_TOKEN_LENGTH_OFFSET = 2;
+  private static final int REFRESH_TOKEN_LENGTH_OFFSET = 4;
+  private static final int HAS_EXPIRATION_OFFSET = 6;
+  private static final int EXPIRATION_OFFSET = 8;
+  private static final int LAST_USED_OFFSET = 16;
+  private static final int HASH_OFFSET = 20;
+  private static final int USER_ID_OFFSET = 24;
+  private static final int ACCESS_TOKEN_OFFSET = USER_ID_OFFSET + MAX_USER_ID_BYTES;
+  private static final int REFRESH_TOKEN_OFFSET = ACCESS_TOKEN_OFFSET + MAX_ACCESS_TOKEN_BYTES;
+  static final int SLOT_BYTES = REFRESH_TOKEN_OFFSET + MAX_REFRESH_TOKEN_BYTES;
+
+  private static final int SLOTS_PER_CHUNK_SHIFT = 10;
+  private static final int SLOTS_PER_CHUNK = 1 << SLOTS_PER_CHUNK_SHIFT;
+
+  /**
+   * The number of users sampled when one has to be evicted to make room.
+   */
+  private static final int EVICTION_SAMPLES = 16;
+
+  private static final long SWEEP_INTERVAL_MINUTES = 60;
+
+  private final int mMaxUsers;
+  private final int mMaxIdleMinutes;
+  private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+  private final Random mRandom = new Random();
+  private final ScheduledExecutorService mSweeper;
+
+  private final List<ByteBuffer> mChunks = new ArrayList<ByteBuffer>();
+  private int mSlotCount;
+  private int[] mFreeSlots = new int[16];
+  private int mFreeSlotCount;
+  private int mSize;
+
+  /**
+   * The hash table: each entry is a slot number plus one, or zero if the entry is empty.
+   */
+  private int[] mTable = new int[1024];
+
+  /**
+   * Tokens too long for their slot, by user ID. Guarded by {@link #mLock}.
+   */
+  private final Map<String, String> mOversizedAccessTokens = new HashMap<String, String>();
+  private final Map<String, String> mOversizedRefreshTokens = new HashMap<String, String>();
+
+  /**
+   * Initializes an empty store and starts sweeping it for idle users.
+   *
+   * @param maxUsers    the most credentials to hold before evicting users to make room
+   * @param maxIdleDays how long a credential can go unused before it's removed
+   */
+  public OffHeapCredentialStore(int maxUsers, int maxIdleDays) {
+    mMaxUsers = maxUsers;
+    mMaxIdleMinutes = (int) Math.min(Integer.MAX_VALUE, TimeUnit.DAYS.toMinutes(maxIdleDays));
+    mSweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "credential-sweeper");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    mSweeper.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        int removed = removeIdle();
+        LOG.info("Removed " + removed + " idle credentials; holding " + size() + " in "
+            + getResidentBytes() / 1024 + " KB (" + getResidentBytesPerUser() + " bytes per user)");
+      }
+    }, SWEEP_INTERVAL_MINUTES, SWEEP_INTERVAL_MINUTES, TimeUnit.MINUTES);
+  }
+
+  @Override
+  public void store(String userId, Credential credential) throws IOException {
+    store(userId, credential, true);
+  }
+
+  /**
+   * Stores a credential, optionally leaving its last use as it was, so that storing a token
+   * refreshed in the background doesn't keep an idle user from being removed.
+   */
+  void store(String userId, Credential credential, boolean markUsed) throws IOException {
+    byte[] userIdBytes = encode(userId);
+    if (userIdBytes.length > MAX_USER_ID_BYTES) {
+      throw new IOException("The user ID is " + userIdBytes.length + " bytes long; at most "
+          + MAX_USER_ID_BYTES + " fit in a credential slot");
+    }
+    byte[] accessToken = encode(credential.getAccessToken());
+    byte[] refreshToken = encode(credential.getRefreshToken());
+    Long expirationTimeMillis = credential.getExpirationTimeMilliseconds();
+    int hash = hash(userId);
+
+    mLock.writeLock().lock();
+    try {
+      int slot = find(userIdBytes, hash);
+      if (slot < 0) {
+        markUsed = true;
+        slot = allocateSlot();
+        ByteBuffer chunk = getChunk(slot);
+        int base = getBase(slot);
+        chunk.put(base + IN_USE_OFFSET, (byte) 1);
+        chunk.putInt(base + HASH_OFFSET, hash);
+        chunk.put(base + USER_ID_LENGTH_OFFSET, (byte) userIdBytes.length);
+        putBytes(chunk, base + USER_ID_OFFSET, userIdBytes);
+        insert(slot, hash);
+        mSize++;
+      }
+      ByteBuffer chunk = getChunk(slot);
+      int base = getBase(slot);
+      putToken(chunk, base + ACCESS_TOKEN_LENGTH_OFFSET, base + ACCESS_TOKEN_OFFSET,
+          MAX_ACCESS_TOKEN_BYTES, accessToken, userId, credential.getAccessToken(),
+          mOversizedAccessTokens);
+      putToken(chunk, base + REFRESH_TOKEN_LENGTH_OFFSET, base + REFRESH_TOKEN_OFFSET,
+          MAX_REFRESH_TOKEN_BYTES, refreshToken, userId, credential.getRefreshToken(),
+          mOversizedRefreshTokens);
+      chunk.put(base + HAS_EXPIRATION_OFFSET, (byte) (expirationTimeMillis != null ? 1 : 0));
+      chunk.putLong(base + EXPIRATION_OFFSET,
+          expirationTimeMillis != null ? expirationTimeMillis : 0);
+      if (markUsed) {
+        chunk.putInt(base + LAST_USED_OFFSET, getCurrentMinute());
+      }
+    } finally {
+      mLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void delete(String userId, Credential credential) throws IOException {
+    byte[] userIdBytes = userId.getBytes(Charsets.UTF_8);
+    if (userIdBytes.length > MAX_USER_ID_BYTES) {
+      return;
+    }
+    mLock.writeLock().lock();
+    try {
+      int slot = find(userIdBytes, hash(userId));
+      if (slot >= 0) {
+        remove(slot);
+      }
+    } finally {
+      mLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean load(String userId, Credential credential) {
+    return load(userId, credential, true);
+  }
+
+  /**
+   * Loads a credential, optionally leaving its last use as it was.
+   */
+  boolean load(String userId, Credential credential, boolean markUsed) {
+    byte[] userIdBytes = userId.getBytes(Charsets.UTF_8);
+    if (userIdBytes.length > MAX_USER_ID_BYTES) {
+      return false;
+    }
+    String accessToken;
+    String refreshToken;
+    Long expirationTimeMillis;
+    mLock.readLock().lock();
+    try {
+      int slot = find(userIdBytes, hash(userId));
+      if (slot < 0) {
+        return false;
+      }
+      ByteBuffer chunk = getChunk(slot);
+      int base = getBase(slot);
+      accessToken = getToken(chunk, base + ACCESS_TOKEN_LENGTH_OFFSET,
+          base + ACCESS_TOKEN_OFFSET, userId, mOversizedAccessTokens);
+      refreshToken = getToken(chunk, base + REFRESH_TOKEN_LENGTH_OFFSET,
+          base + REFRESH_TOKEN_OFFSET, userId, mOversizedRefreshTokens);
+      expirationTimeMillis = chunk.get(base + HAS_EXPIRATION_OFFSET) != 0
+          ? chunk.getLong(base + EXPIRATION_OFFSET) : null;
+      if (markUsed) {
+        // Readers may race to update this, but any of their times will do.
+        chunk.putInt(base + LAST_USED_OFFSET, getCurrentMinute());
+      }
+    } finally {
+      mLock.readLock().unlock();
+    }
+    credential.setAccessToken(accessToken);
+    credential.setRefreshToken(refreshToken);
+    credential.setExpirationTimeMilliseconds(expirationTimeMillis);
+    return true;
+  }
+
+  @Override
+  public List<String> listAllUsers() {
+    mLock.readLock().lock();
+    try {
+      List<String> users = new ArrayList<String>(mSize);
+      for (int slot = 0; slot < mSlotCount; slot++) {
+        ByteBuffer chunk = getChunk(slot);
+        int base = getBase(slot);
+        if (chunk.get(base + IN_USE_OFFSET) != 0) {
+          users.add(getString(chunk, base + USER_ID_OFFSET,
+              chunk.get(base + USER_ID_LENGTH_OFFSET)));
+        }
+      }
+      return users;
+    } finally {
+      mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Iterates over a copy of the stored user IDs, since the slots they live in can be reused
+   * while the caller iterates.
+   */
+  @Override
+  public Iterator<String> iterateUsers() {
+    return listAllUsers().iterator();
+  }
+
+  @Override
+  public int size() {
+    mLock.readLock().lock();
+    try {
+      return mSize;
+    } finally {
+      mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the memory used by the slots and the hash table, in bytes.
+   */
+  public long getResidentBytes() {
+    mLock.readLock().lock();
+    try {
+      return (long) mChunks.size() * SLOTS_PER_CHUNK * SLOT_BYTES + 4L * mTable.length
+          + 4L * mFreeSlots.length;
+    } finally {
+      mLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the memory used per stored credential, in bytes, for sizing servers. This includes
+   * the slots of deleted users that haven't been reused yet.
+   */
+  public long getResidentBytesPerUser() {
+    int size = size();
+    return size == 0 ? 0 : getResidentBytes() / size;
+  }
+
+  /**
+   * Removes every credential that has gone unused for longer than the maximum idle time.
+   *
+   * @return the number of credentials removed
+   */
+  int removeIdle() {
+    int oldestAllowed = getCurrentMinute() - mMaxIdleMinutes;
+    int[] idleSlots = new int[16];
+    int idleCount = 0;
+    mLock.readLock().lock();
+    try {
+      for (int slot = 0; slot < mSlotCount; slot++) {
+        ByteBuffer chunk = getChunk(slot);
+        int base = getBase(slot);
+        if (chunk.get(base + IN_USE_OFFSET) != 0
+            && chunk.getInt(base + LAST_USED_OFFSET) < oldestAllowed) {
+          if (idleCount == idleSlots.length) {
+            idleSlots = Arrays.copyOf(idleSlots, idleCount * 2);
+          }
+          idleSlots[idleCount++] = slot;
+        }
+      }
+    } finally {
+      mLock.readLock().unlock();
+    }
+
+    int removed = 0;
+    mLock.writeLock().lock();
+    try {
+      for (int i = 0; i < idleCount; i++) {
+        // The user may have come back, or the slot been reused, since the scan.
+        int slot = idleSlots[i];
+        ByteBuffer chunk = getChunk(slot);
+        int base = getBase(slot);
+        if (chunk.get(base + IN_USE_OFFSET) != 0
+            && chunk.getInt(base + LAST_USED_OFFSET) < oldestAllowed) {
+          remove(slot);
+          removed++;
+        }
+      }
+    } finally {
+      mLock.writeLock().unlock();
+    }
+    return removed;
+  }
+
+  /**
+   * Stops sweeping for idle users. The credentials remain available.
+   */
+  @Override
+  public void close() {
+    mSweeper.shutdownNow();
+  }
+
+  /**
+   * Finds the slot holding the specified user, or returns -1. Requires the lock.
+   */
+  private int find(byte[] userIdBytes, int hash) {
+    int mask = mTable.length - 1;
+    for (int index = hash & mask; mTable[index] != 0; index = (index + 1) & mask) {
+      int slot = mTable[index] - 1;
+      ByteBuffer chunk = getChunk(slot);
+      int base = getBase(slot);
+      if (chunk.getInt(base + HASH_OFFSET) == hash
+          && chunk.get(base + USER_ID_LENGTH_OFFSET) == userIdBytes.length
+          && equalBytes(chunk, base + USER_ID_OFFSET, userIdBytes)) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Adds a slot to the hash table, growing the table if it's half full. Requires the write lock.
+   */
+  private void insert(int slot, int hash) {
+    if (2 * (mSize + 1) > mTable.length) {
+      int[] oldTable = mTable;
+      mTable = new int[oldTable.length * 2];
+      for (int entry : oldTable) {
+        if (entry != 0) {
+          insertEntry(entry, getChunk(entry - 1).getInt(getBase(entry - 1) + HASH_OFFSET));
+        }
+      }
+    }
+    insertEntry(slot + 1, hash);
+  }
+
+  private void insertEntry(int entry, int hash) {
+    int mask = mTable.length - 1;
+    int index = hash & mask;
+    while (mTable[index] != 0) {
+      index = (index + 1) & mask;
+    }
+    mTable[index] = entry;
+  }
+
+  /**
+   * Removes a slot from the hash table and frees it. Requires the write lock.
+   */
+  private void remove(int slot) {
+    int hash = getChunk(slot).getInt(getBase(slot) + HASH_OFFSET);
+    int mask = mTable.length - 1;
+    int index = hash & mask;
+    while (mTable[index] != slot + 1) {
+      index = (index + 1) & mask;
+    }
+
+    // Shift later entries of the probe run back so that lookups never stop at the gap.
+    int gap = index;
+    for (int next = (gap + 1) & mask; mTable[next] != 0; next = (next + 1) & mask) {
+      int entry = mTable[next];
+      int home = getChunk(entry - 1).getInt(getBase(entry - 1) + HASH_OFFSET) & mask;
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        mTable[gap] = entry;
+        gap = next;
+      }
+    }
+    mTable[gap] = 0;
+
+    ByteBuffer chunk = getChunk(slot);
+    int base = getBase(slot);
+    if (chunk.getShort(base + ACCESS_TOKEN_LENGTH_OFFSET) == OVERSIZED_LENGTH
+        || chunk.getShort(base + REFRESH_TOKEN_LENGTH_OFFSET) == OVERSIZED_LENGTH) {
+      String userId = getString(chunk, base + USER_ID_OFFSET,
+          chunk.get(base + USER_ID_LENGTH_OFFSET));
+      mOversizedAccessTokens.remove(userId);
+      mOversizedRefreshTokens.remove(userId);
+    }
+    // Clear the tokens so they don't linger in memory.
+    for (int i = 0; i < SLOT_BYTES; i++) {
+      chunk.put(base + i, (byte) 0);
+    }
+    if (mFreeSlotCount == mFreeSlots.length) {
+      mFreeSlots = Arrays.copyOf(mFreeSlots, mFreeSlotCount * 2);
+    }
+    mFreeSlots[mFreeSlotCount++] = slot;
+    mSize--;
+  }
+
+  /**
+   * Gets an unused slot, evicting a user if the store is full. Requires the write lock.
+   */
+  private int allocateSlot() {
+    if (mFreeSlotCount == 0 && mSlotCount >= mMaxUsers) {
+      evictOne();
+    }
+    if (mFreeSlotCount > 0) {
+      return mFreeSlots[--mFreeSlotCount];
+    }
+    if (mSlotCount == mChunks.size() * SLOTS_PER_CHUNK) {
+      mChunks.add(ByteBuffer.allocateDirect(SLOTS_PER_CHUNK * SLOT_BYTES));
+    }
+    return mSlotCount++;
+  }
+
+  /**
+   * Evicts the least recently used of a random sample of users. Requires the write lock.
+   */
+  private void evictOne() {
+    int victim = -1;
+    int victimLastUsed = Integer.MAX_VALUE;
+    for (int i = 0; i < EVICTION_SAMPLES; i++) {
+      int slot = mRandom.nextInt(mSlotCount);
+      ByteBuffer chunk = getChunk(slot);
+      int base = getBase(slot);
+      if (chunk.get(base + IN_USE_OFFSET) != 0
+          && chunk.getInt(base + LAST_USED_OFFSET) < victimLastUsed) {
+        victim = slot;
+        victimLastUsed = chunk.getInt(base + LAST_USED_OFFSET);
+      }
+    }
+    if (victim >= 0) {
+      LOG.fine("Credential store is full; evicting the user in slot " + victim);
+      remove(victim);
+    }
+  }
+
+  private ByteBuffer getChunk(int slot) {
+    return mChunks.get(slot >>> SLOTS_PER_CHUNK_SHIFT);
+  }
+
+  private static int getBase(int slot) {
+    return (slot & (SLOTS_PER_CHUNK - 1)) * SLOT_BYTES;
+  }
+
+  private static int hash(String userId) {
+    int hash = userId.hashCode();
+    // Spread the bits so that sequential IDs don't cluster in the table.
+    hash *= 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  private static int getCurrentMinute() {
+    return (int) TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+  }
+
+  private static byte[] encode(String value) {
+    return value == null ? null : value.getBytes(Charsets.UTF_8);
+  }
+
+  /**
+   * Writes a token into its place in a slot, or into the heap if it doesn't fit there.
+   * Requires the write lock.
+   *
+   * @param lengthOffset    where in the chunk the token's length goes
+   * @param offset          where in the chunk the token's bytes go
+   * @param maxBytes        how many bytes fit
+   * @param bytes           the token's bytes, or null if there is no token
+   * @param userId          the user the token belongs to
+   * @param token           the token, or null
+   * @param oversizedTokens where tokens of this kind go if they don't fit
+   */
+  private static void putToken(ByteBuffer chunk, int lengthOffset, int offset, int maxBytes,
+      byte[] bytes, String userId, String token, Map<String, String> oversizedTokens) {
+    if (bytes != null && bytes.length > maxBytes) {
+      chunk.putShort(lengthOffset, OVERSIZED_LENGTH);
+      oversizedTokens.put(userId, token);
+      return;
+    }
+    oversizedTokens.remove(userId);
+    chunk.putShort(lengthOffset, (short) (bytes == null ? -1 : bytes.length));
+    if (bytes != null) {
+      putBytes(chunk, offset, bytes);
+    }
+  }
+
+  /**
+   * Reads a token written by {@link #putToken}. Requires the lock.
+   */
+  private static String getToken(ByteBuffer chunk, int lengthOffset, int offset, String userId,
+      Map<String, String> oversizedTokens) {
+    short length = chunk.getShort(lengthOffset);
+    return length == OVERSIZED_LENGTH
+        ? oversizedTokens.get(userId) : getString(chunk, offset, length);
+  }
+
+  private static void putBytes(ByteBuffer chunk, int offset, byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++) {
+      chunk.put(offset + i, bytes[i]);
+    }
+  }
+
+  private static boolean equalBytes(ByteBuffer chunk, int offset, byte[] bytes) {
+    for (int i = 0; i < bytes.length; i++) {
+      if (chunk.get(offset + i) != bytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String getString(ByteBuffer chunk, int offset, int length) {
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = chunk.get(offset + i);
+    }
+    return new String(bytes, Charsets.UTF_8);
+  }
+}
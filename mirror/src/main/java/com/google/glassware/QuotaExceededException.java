@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a Mirror API call is not made because {@link MirrorQuota} had no token for it
+ * before the caller's deadline.
+ */
+public class QuotaExceededException extends IOException {
+
+  private final MirrorQuota.Method mMethod;
+
+  public QuotaExceededException(MirrorQuota.Method method, String message) {
+    super(message);
+    mMethod = method;
+  }
+
+  /**
+   * Gets the class of call that was over its rate.
+   */
+  public MirrorQuota.Method getMethod() {
+    return mMethod;
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.glassware.util.TokenBucket;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Reports the live state of the {@link MirrorQuota} buckets as JSON, one object per class of
+ * Mirror API call.
+ */
+public class QuotaServlet extends HttpServlet {
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
+    MirrorQuota quota = MirrorQuota.getShared();
+    try {
+      JSONObject status = new JSONObject();
+      for (MirrorQuota.Method method : MirrorQuota.Method.values()) {
+        JSONObject json = new JSONObject()
+            .put("userBuckets", quota.getUserBucketCount(method))
+            .put("rejected", quota.getRejectedCount(method));
+        TokenBucket bucket = quota.getGlobalBucket(method);
+        if (bucket != null) {
+          json.put("available", bucket.getAvailable())
+              .put("capacity", bucket.getCapacity())
+              .put("perSecond", bucket.getRate());
+        }
+        status.put(method.getName(), json);
+      }
+      res.setContentType("application/json");
+      res.setCharacterEncoding("UTF-8");
+      res.getWriter().write(status.toString());
+    } catch (JSONException e) {
+      throw new IOException("Could not write quota status", e);
+    }
+  }
+}
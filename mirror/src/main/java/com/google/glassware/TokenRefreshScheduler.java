@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.AuthorizationCodeFlow;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.CredentialStore;
+import com.google.api.client.auth.oauth2.TokenResponseException;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Refreshes users' access tokens in the background shortly before they expire, so that Mirror
+ * API calls on the request path rarely have to stop and refresh a token first.
+ * <p/>
+ * Every time a credential is loaded or stored through {@link #wrap}, its user is marked as seen
+ * and scheduled for a refresh {@code auth.refresh.leadSeconds} before the token expires, minus a
+ * random jitter of up to {@code auth.refresh.jitterSeconds} so that tokens issued together aren't
+ * all refreshed together. Scheduled refreshes wait in a {@link DelayQueue} ordered by time. A
+ * dispatcher thread hands each one that comes due to a pool of {@code auth.refresh.threads}
+ * workers, which bounds the load on the token endpoint. A successful refresh stores the new token
+ * and schedules the next refresh.
+ * <p/>
+ * Only users seen within the last {@code auth.refresh.activeMinutes} are refreshed; the rest are
+ * dropped from the schedule until they are seen again, and their tokens are refreshed on demand
+ * as before. The refresher loads and stores credentials without marking them as used, so it
+ * doesn't keep idle users from being removed from an {@link OffHeapCredentialStore}.
+ */
+public class TokenRefreshScheduler {
+  private static final Logger LOG = Logger.getLogger(TokenRefreshScheduler.class.getSimpleName());
+
+  /**
+   * How long to wait before trying again after a refresh fails for a reason other than the user
+   * revoking access.
+   */
+  private static final long RETRY_DELAY_MS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final TokenRefreshScheduler sShared = new TokenRefreshScheduler(
+      TimeUnit.SECONDS.toMillis(Integer.getInteger("auth.refresh.leadSeconds", 300)),
+      TimeUnit.SECONDS.toMillis(Integer.getInteger("auth.refresh.jitterSeconds", 120)),
+      Integer.getInteger("auth.refresh.threads", 4),
+      TimeUnit.MINUTES.toMillis(Integer.getInteger("auth.refresh.activeMinutes", 120)));
+
+  /**
+   * A refresh of one user's token, due at a certain time.
+   */
+  private static class Refresh implements Delayed {
+    final String userId;
+    final long dueTimeMillis;
+
+    Refresh(String userId, long dueTimeMillis) {
+      this.userId = userId;
+      this.dueTimeMillis = dueTimeMillis;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueTimeMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      long otherDueTimeMillis = ((Refresh) other).dueTimeMillis;
+      return dueTimeMillis < otherDueTimeMillis ? -1
+          : dueTimeMillis > otherDueTimeMillis ? 1 : 0;
+    }
+  }
+
+  private final long mLeadMillis;
+  private final long mJitterMillis;
+  private final int mThreads;
+  private final long mActiveMillis;
+  private final Random mRandom = new Random();
+  private final DelayQueue<Refresh> mQueue = new DelayQueue<Refresh>();
+
+  /**
+   * The latest refresh scheduled for each user. A queued refresh that is no longer the latest
+   * for its user has been superseded and is skipped when it comes due.
+   */
+  private final ConcurrentMap<String, Refresh> mScheduled =
+      new ConcurrentHashMap<String, Refresh>();
+
+  /**
+   * When each user with a refresh scheduled was last seen, in milliseconds since the epoch.
+   */
+  private final ConcurrentMap<String, Long> mLastSeen = new ConcurrentHashMap<String, Long>();
+  private final AtomicLong mRefreshCount = new AtomicLong();
+  private final AtomicLong mFailureCount = new AtomicLong();
+  private ListableCredentialStore mStore;
+  private ThreadPoolExecutor mWorkers;
+  private Thread mDispatcher;
+
+  /**
+   * Gets the scheduler used by the app.
+   */
+  public static TokenRefreshScheduler getShared() {
+    return sShared;
+  }
+
+  /**
+   * Initializes a scheduler.
+   *
+   * @param leadMillis   how long before a token expires to refresh it
+   * @param jitterMillis the most time to randomly subtract from each refresh time
+   * @param threads      the most refreshes to run at once
+   * @param activeMillis how recently a user must have been seen to have their token refreshed
+   */
+  public TokenRefreshScheduler(long leadMillis, long jitterMillis, int threads,
+      long activeMillis) {
+    mLeadMillis = leadMillis;
+    mJitterMillis = jitterMillis;
+    mThreads = threads;
+    mActiveMillis = activeMillis;
+  }
+
+  /**
+   * Wraps a credential store so that every credential loaded or stored through it marks its user
+   * as seen and gets its next refresh scheduled, and every deleted one gets its refresh
+   * cancelled.
+   */
+  public CredentialStore wrap(final CredentialStore store) {
+    return new CredentialStore() {
+      @Override
+      public boolean load(String userId, Credential credential) throws IOException {
+        if (!store.load(userId, credential)) {
+          return false;
+        }
+        seen(userId, credential);
+        return true;
+      }
+
+      @Override
+      public void store(String userId, Credential credential) throws IOException {
+        store.store(userId, credential);
+        mLastSeen.put(userId, System.currentTimeMillis());
+        schedule(userId, credential);
+      }
+
+      @Override
+      public void delete(String userId, Credential credential) throws IOException {
+        store.delete(userId, credential);
+        cancel(userId);
+      }
+    };
+  }
+
+  /**
+   * Starts dispatching refreshes of the credentials in the specified store, which is the one
+   * wrapped by {@link #wrap}. Users are scheduled as they are seen, not all at startup. The
+   * scheduler may be started again after {@link #stop}.
+   */
+  public synchronized void start(ListableCredentialStore store) {
+    if (mDispatcher != null) {
+      return;
+    }
+    mStore = store;
+    mWorkers = new ThreadPoolExecutor(mThreads, mThreads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger mCount = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "token-refresh-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    mWorkers.allowCoreThreadTimeOut(true);
+    final ThreadPoolExecutor workers = mWorkers;
+    mDispatcher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        dispatch(workers);
+      }
+    }, "token-refresh-dispatcher");
+    mDispatcher.setDaemon(true);
+    mDispatcher.start();
+  }
+
+  /**
+   * Stops refreshing tokens.
+   */
+  public synchronized void stop() {
+    if (mDispatcher != null) {
+      mDispatcher.interrupt();
+      mDispatcher = null;
+    }
+    if (mWorkers != null) {
+      mWorkers.shutdownNow();
+      mWorkers = null;
+    }
+  }
+
+  /**
+   * Schedules the next refresh of the user's token, replacing any earlier schedule.
+   *
+   * @return true if a refresh was scheduled; credentials that can't be refreshed or that never
+   *     expire are not
+   */
+  boolean schedule(String userId, Credential credential) {
+    Long expirationTimeMillis = credential.getExpirationTimeMilliseconds();
+    if (credential.getRefreshToken() == null || expirationTimeMillis == null) {
+      cancel(userId);
+      return false;
+    }
+    long dueTimeMillis = expirationTimeMillis - mLeadMillis - nextJitter();
+    // Spread out tokens that are already due, such as expired ones of users seen again.
+    scheduleAt(userId, Math.max(dueTimeMillis, System.currentTimeMillis() + nextJitter()));
+    return true;
+  }
+
+  /**
+   * Cancels any scheduled refresh of the user's token.
+   */
+  void cancel(String userId) {
+    mScheduled.remove(userId);
+    mLastSeen.remove(userId);
+  }
+
+  /**
+   * Gets the number of tokens refreshed in the background.
+   */
+  public long getRefreshCount() {
+    return mRefreshCount.get();
+  }
+
+  /**
+   * Gets the number of background refreshes that failed.
+   */
+  public long getFailureCount() {
+    return mFailureCount.get();
+  }
+
+  /**
+   * Gets the number of users with a refresh scheduled.
+   */
+  public int getScheduledCount() {
+    return mScheduled.size();
+  }
+
+  /**
+   * Marks a user as seen, and schedules their first refresh if none is scheduled.
+   */
+  private void seen(String userId, Credential credential) {
+    mLastSeen.put(userId, System.currentTimeMillis());
+    if (!mScheduled.containsKey(userId)) {
+      schedule(userId, credential);
+    }
+  }
+
+  private void scheduleAt(String userId, long dueTimeMillis) {
+    Refresh refresh = new Refresh(userId, dueTimeMillis);
+    mScheduled.put(userId, refresh);
+    mQueue.put(refresh);
+  }
+
+  private long nextJitter() {
+    synchronized (mRandom) {
+      return mJitterMillis > 0 ? (long) (mRandom.nextDouble() * mJitterMillis) : 0;
+    }
+  }
+
+  private void dispatch(ThreadPoolExecutor workers) {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        final Refresh refresh = mQueue.take();
+        if (mScheduled.get(refresh.userId) != refresh) {
+          continue;
+        }
+        workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            refresh(refresh);
+          }
+        });
+      }
+    } catch (InterruptedException e) {
+      // Stopped.
+    }
+  }
+
+  private void refresh(Refresh refresh) {
+    String userId = refresh.userId;
+    if (mScheduled.get(userId) != refresh) {
+      return;
+    }
+    Long lastSeen = mLastSeen.get(userId);
+    if (lastSeen == null || System.currentTimeMillis() - lastSeen > mActiveMillis) {
+      // Idle; the next load through the wrapped store schedules the user again.
+      unschedule(refresh);
+      return;
+    }
+    try {
+      // Bypass the flow's store so the refresher doesn't count as a use of the credential.
+      Credential credential = newCredential();
+      if (!load(userId, credential)) {
+        cancel(userId);
+        return;
+      }
+      if (credential.refreshToken()) {
+        if (mScheduled.get(userId) != refresh) {
+          // Deleted or stored anew while refreshing; don't overwrite it.
+          return;
+        }
+        store(userId, credential);
+        schedule(userId, credential);
+        mRefreshCount.incrementAndGet();
+        LOG.fine("Refreshed the token of user " + userId);
+      } else {
+        mFailureCount.incrementAndGet();
+        unschedule(refresh);
+        LOG.info("Could not refresh the token of user " + userId);
+      }
+    } catch (TokenResponseException e) {
+      mFailureCount.incrementAndGet();
+      if (e.getStatusCode() >= 400 && e.getStatusCode() < 500) {
+        // The user revoked access or the grant expired; retrying won't help.
+        unschedule(refresh);
+        LOG.info("The token of user " + userId + " can no longer be refreshed: "
+            + e.getMessage());
+      } else {
+        retry(refresh, e);
+      }
+    } catch (IOException e) {
+      mFailureCount.incrementAndGet();
+      retry(refresh, e);
+    }
+  }
+
+  /**
+   * Creates an empty credential for the app's client, without the listener that stores refreshed
+   * tokens through the flow's store.
+   */
+  private static Credential newCredential() throws IOException {
+    AuthorizationCodeFlow flow = AuthUtil.getAuthorizationCodeFlow();
+    return new Credential.Builder(flow.getMethod())
+        .setTransport(flow.getTransport())
+        .setJsonFactory(flow.getJsonFactory())
+        .setTokenServerEncodedUrl(flow.getTokenServerEncodedUrl())
+        .setClientAuthentication(flow.getClientAuthentication())
+        .setRequestInitializer(flow.getRequestInitializer())
+        .setClock(flow.getClock())
+        .build();
+  }
+
+  private boolean load(String userId, Credential credential) throws IOException {
+    ListableCredentialStore store = mStore;
+    return store instanceof OffHeapCredentialStore
+        ? ((OffHeapCredentialStore) store).load(userId, credential, false)
+        : store.load(userId, credential);
+  }
+
+  private void store(String userId, Credential credential) throws IOException {
+    ListableCredentialStore store = mStore;
+    if (store instanceof OffHeapCredentialStore) {
+      ((OffHeapCredentialStore) store).store(userId, credential, false);
+    } else {
+      store.store(userId, credential);
+    }
+  }
+
+  /**
+   * Drops a user from the schedule if the specified refresh is still their latest.
+   */
+  private void unschedule(Refresh refresh) {
+    if (mScheduled.remove(refresh.userId, refresh)) {
+      mLastSeen.remove(refresh.userId);
+    }
+  }
+
+  private void retry(Refresh refresh, IOException e) {
+    LOG.log(Level.WARNING, "Could not refresh the token of user " + refresh.userId
+        + "; trying again later", e);
+    if (mScheduled.get(refresh.userId) == refresh) {
+      scheduleAt(refresh.userId, System.currentTimeMillis() + RETRY_DELAY_MS + nextJitter());
+    }
+  }
+}
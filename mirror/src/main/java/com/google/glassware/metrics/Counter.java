@@ -0,0 +1,23 @@
+package com.google.glassware.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only goes up, such as the number of failed calls. Incrementing it takes one
+ * atomic add and allocates nothing, so it is cheap enough for any code path.
+ */
+public class Counter {
+  private final AtomicLong mCount = new AtomicLong();
+
+  public void increment() {
+    mCount.incrementAndGet();
+  }
+
+  public void add(long amount) {
+    mCount.addAndGet(amount);
+  }
+
+  public long get() {
+    return mCount.get();
+  }
+}
@@ -0,0 +1,9 @@
+package com.google.glassware.metrics;
+
+/**
+ * A value read from elsewhere in the app whenever metrics are collected, such as a queue length
+ * or a count kept by another class.
+ */
+public interface Gauge {
+  double getValue();
+}
@@ -0,0 +1,114 @@
+package com.google.glassware.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the distribution of a value, such as a latency in nanoseconds, in the log-linear
+ * buckets of an HDR histogram: values below 32 have a bucket each, and every power of two above
+ * that is split into 32 buckets, so values are told apart to within about 3%
+ * anywhere from nanoseconds to centuries.
+ * <p/>
+ * The buckets are a fixed array of atomic counts, so recording a value is a few shifts and
+ * atomic adds with no locks or allocation. They are read back as cumulative counts below a set
+ * of bounds, which never reset, so that whoever collects them can compute quantiles over any
+ * window and across instances.
+ */
+public class Histogram {
+
+  /**
+   * log2 of the number of buckets each power of two is split into.
+   */
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+
+  /**
+   * Enough buckets for any non-negative long.
+   */
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mSum = new AtomicLong();
+
+  /**
+   * Records a value. Negative values are recorded as 0.
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    mBuckets.incrementAndGet(bucketIndex(value));
+    mCount.incrementAndGet();
+    mSum.addAndGet(value);
+  }
+
+  /**
+   * Records the time since a {@link System#nanoTime} reading, in nanoseconds.
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  public long getCount() {
+    return mCount.get();
+  }
+
+  /**
+   * Gets the sum of every value recorded.
+   */
+  public long getSum() {
+    return mSum.get();
+  }
+
+  /**
+   * Gets how many values have been recorded at or below each of several bounds. A value counts
+   * toward a bound if the highest value of its bucket does, so it may be counted under the next
+   * bound up when it is within about 3% below one.
+   *
+   * @param bounds the bounds, in increasing order
+   * @return the count at or below each bound, followed by the count of every value, all read in
+   *     one pass so that they are consistent with each other
+   */
+  public long[] getCumulativeCounts(long... bounds) {
+    long[] counts = new long[bounds.length + 1];
+    int bound = 0;
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long highest = highestValueIn(i);
+      while (bound < bounds.length && highest > bounds[bound]) {
+        counts[bound++] = seen;
+      }
+      seen += mBuckets.get(i);
+    }
+    while (bound < bounds.length) {
+      counts[bound++] = seen;
+    }
+    counts[bounds.length] = seen;
+    return counts;
+  }
+
+  /**
+   * Gets the bucket a value is counted in.
+   */
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) & SUB_BUCKET_MASK);
+  }
+
+  /**
+   * Gets the largest value counted in a bucket.
+   */
+  static long highestValueIn(int bucket) {
+    if (bucket < SUB_BUCKET_COUNT) {
+      return bucket;
+    }
+    int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+    long lowest = (long) (SUB_BUCKET_COUNT + (bucket & SUB_BUCKET_MASK)) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,282 @@
+package com.google.glassware.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The app's metrics, by name, and their export in the Prometheus text format.
+ * <p/>
+ * A metric may have one label, such as the endpoint of a Mirror API call, in which case each
+ * value of the label is a separate counter, gauge or histogram under the same name. Looking a
+ * metric up takes a map lookup and, the first time, a registration, so code on hot paths should
+ * look its metrics up once and keep them in fields; recording into them allocates nothing.
+ * <p/>
+ * Histograms are exported as Prometheus histograms: cumulative counts of the values at or below
+ * each of a fixed set of bucket bounds, which Prometheus turns into quantiles over whatever window
+ * is asked for, and which can be added up across instances.
+ */
+public class MetricsRegistry {
+
+  /**
+   * What kind of values a metric holds, which decides how it is exported.
+   */
+  public enum Type {
+    COUNTER("counter"),
+    GAUGE("gauge"),
+    HISTOGRAM("histogram");
+
+    private final String mName;
+
+    private Type(String name) {
+      mName = name;
+    }
+  }
+
+  /**
+   * Bucket bounds for latencies in seconds, from 10 microseconds to 30 seconds.
+   */
+  public static final double[] LATENCY_BUCKETS = {0.00001, 0.000025, 0.00005, 0.0001, 0.00025,
+      0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+  /**
+   * A metric name and the values of each of its label values.
+   */
+  private static class Family {
+    final String name;
+    final String help;
+    final Type type;
+    final String labelName;
+    final double scale;
+    /**
+     * The bucket bounds of a histogram as exported, or null for other metrics.
+     */
+    final double[] buckets;
+    /**
+     * The bucket bounds in recorded units, and their {@code le} labels.
+     */
+    final long[] bounds;
+    final String[] boundLabels;
+    final ConcurrentMap<String, Object> children = new ConcurrentSkipListMap<String, Object>();
+
+    Family(String name, String help, Type type, String labelName, double scale,
+        double[] buckets) {
+      this.name = name;
+      this.help = help;
+      this.type = type;
+      this.labelName = labelName;
+      this.scale = scale;
+      this.buckets = buckets;
+      if (buckets == null) {
+        bounds = null;
+        boundLabels = null;
+      } else {
+        bounds = new long[buckets.length];
+        boundLabels = new String[buckets.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+          bounds[i] = Math.round(buckets[i] / scale);
+          boundLabels[i] = "le=\"" + formatValue(buckets[i]) + "\"";
+        }
+        boundLabels[buckets.length] = "le=\"+Inf\"";
+      }
+    }
+  }
+
+  private static final MetricsRegistry sShared = new MetricsRegistry();
+
+  private final ConcurrentMap<String, Family> mFamilies =
+      new ConcurrentSkipListMap<String, Family>();
+
+  /**
+   * Gets the registry exported by the app.
+   */
+  public static MetricsRegistry getShared() {
+    return sShared;
+  }
+
+  /**
+   * Gets or creates a counter without labels.
+   *
+   * @param name the metric name, which by Prometheus convention ends in {@code _total}
+   * @param help what the metric counts
+   */
+  public Counter counter(String name, String help) {
+    return counter(name, help, null, null);
+  }
+
+  /**
+   * Gets or creates the counter for one value of a label.
+   */
+  public Counter counter(String name, String help, String labelName, String labelValue) {
+    Family family = getFamily(name, help, Type.COUNTER, labelName, 1, null);
+    Object counter = family.children.get(key(labelValue));
+    if (counter == null) {
+      Counter newCounter = new Counter();
+      counter = family.children.putIfAbsent(key(labelValue), newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    return asType(family, counter, Counter.class);
+  }
+
+  /**
+   * Exports a count kept elsewhere in the app as a counter, replacing any gauge registered
+   * for the same label value.
+   */
+  public void counter(String name, String help, String labelName, String labelValue,
+      Gauge count) {
+    getFamily(name, help, Type.COUNTER, labelName, 1, null).children.put(key(labelValue), count);
+  }
+
+  /**
+   * Gets or creates a histogram without labels.
+   *
+   * @param name  the metric name, ending in its unit, such as {@code _seconds}
+   * @param help  what the metric measures
+   * @param scale   what recorded values are multiplied by when exported, such as 1e-9 to record
+   *                nanoseconds and export seconds
+   * @param buckets the upper bounds of the exported buckets, in exported units and increasing
+   *                order, such as {@link #LATENCY_BUCKETS}
+   */
+  public Histogram histogram(String name, String help, double scale, double[] buckets) {
+    return histogram(name, help, scale, buckets, null, null);
+  }
+
+  /**
+   * Gets or creates the histogram for one value of a label.
+   */
+  public Histogram histogram(String name, String help, double scale, double[] buckets,
+      String labelName, String labelValue) {
+    Family family = getFamily(name, help, Type.HISTOGRAM, labelName, scale, buckets);
+    Object histogram = family.children.get(key(labelValue));
+    if (histogram == null) {
+      Histogram newHistogram = new Histogram();
+      histogram = family.children.putIfAbsent(key(labelValue), newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    return asType(family, histogram, Histogram.class);
+  }
+
+  /**
+   * Exports a gauge without labels, replacing any registered under the same name.
+   */
+  public void gauge(String name, String help, Gauge gauge) {
+    gauge(name, help, null, null, gauge);
+  }
+
+  /**
+   * Exports a gauge for one value of a label, replacing any registered for the same value.
+   */
+  public void gauge(String name, String help, String labelName, String labelValue, Gauge gauge) {
+    getFamily(name, help, Type.GAUGE, labelName, 1, null).children.put(key(labelValue), gauge);
+  }
+
+  /**
+   * Writes every metric in the Prometheus text exposition format, version 0.0.4.
+   */
+  public void write(Writer out) throws IOException {
+    for (Family family : mFamilies.values()) {
+      out.write("# HELP " + family.name + " " + escapeHelp(family.help) + "\n");
+      out.write("# TYPE " + family.name + " " + family.type.mName + "\n");
+      for (Map.Entry<String, Object> child : family.children.entrySet()) {
+        String label = family.labelName == null ? null
+            : family.labelName + "=\"" + escapeLabelValue(child.getKey()) + "\"";
+        Object metric = child.getValue();
+        if (metric instanceof Histogram) {
+          writeHistogram(out, family, label, (Histogram) metric);
+        } else if (metric instanceof Counter) {
+          writeSample(out, family.name, label, ((Counter) metric).get());
+        } else {
+          writeSample(out, family.name, label, ((Gauge) metric).getValue());
+        }
+      }
+    }
+  }
+
+  private static void writeHistogram(Writer out, Family family, String label,
+      Histogram histogram) throws IOException {
+    long[] counts = histogram.getCumulativeCounts(family.bounds);
+    for (int i = 0; i < counts.length; i++) {
+      String bound = family.boundLabels[i];
+      writeSample(out, family.name + "_bucket", label == null ? bound : label + "," + bound,
+          counts[i]);
+    }
+    writeSample(out, family.name + "_sum", label, histogram.getSum() * family.scale);
+    writeSample(out, family.name + "_count", label, counts[counts.length - 1]);
+  }
+
+  private static void writeSample(Writer out, String name, String labels, double value)
+      throws IOException {
+    out.write(name);
+    if (labels != null) {
+      out.write("{" + labels + "}");
+    }
+    out.write(" ");
+    out.write(formatValue(value));
+    out.write("\n");
+  }
+
+  private static String formatValue(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  private Family getFamily(String name, String help, Type type, String labelName, double scale,
+      double[] buckets) {
+    Family family = mFamilies.get(name);
+    if (family == null) {
+      Family newFamily = new Family(name, help, type, labelName, scale, buckets);
+      family = mFamilies.putIfAbsent(name, newFamily);
+      if (family == null) {
+        family = newFamily;
+      }
+    }
+    if (family.type != type || (family.labelName == null
+        ? labelName != null : !family.labelName.equals(labelName))) {
+      throw new IllegalArgumentException("Metric " + name + " is already registered as a "
+          + family.type.mName + " labelled by " + family.labelName);
+    }
+    if (!Arrays.equals(family.buckets, buckets)) {
+      throw new IllegalArgumentException("Metric " + name
+          + " is already registered with the buckets " + Arrays.toString(family.buckets));
+    }
+    return family;
+  }
+
+  private static <T> T asType(Family family, Object metric, Class<T> type) {
+    if (!type.isInstance(metric)) {
+      throw new IllegalArgumentException("Metric " + family.name
+          + " is already exported from a gauge");
+    }
+    return type.cast(metric);
+  }
+
+  /**
+   * Gets the key of a label value; metrics without labels have a single child under "".
+   */
+  private static String key(String labelValue) {
+    return labelValue == null ? "" : labelValue;
+  }
+
+  private static String escapeHelp(String help) {
+    return help.replace("\\", "\\\\").replace("\n", "\\n");
+  }
+
+  private static String escapeLabelValue(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
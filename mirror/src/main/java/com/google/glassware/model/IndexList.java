@@ -0,0 +1,50 @@
+package com.google.glassware.model;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of place indices, used to collect query hits without boxing.
+ */
+final class IndexList {
+
+  private int[] mValues = new int[16];
+  private int mSize;
+
+  /**
+   * Adds an index to the end of the list.
+   */
+  void add(int value) {
+    if (mSize == mValues.length) {
+      mValues = Arrays.copyOf(mValues, mSize * 2);
+    }
+    mValues[mSize++] = value;
+  }
+
+  /**
+   * Gets the index at the specified position in the list.
+   */
+  int get(int position) {
+    return mValues[position];
+  }
+
+  /**
+   * Gets the number of indices in the list.
+   */
+  int size() {
+    return mSize;
+  }
+
+  /**
+   * Removes every index from the list.
+   */
+  void clear() {
+    mSize = 0;
+  }
+
+  /**
+   * Sorts the list in ascending order.
+   */
+  void sort() {
+    Arrays.sort(mValues, 0, mSize);
+  }
+}
@@ -1,6 +1,5 @@
 package com.google.glassware.model;
 
-import com.google.glassware.util.MathUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -23,27 +22,119 @@ public class Landmarks {
   /**
    * The threshold used to display a landmark on the compass.
    */
-  private static final double MAX_DISTANCE_KM = 100;
+  public static final double MAX_DISTANCE_KM = 100;
 
   /**
-   * The list of landmarks loaded from resources.
+   * The radius of the first ring searched by {@link #getNearestLandmarks}. Each further ring
+   * doubles it.
    */
-  private final ArrayList<Place> mPlaces;
+  private static final double INITIAL_NEAREST_RADIUS_KM = 10;
+
+  /**
+   * The default location of the landmarks file, relative to the server's working directory.
+   */
+  public static final String DEFAULT_LANDMARKS_PATH = "./src/main/resources/landmarks.json";
+
+  /**
+   * The default location of the binary landmarks file produced by {@link LandmarksConverter}.
+   * When it exists, it is used instead of the JSON file.
+   */
+  public static final String DEFAULT_BINARY_LANDMARKS_PATH =
+      "./src/main/resources/landmarks.bin";
+
+  /**
+   * The landmarks loaded from resources, either in heap arrays or mapped from a binary file.
+   */
+  private final PlaceTable mPlaces;
+
+  /**
+   * The spatial index over {@link #mPlaces}, used to avoid scanning every place on each query.
+   */
+  private final PlaceGrid mGrid;
+
+  /**
+   * The version number of this snapshot of the landmark data.
+   */
+  private final long mVersion;
+
+  /**
+   * The time this snapshot finished loading, in milliseconds since the epoch.
+   */
+  private final long mLoadTimeMillis;
 
   /**
    * Initializes a new {@code Landmarks} object by loading the landmarks from the resource
    * bundle.
    */
   public Landmarks() {
-    mPlaces = new ArrayList<Place>();
-
     // This class will be instantiated on the service's main thread, and doing I/O on the
     // main thread can be dangerous if it will block for a noticeable amount of time. In
     // this case, we assume that the landmark data will be small enough that there is not
     // a significant penalty to the application. If the landmark data were much larger,
-    // we may want to load it in the background instead.
-    String jsonString = readLandmarksResource();
-    populatePlaceList(jsonString);
+    // we may want to load it in the background instead (see {@link LandmarksLoader}).
+    this(readPlacesOrEmpty(new File(DEFAULT_LANDMARKS_PATH)), 0);
+  }
+
+  Landmarks(ArrayList<Place> places, long version) {
+    this(new ColumnarPlaceTable(places), version);
+  }
+
+  private Landmarks(ColumnarPlaceTable places, long version) {
+    this(places, places.buildGrid(), version);
+  }
+
+  Landmarks(PlaceTable places, PlaceGrid grid, long version) {
+    mPlaces = places;
+    mGrid = grid;
+    mVersion = version;
+    mLoadTimeMillis = System.currentTimeMillis();
+  }
+
+  /**
+   * Gets the landmarks file the server should load: the binary file if one has been generated,
+   * and the JSON file otherwise.
+   */
+  public static File getDefaultFile() {
+    File binaryFile = new File(DEFAULT_BINARY_LANDMARKS_PATH);
+    return binaryFile.exists() ? binaryFile : new File(DEFAULT_LANDMARKS_PATH);
+  }
+
+  /**
+   * Loads a new immutable snapshot of the landmarks in the specified file. Files ending in
+   * {@code .bin} are memory-mapped in the {@link LandmarksFile} format; anything else is parsed
+   * as JSON.
+   *
+   * @param file    the landmarks file to read
+   * @param version the version number to give the snapshot
+   * @throws IOException if the file could not be read or parsed
+   */
+  static Landmarks load(File file, long version) throws IOException {
+    if (file.getName().endsWith(".bin")) {
+      return LandmarksFile.map(file, version);
+    }
+    return new Landmarks(readPlaces(file), version);
+  }
+
+  /**
+   * Gets the version number of this snapshot. Each reload of the landmark data produces a
+   * snapshot with a higher version number.
+   */
+  public long getVersion() {
+    return mVersion;
+  }
+
+  /**
+   * Gets the time this snapshot finished loading, in milliseconds since the epoch.
+   */
+  public long getLoadTimeMillis() {
+    return mLoadTimeMillis;
+  }
+
+  /**
+   * Gets the number of landmarks in this snapshot.
+   */
+  public int size() {
+    return mPlaces.size();
   }
 
   /**
@@ -53,45 +144,141 @@ public class Landmarks {
    */
   public List<Place> getNearbyLandmarks(double latitude, double longitude) {
     ArrayList<Place> nearbyPlaces = new ArrayList<Place>();
+    if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+      return nearbyPlaces;
+    }
 
-    for (Place knownPlace : mPlaces) {
-      if (MathUtils.getDistance(latitude, longitude,
-          knownPlace.getLatitude(), knownPlace.getLongitude()) <= MAX_DISTANCE_KM) {
-        nearbyPlaces.add(knownPlace);
+    // Only the places in cells that the search circle can reach need the exact distance test.
+    // Hits are collected by index and sorted so the result keeps the order of the landmark file.
+    RadiusQuery query = new RadiusQuery(latitude, longitude, MAX_DISTANCE_KM);
+    IndexList hits = new IndexList();
+    PlaceGrid.Window window = PlaceGrid.cover(latitude, longitude, MAX_DISTANCE_KM);
+    for (int row = window.minRow; row <= window.maxRow; row++) {
+      for (int column = 0; column < window.columnCount; column++) {
+        int cell = window.getCell(row, column);
+        mPlaces.collectWithin(query, mGrid, mGrid.getCellStart(cell), mGrid.getCellEnd(cell),
+            hits);
       }
     }
 
+    hits.sort();
+    nearbyPlaces.ensureCapacity(hits.size());
+    for (int i = 0; i < hits.size(); i++) {
+      nearbyPlaces.add(mPlaces.getPlace(hits.get(i)));
+    }
     return nearbyPlaces;
   }
 
   /**
-   * Populates the internal places list from places found in a JSON string. This string should
-   * contain a root object with a "landmarks" property that is an array of objects that represent
-   * places. A place has three properties: name, latitude, and longitude.
+   * Gets the {@code k} landmarks closest to the specified coordinates and no farther than
+   * {@code maxKm} away, closest first. This function will never return null; if there are no
+   * locations within that threshold, then an empty list will be returned.
+   * <p/>
+   * The search starts with the grid cells around the point and widens outward, doubling the
+   * searched radius each time, and stops as soon as {@code k} places have been found that are no
+   * farther away than the radius already searched. Places beyond that are never examined.
+   *
+   * @param latitude  the latitude of the search point
+   * @param longitude the longitude of the search point
+   * @param k         the maximum number of landmarks to return
+   * @param maxKm     the maximum distance of a returned landmark, in kilometers
    */
-  private void populatePlaceList(String jsonString) {
-    try {
-      JSONObject json = new JSONObject(jsonString);
-      JSONArray array = json.optJSONArray("landmarks");
-
-      if (array != null) {
-        for (int i = 0; i < array.length(); i++) {
-          JSONObject object = array.optJSONObject(i);
-          Place place = jsonObjectToPlace(object);
-          if (place != null) {
-            mPlaces.add(place);
+  public List<Place> getNearestLandmarks(double latitude, double longitude, int k,
+      double maxKm) {
+    ArrayList<Place> nearestPlaces = new ArrayList<Place>();
+    if (k <= 0 || Double.isNaN(latitude) || Double.isNaN(longitude)) {
+      return nearestPlaces;
+    }
+
+    RadiusQuery query = new RadiusQuery(latitude, longitude, maxKm);
+    NearestHeap heap = new NearestHeap(k);
+    IndexList candidates = new IndexList();
+    PlaceGrid.Window searched = null;
+    double radius = Math.min(maxKm, INITIAL_NEAREST_RADIUS_KM);
+
+    while (true) {
+      // Every place within maxKm in the newly covered cells goes into the heap, so after this
+      // pass every place within the current radius has been seen.
+      PlaceGrid.Window window = PlaceGrid.cover(latitude, longitude, radius);
+      for (int row = window.minRow; row <= window.maxRow; row++) {
+        for (int column = 0; column < window.columnCount; column++) {
+          int cell = window.getCell(row, column);
+          if (searched == null || !searched.contains(cell)) {
+            mPlaces.collectWithin(query, mGrid, mGrid.getCellStart(cell), mGrid.getCellEnd(cell),
+                candidates);
           }
         }
       }
+      for (int i = 0; i < candidates.size(); i++) {
+        int index = candidates.get(i);
+        heap.offer(index, mPlaces.getDistance(query, index));
+      }
+      candidates.clear();
+      searched = window;
+
+      if (radius >= maxKm || (heap.isFull() && heap.getFarthestDistance() <= radius)) {
+        break;
+      }
+      radius = Math.min(maxKm, radius * 2);
+    }
+
+    for (int index : heap.drainClosestFirst()) {
+      nearestPlaces.add(mPlaces.getPlace(index));
+    }
+    return nearestPlaces;
+  }
+
+  /**
+   * Reads the places from the specified landmarks file, logging any error and returning an empty
+   * list if the file could not be read.
+   */
+  private static ArrayList<Place> readPlacesOrEmpty(File file) {
+    try {
+      return readPlaces(file);
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Could not load landmarks", e);
+      return new ArrayList<Place>();
+    }
+  }
+
+  /**
+   * Reads the places from the specified JSON landmarks file.
+   */
+  static ArrayList<Place> readPlaces(File file) throws IOException {
+    String jsonString = readLandmarksResource(file);
+    try {
+      return parsePlaceList(jsonString);
     } catch (JSONException e) {
-      LOG.log(Level.SEVERE, "Could not parse landmarks JSON string", e);
+      throw new IOException("Could not parse landmarks JSON string", e);
+    }
+  }
+
+  /**
+   * Parses the places found in a JSON string. This string should contain a root object with a
+   * "landmarks" property that is an array of objects that represent places. A place has three
+   * properties: name, latitude, and longitude.
+   */
+  private static ArrayList<Place> parsePlaceList(String jsonString) throws JSONException {
+    ArrayList<Place> places = new ArrayList<Place>();
+    JSONObject json = new JSONObject(jsonString);
+    JSONArray array = json.optJSONArray("landmarks");
+
+    if (array != null) {
+      for (int i = 0; i < array.length(); i++) {
+        JSONObject object = array.optJSONObject(i);
+        Place place = jsonObjectToPlace(object);
+        if (place != null) {
+          places.add(place);
+        }
+      }
     }
+    return places;
   }
 
   /**
    * Converts a JSON object that represents a place into a {@link Place} object.
    */
-  private Place jsonObjectToPlace(JSONObject object) {
+  private static Place jsonObjectToPlace(JSONObject object) {
     String name = object.optString("name");
     double latitude = object.optDouble("latitude", Double.NaN);
     double longitude = object.optDouble("longitude", Double.NaN);
@@ -104,15 +291,14 @@ public class Landmarks {
   }
 
   /**
-   * Reads the text from {@code res/raw/landmarks.json} and returns it as a string.
+   * Reads the text from the specified landmarks file and returns it as a string.
    */
-  private static String readLandmarksResource() {
-    InputStream is = null;
+  private static String readLandmarksResource(File file) throws IOException {
+    InputStream is = new FileInputStream(file);
     try {
-      is = new FileInputStream(new File("./src/main/resources/landmarks.json"));
-      StringBuffer buffer = new StringBuffer();
+      StringBuilder buffer = new StringBuilder();
 
-      BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+      BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
 
       String line;
       while ((line = reader.readLine()) != null) {
@@ -121,17 +307,11 @@ public class Landmarks {
       }
 
       return buffer.toString();
-
-    } catch (IOException e) {
-      LOG.log(Level.SEVERE, "Could not read landmarks resource", e);
-      return null;
     } finally {
-      if (is != null) {
-        try {
-          is.close();
-        } catch (IOException e) {
-          LOG.log(Level.SEVERE, "Could not close landmarks resource stream", e);
-        }
+      try {
+        is.close();
+      } catch (IOException e) {
+        LOG.log(Level.SEVERE, "Could not close landmarks resource stream", e);
       }
     }
   }
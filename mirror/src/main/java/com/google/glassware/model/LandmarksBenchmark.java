@@ -0,0 +1,181 @@
+package com.google.glassware.model;
+
+import com.google.glassware.util.MathUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A command-line microbenchmark that compares the radius test used by {@link Landmarks} (a unit
+ * vector dot product prefilter followed by an exact haversine test on the survivors) against a
+ * haversine test on every place. Both run as full scans over the same random places, so the
+ * spatial grid does not hide the cost of the test itself. Besides the random places, each query
+ * gets a ring of pairs of places on either side of the point where the haversine distance,
+ * rounded to a {@code float}, goes over the radius, so that any difference in rounding between
+ * the two tests shows up. The benchmark exits with an error unless both tests return exactly the
+ * same places for every query. Run it with an optional place count:
+ * <pre>
+ * java -cp target/classes:... com.google.glassware.model.LandmarksBenchmark 1000000
+ * </pre>
+ */
+public class LandmarksBenchmark {
+
+  private static final int QUERIES = 50;
+  private static final double RADIUS_KM = 100;
+
+  /**
+   * How many pairs of places are put around the edge of each query's radius.
+   */
+  private static final int BOUNDARY_PAIRS = 500;
+
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    Random random = new Random(42);
+
+    double[] latitudes = new double[QUERIES];
+    double[] longitudes = new double[QUERIES];
+    for (int q = 0; q < QUERIES; q++) {
+      latitudes[q] = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+      longitudes[q] = 360 * random.nextDouble() - 180;
+    }
+
+    List<Place> places = new ArrayList<Place>(count + QUERIES * BOUNDARY_PAIRS * 2);
+    for (int i = 0; i < count; i++) {
+      places.add(new Place(Math.toDegrees(Math.asin(2 * random.nextDouble() - 1)),
+          360 * random.nextDouble() - 180, "Place " + i));
+    }
+    for (int q = 0; q < QUERIES; q++) {
+      for (int i = 0; i < BOUNDARY_PAIRS; i++) {
+        addBoundaryPair(places, latitudes[q], longitudes[q], 360 * random.nextDouble(),
+            "Boundary " + q + "." + i);
+      }
+    }
+    ColumnarPlaceTable table = new ColumnarPlaceTable(places);
+    PlaceGrid grid = table.buildGrid();
+
+    // Warm up both paths before timing them.
+    for (int round = 0; round < 3; round++) {
+      runHaversine(table, latitudes, longitudes);
+      runPrefiltered(table, grid, latitudes, longitudes);
+    }
+
+    long start = System.nanoTime();
+    IndexList[] haversineHits = runHaversine(table, latitudes, longitudes);
+    long haversineNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    IndexList[] prefilteredHits = runPrefiltered(table, grid, latitudes, longitudes);
+    long prefilteredNanos = System.nanoTime() - start;
+
+    System.out.println(places.size() + " places, " + QUERIES + " full scans each");
+    System.out.printf("haversine:   %8.2f ms/scan, %d hits%n",
+        haversineNanos / 1e6 / QUERIES, totalSize(haversineHits));
+    System.out.printf("prefiltered: %8.2f ms/scan, %d hits%n",
+        prefilteredNanos / 1e6 / QUERIES, totalSize(prefilteredHits));
+    System.out.printf("speedup:     %8.2fx%n", (double) haversineNanos / prefilteredNanos);
+
+    int mismatches = 0;
+    for (int q = 0; q < QUERIES; q++) {
+      if (!sameIndexes(haversineHits[q], prefilteredHits[q])) {
+        System.out.println("MISMATCH: query " + q + " at (" + latitudes[q] + ", "
+            + longitudes[q] + ") found " + haversineHits[q].size() + " places by haversine and "
+            + prefilteredHits[q].size() + " prefiltered");
+        mismatches++;
+      }
+    }
+    if (mismatches > 0) {
+      System.exit(1);
+    }
+  }
+
+  private static IndexList[] runHaversine(ColumnarPlaceTable table, double[] latitudes,
+      double[] longitudes) {
+    IndexList[] hits = new IndexList[latitudes.length];
+    for (int q = 0; q < latitudes.length; q++) {
+      hits[q] = new IndexList();
+      for (int i = 0; i < table.size(); i++) {
+        if (MathUtils.getDistance(latitudes[q], longitudes[q], table.getLatitude(i),
+            table.getLongitude(i)) <= RADIUS_KM) {
+          hits[q].add(i);
+        }
+      }
+    }
+    return hits;
+  }
+
+  private static IndexList[] runPrefiltered(ColumnarPlaceTable table, PlaceGrid grid,
+      double[] latitudes, double[] longitudes) {
+    IndexList[] hits = new IndexList[latitudes.length];
+    for (int q = 0; q < latitudes.length; q++) {
+      hits[q] = new IndexList();
+      table.collectWithin(new RadiusQuery(latitudes[q], longitudes[q], RADIUS_KM), grid, 0,
+          table.size(), hits[q]);
+    }
+    return hits;
+  }
+
+  private static long totalSize(IndexList[] lists) {
+    long size = 0;
+    for (IndexList list : lists) {
+      size += list.size();
+    }
+    return size;
+  }
+
+  /**
+   * Returns true if two lists hold the same indexes, in any order.
+   */
+  private static boolean sameIndexes(IndexList a, IndexList b) {
+    if (a.size() != b.size()) {
+      return false;
+    }
+    a.sort();
+    b.sort();
+    for (int i = 0; i < a.size(); i++) {
+      if (a.get(i) != b.get(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Adds the last place within the radius of a point along a bearing, and the first place past
+   * it, as told by {@link MathUtils#getDistance(double, double, double, double)}.
+   */
+  private static void addBoundaryPair(List<Place> places, double latitude, double longitude,
+      double bearing, String name) {
+    double inside = RADIUS_KM * 0.9999;
+    double outside = RADIUS_KM * 1.0001;
+    for (int i = 0; i < 64; i++) {
+      double middle = (inside + outside) / 2;
+      Place place = destination(latitude, longitude, bearing, middle, name);
+      if (MathUtils.getDistance(latitude, longitude, place.getLatitude(), place.getLongitude())
+          <= RADIUS_KM) {
+        inside = middle;
+      } else {
+        outside = middle;
+      }
+    }
+    places.add(destination(latitude, longitude, bearing, inside, name + " inside"));
+    places.add(destination(latitude, longitude, bearing, outside, name + " outside"));
+  }
+
+  /**
+   * Gets the place reached by travelling a distance along a great circle from a point.
+   */
+  private static Place destination(double latitude, double longitude, double bearing,
+      double distanceKm, String name) {
+    double lat = Math.toRadians(latitude);
+    double angle = distanceKm / MathUtils.EARTH_RADIUS_KM;
+    double theta = Math.toRadians(bearing);
+    double lat2 = Math.asin(Math.sin(lat) * Math.cos(angle)
+        + Math.cos(lat) * Math.sin(angle) * Math.cos(theta));
+    double lon2 = Math.toRadians(longitude) + Math.atan2(
+        Math.sin(theta) * Math.sin(angle) * Math.cos(lat),
+        Math.cos(angle) - Math.sin(lat) * Math.sin(lat2));
+    return new Place(Math.toDegrees(lat2), MathUtils.mod(Math.toDegrees(lon2) + 180, 360) - 180,
+        name);
+  }
+}
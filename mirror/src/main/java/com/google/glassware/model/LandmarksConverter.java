@@ -0,0 +1,31 @@
+package com.google.glassware.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A command-line tool that converts a JSON landmarks file into the binary format read by
+ * {@link LandmarksFile}. Run it with the JSON file and the binary file to write, for example:
+ * <pre>
+ * java -cp target/classes:... com.google.glassware.model.LandmarksConverter \
+ *     src/main/resources/landmarks.json src/main/resources/landmarks.bin
+ * </pre>
+ * A server that is already serving the binary file picks up the regenerated one on its next
+ * reload check.
+ */
+public class LandmarksConverter {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: LandmarksConverter <landmarks.json> <landmarks.bin>");
+      System.exit(1);
+    }
+
+    File jsonFile = new File(args[0]);
+    File binaryFile = new File(args[1]);
+    List<Place> places = Landmarks.readPlaces(jsonFile);
+    LandmarksFile.write(places, binaryFile);
+    System.out.println("Wrote " + places.size() + " landmarks to " + binaryFile);
+  }
+}
@@ -0,0 +1,211 @@
+package com.google.glassware.model;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Reads and writes the compact binary landmarks format, which {@link Landmarks} can query in
+ * place through a read-only memory mapping instead of parsing JSON onto the heap.
+ * <p/>
+ * All values are big-endian. The file starts with a header of six ints: the magic number, the
+ * format version, the place count {@code n}, the grid's row and column counts, and the length of
+ * the string table in bytes. The sections that follow are, in order:
+ * <ul>
+ * <li>{@code n} latitudes, as fixed-point ints in units of {@link #FIXED_POINT_SCALE}</li>
+ * <li>{@code n} longitudes, in the same units</li>
+ * <li>{@code n} unit vectors, as interleaved x, y and z {@code float}s</li>
+ * <li>{@code n + 1} name offsets into the string table</li>
+ * <li>the {@link PlaceGrid} cell start table and its {@code n} entries</li>
+ * <li>the string table of UTF-8 names</li>
+ * </ul>
+ */
+public class LandmarksFile {
+
+  /**
+   * The magic number at the start of every landmarks file ("KCLM").
+   */
+  private static final int MAGIC = 0x4B434C4D;
+
+  /**
+   * The version of the format written by this class.
+   */
+  private static final int FORMAT_VERSION = 2;
+
+  private static final int HEADER_BYTES = 6 * 4;
+
+  /**
+   * The number of fixed-point units per degree (about a centimeter of precision).
+   */
+  static final double FIXED_POINT_SCALE = 1e7;
+
+  /**
+   * Converts a coordinate in degrees into fixed-point units.
+   */
+  static int toFixedPoint(double degrees) {
+    return (int) Math.round(degrees * FIXED_POINT_SCALE);
+  }
+
+  /**
+   * Converts a coordinate in fixed-point units back into degrees.
+   */
+  static double fromFixedPoint(int value) {
+    return value / FIXED_POINT_SCALE;
+  }
+
+  /**
+   * Writes the specified places to a landmarks file. The file is written under a temporary name
+   * and then renamed into place, so a server that has the old file mapped keeps reading a
+   * consistent copy.
+   *
+   * @param places the places to write
+   * @param file   the file to create or replace
+   */
+  public static void write(List<Place> places, File file) throws IOException {
+    int count = places.size();
+    int[] latitudes = new int[count];
+    int[] longitudes = new int[count];
+    double[] gridLatitudes = new double[count];
+    double[] gridLongitudes = new double[count];
+    float[] unitVectors = new float[3 * count];
+    int[] nameOffsets = new int[count + 1];
+    ByteArrayOutputStream names = new ByteArrayOutputStream();
+
+    for (int i = 0; i < count; i++) {
+      Place place = places.get(i);
+      latitudes[i] = toFixedPoint(place.getLatitude());
+      longitudes[i] = toFixedPoint(place.getLongitude());
+      // Index the coordinates as they will be read back, not as they were given.
+      gridLatitudes[i] = fromFixedPoint(latitudes[i]);
+      gridLongitudes[i] = fromFixedPoint(longitudes[i]);
+      double latitudeRadians = Math.toRadians(gridLatitudes[i]);
+      double longitudeRadians = Math.toRadians(gridLongitudes[i]);
+      unitVectors[3 * i] = (float) (Math.cos(latitudeRadians) * Math.cos(longitudeRadians));
+      unitVectors[3 * i + 1] = (float) (Math.cos(latitudeRadians) * Math.sin(longitudeRadians));
+      unitVectors[3 * i + 2] = (float) Math.sin(latitudeRadians);
+
+      nameOffsets[i] = names.size();
+      byte[] name = place.getName().getBytes(Charsets.UTF_8);
+      names.write(name, 0, name.length);
+    }
+    nameOffsets[count] = names.size();
+    PlaceGrid grid = new PlaceGrid(gridLatitudes, gridLongitudes);
+
+    File temporaryFile = new File(file.getPath() + ".tmp");
+    DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(count);
+      out.writeInt(PlaceGrid.ROWS);
+      out.writeInt(PlaceGrid.COLUMNS);
+      out.writeInt(names.size());
+      writeInts(out, latitudes);
+      writeInts(out, longitudes);
+      for (float component : unitVectors) {
+        out.writeFloat(component);
+      }
+      writeInts(out, nameOffsets);
+      grid.write(out);
+      names.writeTo(out);
+    } finally {
+      out.close();
+    }
+
+    if (!temporaryFile.renameTo(file)) {
+      // Some platforms won't rename over an existing file.
+      if (!file.delete() || !temporaryFile.renameTo(file)) {
+        throw new IOException("Could not replace " + file + " with " + temporaryFile);
+      }
+    }
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  /**
+   * Maps a landmarks file into memory. Only the header is read; the place data stays in the
+   * page cache and is read in place by queries.
+   *
+   * @param file    the landmarks file to map
+   * @param version the version number to give the snapshot
+   * @throws IOException if the file could not be mapped or is not a valid landmarks file
+   */
+  static Landmarks map(File file, long version) throws IOException {
+    MappedByteBuffer buffer;
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = randomAccessFile.getChannel();
+      // The mapping stays valid after the channel is closed.
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      randomAccessFile.close();
+    }
+
+    if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+      throw new IOException(file + " is not a landmarks file");
+    }
+    if (buffer.getInt(4) != FORMAT_VERSION) {
+      throw new IOException(file + " has format version " + buffer.getInt(4) + ", expected "
+          + FORMAT_VERSION + "; regenerate it with LandmarksConverter");
+    }
+    int count = buffer.getInt(8);
+    if (buffer.getInt(12) != PlaceGrid.ROWS || buffer.getInt(16) != PlaceGrid.COLUMNS) {
+      throw new IOException(file + " was indexed with a different grid; regenerate it with "
+          + "LandmarksConverter");
+    }
+    int namesLength = buffer.getInt(20);
+    long expectedLength = HEADER_BYTES
+        + 4L * (count + count + 3L * count + (count + 1) + PlaceGrid.CELL_START_COUNT + count)
+        + namesLength;
+    if (count < 0 || namesLength < 0 || buffer.capacity() != expectedLength) {
+      throw new IOException(file + " is truncated or corrupt");
+    }
+
+    int position = HEADER_BYTES;
+    IntBuffer latitudes = intSection(buffer, position, count);
+    position += 4 * count;
+    IntBuffer longitudes = intSection(buffer, position, count);
+    position += 4 * count;
+    FloatBuffer unitVectors = section(buffer, position, 4 * 3 * count).asFloatBuffer();
+    position += 4 * 3 * count;
+    IntBuffer nameOffsets = intSection(buffer, position, count + 1);
+    position += 4 * (count + 1);
+    IntBuffer cellStarts = intSection(buffer, position, PlaceGrid.CELL_START_COUNT);
+    position += 4 * PlaceGrid.CELL_START_COUNT;
+    IntBuffer entries = intSection(buffer, position, count);
+    position += 4 * count;
+    ByteBuffer names = section(buffer, position, namesLength);
+
+    PlaceTable places =
+        new MappedPlaceTable(latitudes, longitudes, unitVectors, nameOffsets, names);
+    return new Landmarks(places, new PlaceGrid(cellStarts, entries), version);
+  }
+
+  private static ByteBuffer section(ByteBuffer buffer, int position, int length) {
+    ByteBuffer section = buffer.duplicate();
+    section.position(position);
+    section.limit(position + length);
+    return section.slice();
+  }
+
+  private static IntBuffer intSection(ByteBuffer buffer, int position, int count) {
+    return section(buffer, position, 4 * count).asIntBuffer();
+  }
+}
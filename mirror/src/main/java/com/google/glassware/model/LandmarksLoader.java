@@ -0,0 +1,172 @@
+package com.google.glassware.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds the process-wide {@link Landmarks} snapshot and reloads it in the background when the
+ * landmarks file changes.
+ * <p/>
+ * Snapshots are immutable. A reload reads the file on the loader thread and builds the new
+ * snapshot's index, in parallel for large files, while queries keep running against the current
+ * snapshot, then swaps the new one in atomically, so callers never block on a reload or see a
+ * half-built set. If a reload fails, the current snapshot stays in place.
+ */
+public class LandmarksLoader {
+
+  private static final Logger LOG = Logger.getLogger(LandmarksLoader.class.getSimpleName());
+
+  /**
+   * How often the landmarks file is checked for changes, in milliseconds.
+   */
+  private static final long DEFAULT_POLL_INTERVAL_MS = 10000;
+
+  private static final LandmarksLoader sShared =
+      new LandmarksLoader(null, DEFAULT_POLL_INTERVAL_MS);
+
+  /**
+   * The file to load, or null to look up {@link Landmarks#getDefaultFile()} on every check, so
+   * that a binary file converted after startup replaces the JSON one.
+   */
+  private final File mFile;
+  private final long mPollIntervalMs;
+  private final AtomicReference<Landmarks> mCurrent = new AtomicReference<Landmarks>();
+
+  /**
+   * The file the current snapshot was read from, and its modification time and length then.
+   */
+  private File mLoadedFile;
+  private long mLoadedLastModified;
+  private long mLoadedLength;
+
+  private ScheduledExecutorService mExecutor;
+
+  /**
+   * Gets the loader for the server's landmarks file.
+   */
+  public static LandmarksLoader getShared() {
+    return sShared;
+  }
+
+  /**
+   * Initializes a new loader for the specified landmarks file.
+   *
+   * @param file           the landmarks file to load, or null for the default file
+   * @param pollIntervalMs how often to check the file for changes, in milliseconds
+   */
+  public LandmarksLoader(File file, long pollIntervalMs) {
+    mFile = file;
+    mPollIntervalMs = pollIntervalMs;
+  }
+
+  /**
+   * Loads the initial snapshot, if it has not been loaded yet, and starts watching the file for
+   * changes.
+   */
+  public synchronized void start() {
+    if (mExecutor != null) {
+      return;
+    }
+    getLandmarks();
+
+    mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "landmarks-loader");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    mExecutor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        reloadIfChanged();
+      }
+    }, mPollIntervalMs, mPollIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops watching the file for changes. The current snapshot remains available.
+   */
+  public synchronized void stop() {
+    if (mExecutor != null) {
+      mExecutor.shutdownNow();
+      mExecutor = null;
+    }
+  }
+
+  /**
+   * Gets the current landmarks snapshot, loading it first if this is the first call. This
+   * function will never return null; if the file cannot be loaded, then an empty snapshot will
+   * be returned.
+   */
+  public Landmarks getLandmarks() {
+    Landmarks landmarks = mCurrent.get();
+    if (landmarks != null) {
+      return landmarks;
+    }
+    synchronized (this) {
+      if (mCurrent.get() == null && !reload()) {
+        mCurrent.set(new Landmarks(new ArrayList<Place>(), 0));
+      }
+      return mCurrent.get();
+    }
+  }
+
+  /**
+   * Reloads the snapshot if the file's modification time or length has changed since it was
+   * last read.
+   */
+  synchronized void reloadIfChanged() {
+    File file = getFile();
+    if (!file.equals(mLoadedFile) || file.lastModified() != mLoadedLastModified
+        || file.length() != mLoadedLength) {
+      reload();
+    }
+  }
+
+  /**
+   * Gets the file to load, resolving the default file if none was given.
+   */
+  private File getFile() {
+    return mFile != null ? mFile : Landmarks.getDefaultFile();
+  }
+
+  /**
+   * Reads the file into a new snapshot and swaps it in.
+   *
+   * @return true if the new snapshot was installed
+   */
+  private synchronized boolean reload() {
+    File file = getFile();
+    long lastModified = file.lastModified();
+    long length = file.length();
+    Landmarks previous = mCurrent.get();
+    long version = previous == null ? 1 : previous.getVersion() + 1;
+
+    try {
+      Landmarks landmarks = Landmarks.load(file, version);
+      mCurrent.set(landmarks);
+      LOG.info("Loaded " + landmarks.size() + " landmarks from " + file + " as version "
+          + version);
+      return true;
+    } catch (IOException e) {
+      LOG.log(Level.SEVERE, "Could not reload landmarks from " + file
+          + "; keeping the current snapshot", e);
+      return false;
+    } finally {
+      // Don't retry a broken file on every poll; wait for it to change again.
+      mLoadedFile = file;
+      mLoadedLastModified = lastModified;
+      mLoadedLength = length;
+    }
+  }
+}
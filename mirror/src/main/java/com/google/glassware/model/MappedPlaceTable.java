@@ -0,0 +1,95 @@
+package com.google.glassware.model;
+
+import com.google.common.base.Charsets;
+import com.google.glassware.util.MathUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * A {@link PlaceTable} that reads places in place from the sections of a memory-mapped
+ * landmarks file (see {@link LandmarksFile}). Coordinates are stored as fixed-point integers
+ * and names as UTF-8 bytes in a shared string table; a {@link Place} object is only created
+ * for the places a query actually returns.
+ */
+final class MappedPlaceTable implements PlaceTable {
+
+  private final int mSize;
+  private final IntBuffer mLatitudes;
+  private final IntBuffer mLongitudes;
+  private final FloatBuffer mUnitVectors;
+  private final IntBuffer mNameOffsets;
+  private final ByteBuffer mNames;
+
+  /**
+   * Initializes a table over the specified file sections.
+   *
+   * @param latitudes   the fixed-point latitude of each place
+   * @param longitudes  the fixed-point longitude of each place
+   * @param unitVectors the x, y and z components of each place's unit vector, interleaved
+   * @param nameOffsets the offset of each place's name in {@code names}, followed by the length
+   *                    of {@code names}
+   * @param names       the UTF-8 string table
+   */
+  MappedPlaceTable(IntBuffer latitudes, IntBuffer longitudes, FloatBuffer unitVectors,
+      IntBuffer nameOffsets, ByteBuffer names) {
+    mSize = latitudes.limit();
+    mLatitudes = latitudes;
+    mLongitudes = longitudes;
+    mUnitVectors = unitVectors;
+    mNameOffsets = nameOffsets;
+    mNames = names;
+  }
+
+  @Override
+  public int size() {
+    return mSize;
+  }
+
+  @Override
+  public double getLatitude(int index) {
+    return LandmarksFile.fromFixedPoint(mLatitudes.get(index));
+  }
+
+  @Override
+  public double getLongitude(int index) {
+    return LandmarksFile.fromFixedPoint(mLongitudes.get(index));
+  }
+
+  @Override
+  public Place getPlace(int index) {
+    return new Place(getLatitude(index), getLongitude(index), getName(index));
+  }
+
+  @Override
+  public float getDistance(RadiusQuery query, int index) {
+    return MathUtils.getDistance(query.latitude, query.longitude, getLatitude(index),
+        getLongitude(index));
+  }
+
+  @Override
+  public void collectWithin(RadiusQuery query, PlaceGrid grid, int start, int end,
+      IndexList hits) {
+    for (int offset = start; offset < end; offset++) {
+      int index = grid.getEntry(offset);
+      int vector = 3 * index;
+      double dot = query.x * mUnitVectors.get(vector) + query.y * mUnitVectors.get(vector + 1)
+          + query.z * mUnitVectors.get(vector + 2);
+      if (dot >= query.minFloatDot
+          && MathUtils.getDistance(query.latitude, query.longitude, getLatitude(index),
+              getLongitude(index)) <= query.radiusKm) {
+        hits.add(index);
+      }
+    }
+  }
+
+  private String getName(int index) {
+    int start = mNameOffsets.get(index);
+    byte[] bytes = new byte[mNameOffsets.get(index + 1) - start];
+    ByteBuffer names = mNames.duplicate();
+    names.position(start);
+    names.get(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,108 @@
+package com.google.glassware.model;
+
+/**
+ * A bounded max-heap of place indices ordered by distance, used to keep the {@code k} closest
+ * places seen so far without sorting every candidate. Ties on distance are broken by index so
+ * results are deterministic.
+ */
+final class NearestHeap {
+
+  private final int mCapacity;
+  private final int[] mIndices;
+  private final float[] mDistances;
+  private int mSize;
+
+  /**
+   * Initializes a heap that keeps at most {@code capacity} places.
+   */
+  NearestHeap(int capacity) {
+    mCapacity = capacity;
+    mIndices = new int[capacity];
+    mDistances = new float[capacity];
+  }
+
+  /**
+   * Offers a place to the heap. It is kept if the heap is not yet full or if it is closer than
+   * the farthest place in the heap, which is then dropped.
+   */
+  void offer(int index, float distance) {
+    if (mSize < mCapacity) {
+      mIndices[mSize] = index;
+      mDistances[mSize] = distance;
+      siftUp(mSize++);
+    } else if (mCapacity > 0 && isCloser(index, distance, 0)) {
+      mIndices[0] = index;
+      mDistances[0] = distance;
+      siftDown(0);
+    }
+  }
+
+  /**
+   * Returns true if the heap holds as many places as it can.
+   */
+  boolean isFull() {
+    return mSize == mCapacity;
+  }
+
+  /**
+   * Gets the distance of the farthest place in the heap. Only valid if the heap is not empty.
+   */
+  float getFarthestDistance() {
+    return mDistances[0];
+  }
+
+  /**
+   * Removes every place from the heap and returns their indices, closest first.
+   */
+  int[] drainClosestFirst() {
+    int[] sorted = new int[mSize];
+    while (mSize > 0) {
+      sorted[mSize - 1] = mIndices[0];
+      mSize--;
+      mIndices[0] = mIndices[mSize];
+      mDistances[0] = mDistances[mSize];
+      siftDown(0);
+    }
+    return sorted;
+  }
+
+  private boolean isCloser(int index, float distance, int slot) {
+    return distance < mDistances[slot] || (distance == mDistances[slot] && index < mIndices[slot]);
+  }
+
+  private void siftUp(int slot) {
+    while (slot > 0) {
+      int parent = (slot - 1) / 2;
+      if (!isCloser(mIndices[parent], mDistances[parent], slot)) {
+        return;
+      }
+      swap(slot, parent);
+      slot = parent;
+    }
+  }
+
+  private void siftDown(int slot) {
+    while (true) {
+      int farthest = slot;
+      for (int child = 2 * slot + 1; child <= 2 * slot + 2 && child < mSize; child++) {
+        if (isCloser(mIndices[farthest], mDistances[farthest], child)) {
+          farthest = child;
+        }
+      }
+      if (farthest == slot) {
+        return;
+      }
+      swap(slot, farthest);
+      slot = farthest;
+    }
+  }
+
+  private void swap(int a, int b) {
+    int index = mIndices[a];
+    mIndices[a] = mIndices[b];
+    mIndices[b] = index;
+    float distance = mDistances[a];
+    mDistances[a] = mDistances[b];
+    mDistances[b] = distance;
+  }
+}
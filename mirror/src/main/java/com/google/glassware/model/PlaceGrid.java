@@ -0,0 +1,313 @@
+package com.google.glassware.model;
+
+import com.google.glassware.util.MathUtils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed latitude/longitude cell grid over a set of places, used to narrow a radius query down
+ * to the places in the cells that the search circle can touch.
+ * <p/>
+ * Places are referred to by their index in the owning place list. The grid is stored in a
+ * compact "compressed rows" layout: {@code mCellStarts[cell]} is the offset in
+ * {@code mEntries} of the first place in that cell, and {@code mCellStarts[cell + 1]} is the
+ * offset just past the last one. Within a cell, places keep their original order. Both arrays
+ * are kept in {@link IntBuffer}s so that a grid can also be read in place from a memory-mapped
+ * landmarks file (see {@link LandmarksFile}).
+ */
+final class PlaceGrid {
+
+  /**
+   * The size of a grid cell, in degrees of latitude and longitude.
+   */
+  static final double CELL_SIZE_DEGREES = 1.0;
+
+  /**
+   * The number of rows (latitude bands) in the grid.
+   */
+  static final int ROWS = (int) (180 / CELL_SIZE_DEGREES);
+
+  /**
+   * The number of columns (longitude bands) in the grid.
+   */
+  static final int COLUMNS = (int) (360 / CELL_SIZE_DEGREES);
+
+  /**
+   * Extra room added to the search radius when picking cells, so that places whose distance
+   * rounds down onto the threshold are never left out of the candidate set.
+   */
+  private static final double RADIUS_SLACK = 1.01;
+
+  /**
+   * The number of entries in the cell start table.
+   */
+  static final int CELL_START_COUNT = ROWS * COLUMNS + 1;
+
+  /**
+   * The fewest places worth handing to another thread when building a grid; below this, the
+   * per-slice cell tables cost more than the work they share out.
+   */
+  private static final int MIN_PLACES_PER_SLICE = 50000;
+
+  private static final int BUILD_THREADS = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The threads that help build large grids. They are only started when a grid is built and
+   * exit once they have been idle for a while.
+   */
+  private static final ThreadPoolExecutor BUILD_EXECUTOR = newBuildExecutor();
+
+  private final IntBuffer mCellStarts;
+  private final IntBuffer mEntries;
+
+  /**
+   * Builds a grid over the places with the specified coordinates. Large sets are split into
+   * slices that are binned on several threads at once (see {@link #BUILD_EXECUTOR}).
+   *
+   * @param latitudes  the latitude of each place, in degrees
+   * @param longitudes the longitude of each place, in degrees
+   */
+  PlaceGrid(final double[] latitudes, final double[] longitudes) {
+    final int count = latitudes.length;
+    final int[] cells = new int[count];
+    final int[] entries = new int[count];
+    int sliceCount = Math.max(1, Math.min(BUILD_THREADS, count / MIN_PLACES_PER_SLICE));
+    final int[][] sliceCellCounts = new int[sliceCount][ROWS * COLUMNS];
+
+    // Each slice counts its own places per cell, so the slices share nothing while counting.
+    forEachSlice(count, sliceCount, new Slice() {
+      @Override
+      public void run(int slice, int start, int end) {
+        int[] cellCounts = sliceCellCounts[slice];
+        for (int i = start; i < end; i++) {
+          cells[i] = getCell(latitudes[i], longitudes[i]);
+          cellCounts[cells[i]]++;
+        }
+      }
+    });
+
+    // Turn the counts into each slice's first offset in each cell. Within a cell the slices
+    // come in order, so places keep their original order.
+    int[] cellStarts = new int[CELL_START_COUNT];
+    int offset = 0;
+    for (int cell = 0; cell < ROWS * COLUMNS; cell++) {
+      cellStarts[cell] = offset;
+      for (int[] cellCounts : sliceCellCounts) {
+        int cellCount = cellCounts[cell];
+        cellCounts[cell] = offset;
+        offset += cellCount;
+      }
+    }
+    cellStarts[ROWS * COLUMNS] = offset;
+
+    forEachSlice(count, sliceCount, new Slice() {
+      @Override
+      public void run(int slice, int start, int end) {
+        int[] next = sliceCellCounts[slice];
+        for (int i = start; i < end; i++) {
+          entries[next[cells[i]]++] = i;
+        }
+      }
+    });
+
+    mCellStarts = IntBuffer.wrap(cellStarts);
+    mEntries = IntBuffer.wrap(entries);
+  }
+
+  /**
+   * A share of the places being indexed.
+   */
+  private interface Slice {
+    void run(int slice, int start, int end);
+  }
+
+  /**
+   * Runs a task over each of {@code sliceCount} equal slices of the places, the first on the
+   * calling thread and the rest on {@link #BUILD_EXECUTOR}, and waits for them all.
+   */
+  private static void forEachSlice(final int count, final int sliceCount, final Slice task) {
+    List<Future<?>> others = new ArrayList<Future<?>>();
+    for (int slice = 1; slice < sliceCount; slice++) {
+      final int current = slice;
+      others.add(BUILD_EXECUTOR.submit(new Runnable() {
+        @Override
+        public void run() {
+          task.run(current, sliceStart(count, sliceCount, current),
+              sliceStart(count, sliceCount, current + 1));
+        }
+      }));
+    }
+    task.run(0, 0, sliceStart(count, sliceCount, 1));
+    boolean interrupted = false;
+    try {
+      for (Future<?> other : others) {
+        while (true) {
+          try {
+            other.get();
+            break;
+          } catch (InterruptedException e) {
+            // The slices write into arrays this thread is about to use, so they must finish.
+            interrupted = true;
+          } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not build the landmark index", e.getCause());
+          }
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static int sliceStart(int count, int sliceCount, int slice) {
+    return (int) ((long) count * slice / sliceCount);
+  }
+
+  private static ThreadPoolExecutor newBuildExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(BUILD_THREADS, BUILD_THREADS, 30,
+        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger mCount = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "landmarks-index-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Initializes a grid over tables that have already been built, such as the index section of a
+   * landmarks file.
+   *
+   * @param cellStarts the {@link #CELL_START_COUNT} cell start offsets
+   * @param entries    the place indices, grouped by cell
+   */
+  PlaceGrid(IntBuffer cellStarts, IntBuffer entries) {
+    mCellStarts = cellStarts;
+    mEntries = entries;
+  }
+
+  /**
+   * Writes the cell start table followed by the entry list.
+   */
+  void write(DataOutputStream out) throws IOException {
+    for (int i = 0; i < mCellStarts.limit(); i++) {
+      out.writeInt(mCellStarts.get(i));
+    }
+    for (int i = 0; i < mEntries.limit(); i++) {
+      out.writeInt(mEntries.get(i));
+    }
+  }
+
+  /**
+   * Gets the offset in the entry list of the first place in the specified cell.
+   */
+  int getCellStart(int cell) {
+    return mCellStarts.get(cell);
+  }
+
+  /**
+   * Gets the offset in the entry list just past the last place in the specified cell.
+   */
+  int getCellEnd(int cell) {
+    return mCellStarts.get(cell + 1);
+  }
+
+  /**
+   * Gets the index of the place stored at the specified offset in the entry list.
+   */
+  int getEntry(int offset) {
+    return mEntries.get(offset);
+  }
+
+  /**
+   * Gets the cell that contains the specified coordinates.
+   */
+  static int getCell(double latitude, double longitude) {
+    return getRow(latitude) * COLUMNS + getColumn(longitude);
+  }
+
+  private static int getRow(double latitude) {
+    int row = (int) Math.floor((latitude + 90) / CELL_SIZE_DEGREES);
+    return Math.max(0, Math.min(ROWS - 1, row));
+  }
+
+  private static int getColumn(double longitude) {
+    int column = (int) Math.floor((longitude + 180) / CELL_SIZE_DEGREES);
+    return MathUtils.mod(column, COLUMNS);
+  }
+
+  /**
+   * Computes the block of cells that covers every point within {@code radiusKm} of the
+   * specified coordinates. Windows that reach a pole cover all longitudes, and windows that
+   * cross the antimeridian wrap around to the other side of the grid.
+   */
+  static Window cover(double latitude, double longitude, double radiusKm) {
+    Window window = new Window();
+    double angle = radiusKm * RADIUS_SLACK / MathUtils.EARTH_RADIUS_KM;
+    double latitudeSpan = Math.toDegrees(angle);
+
+    window.minRow = getRow(latitude - latitudeSpan);
+    window.maxRow = getRow(latitude + latitudeSpan);
+
+    // The widest longitude extent of a spherical cap that does not contain a pole is
+    // asin(sin(r) / cos(lat)); if the cap does contain a pole, every longitude is in range.
+    double sinRatio = Math.sin(angle) / Math.cos(Math.toRadians(latitude));
+    if (angle >= Math.PI / 2 || latitude - latitudeSpan <= -90 || latitude + latitudeSpan >= 90
+        || sinRatio >= 1) {
+      window.minColumn = 0;
+      window.columnCount = COLUMNS;
+    } else {
+      double longitudeSpan = Math.toDegrees(Math.asin(sinRatio));
+      double normalized = MathUtils.mod(longitude + 180, 360.0) - 180;
+      int first = (int) Math.floor((normalized - longitudeSpan + 180) / CELL_SIZE_DEGREES);
+      int last = (int) Math.floor((normalized + longitudeSpan + 180) / CELL_SIZE_DEGREES);
+      window.minColumn = MathUtils.mod(first, COLUMNS);
+      window.columnCount = Math.min(COLUMNS, last - first + 1);
+    }
+    return window;
+  }
+
+  /**
+   * A block of grid cells: the rows from {@code minRow} to {@code maxRow} inclusive, and
+   * {@code columnCount} columns starting at {@code minColumn} and wrapping past the last column.
+   */
+  static final class Window {
+    int minRow;
+    int maxRow;
+    int minColumn;
+    int columnCount;
+
+    /**
+     * Gets the cell at the specified row and column offset within this window.
+     */
+    int getCell(int row, int columnOffset) {
+      return row * COLUMNS + (minColumn + columnOffset) % COLUMNS;
+    }
+
+    /**
+     * Returns true if the specified cell lies inside this window.
+     */
+    boolean contains(int cell) {
+      int row = cell / COLUMNS;
+      int columnOffset = MathUtils.mod(cell % COLUMNS - minColumn, COLUMNS);
+      return row >= minRow && row <= maxRow && columnOffset < columnCount;
+    }
+  }
+}
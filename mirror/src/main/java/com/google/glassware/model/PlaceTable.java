@@ -0,0 +1,42 @@
+package com.google.glassware.model;
+
+/**
+ * Read access to the coordinates and names of a set of places, by index. This lets
+ * {@link Landmarks} query places that live either on the heap or in a memory-mapped
+ * landmarks file.
+ */
+interface PlaceTable {
+
+  /**
+   * Gets the number of places in the table.
+   */
+  int size();
+
+  /**
+   * Gets the latitude of the place at the specified index, in degrees.
+   */
+  double getLatitude(int index);
+
+  /**
+   * Gets the longitude of the place at the specified index, in degrees.
+   */
+  double getLongitude(int index);
+
+  /**
+   * Gets the place at the specified index.
+   */
+  Place getPlace(int index);
+
+  /**
+   * Gets the distance in kilometers from the query point to the place at the specified index,
+   * computed the same way as the exact test in {@link #collectWithin}.
+   */
+  float getDistance(RadiusQuery query, int index);
+
+  /**
+   * Tests the places at grid entry offsets {@code start} (inclusive) to {@code end} (exclusive)
+   * against the query, and adds the index of each place within the query radius to
+   * {@code hits}.
+   */
+  void collectWithin(RadiusQuery query, PlaceGrid grid, int start, int end, IndexList hits);
+}
@@ -0,0 +1,68 @@
+package com.google.glassware.model;
+
+import com.google.glassware.util.MathUtils;
+
+/**
+ * A search point and radius, with the values derived from them computed once per query rather
+ * than once per candidate place.
+ * <p/>
+ * Besides the point's coordinates, a query holds the point as a 3D unit vector and the smallest
+ * dot product that a place's unit vector can have with it and still be within the radius. The
+ * dot product test is a cheap prefilter: it is deliberately a little loose, so that it never
+ * rejects a place the exact haversine test would accept, and only the places that pass it need
+ * the haversine test.
+ */
+final class RadiusQuery {
+
+  /**
+   * How much the prefilter's radius is widened, relative to the query radius. This is far more
+   * than the haversine result's rounding to {@code float}.
+   */
+  private static final double RADIUS_SLACK = 1e-6;
+
+  /**
+   * How much the prefilter threshold is lowered to cover the rounding error of the dot product
+   * and of the cosine. Near a dot product of 1, which is where small radii put the threshold,
+   * these errors are absolute, around 1e-16 each, so no widening of the radius can cover them.
+   */
+  private static final double DOT_SLACK = 1e-12;
+
+  /**
+   * How much further the prefilter threshold is lowered for unit vectors stored as
+   * {@code float}s, whose components are only accurate to about 6e-8.
+   */
+  private static final double FLOAT_DOT_SLACK = 1e-6;
+
+  final double latitude;
+  final double longitude;
+  final double cosLatitude;
+  final double radiusKm;
+  final double x;
+  final double y;
+  final double z;
+  final double minDot;
+  final double minFloatDot;
+
+  /**
+   * Initializes a query for the places within {@code radiusKm} of the specified coordinates.
+   *
+   * @param latitude  the latitude of the search point, in degrees
+   * @param longitude the longitude of the search point, in degrees
+   * @param radiusKm  the search radius, in kilometers
+   */
+  RadiusQuery(double latitude, double longitude, double radiusKm) {
+    this.latitude = latitude;
+    this.longitude = longitude;
+    double latitudeRadians = Math.toRadians(latitude);
+    double longitudeRadians = Math.toRadians(longitude);
+    this.cosLatitude = Math.cos(latitudeRadians);
+    this.radiusKm = radiusKm;
+    this.x = cosLatitude * Math.cos(longitudeRadians);
+    this.y = cosLatitude * Math.sin(longitudeRadians);
+    this.z = Math.sin(latitudeRadians);
+
+    double angle = radiusKm * (1 + RADIUS_SLACK) / MathUtils.EARTH_RADIUS_KM;
+    this.minDot = angle >= Math.PI ? -2 : Math.cos(angle) - DOT_SLACK;
+    this.minFloatDot = minDot - FLOAT_DOT_SLACK;
+  }
+}
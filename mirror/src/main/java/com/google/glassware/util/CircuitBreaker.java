@@ -0,0 +1,143 @@
+package com.google.glassware.util;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A circuit breaker, which stops calls to a failing service so that callers fail fast instead of
+ * each waiting on the failure.
+ * <p/>
+ * The breaker starts {@link State#CLOSED}, letting every call through. After
+ * {@code failureThreshold} failures in a row it opens, and refuses calls for {@code openMillis}.
+ * Then it goes {@link State#HALF_OPEN} and lets a single probe call through: if the probe
+ * succeeds the breaker closes again, and if it fails the breaker opens for another period.
+ */
+public class CircuitBreaker {
+  private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getSimpleName());
+
+  /**
+   * Whether a breaker is letting calls through.
+   */
+  public enum State {
+    /** Calls go through. */
+    CLOSED,
+    /** Calls are refused. */
+    OPEN,
+    /** One probe call is allowed to find out whether the service has recovered. */
+    HALF_OPEN
+  }
+
+  private final String mName;
+  private final int mFailureThreshold;
+  private final long mOpenMillis;
+
+  private State mState = State.CLOSED;
+  private int mConsecutiveFailures;
+  private long mOpenedAtMillis;
+  private boolean mProbeInFlight;
+
+  /**
+   * How many times the breaker has entered each state.
+   */
+  private final Map<State, AtomicLong> mTransitionCounts = new EnumMap<State, AtomicLong>(
+      State.class);
+
+  /**
+   * Initializes a closed breaker.
+   *
+   * @param name             what the breaker protects, for logging
+   * @param failureThreshold how many failures in a row open the breaker
+   * @param openMillis       how long the breaker stays open before it allows a probe
+   */
+  public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+    mName = name;
+    mFailureThreshold = failureThreshold;
+    mOpenMillis = openMillis;
+    for (State state : State.values()) {
+      mTransitionCounts.put(state, new AtomicLong());
+    }
+  }
+
+  /**
+   * Returns true if a call may go ahead. Every allowed call must be followed by
+   * {@link #recordSuccess}, {@link #recordFailure} or {@link #recordSkipped}.
+   */
+  public synchronized boolean allowRequest() {
+    switch (mState) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.currentTimeMillis() - mOpenedAtMillis < mOpenMillis) {
+          return false;
+        }
+        transition(State.HALF_OPEN);
+        mProbeInFlight = true;
+        return true;
+      default:
+        if (mProbeInFlight) {
+          return false;
+        }
+        mProbeInFlight = true;
+        return true;
+    }
+  }
+
+  /**
+   * Records that an allowed call succeeded, or failed in a way that says nothing about the
+   * service's health.
+   */
+  public synchronized void recordSuccess() {
+    mConsecutiveFailures = 0;
+    if (mState == State.HALF_OPEN) {
+      mProbeInFlight = false;
+      transition(State.CLOSED);
+    }
+  }
+
+  /**
+   * Records that an allowed call failed because the service is unhealthy.
+   */
+  public synchronized void recordFailure() {
+    mConsecutiveFailures++;
+    if (mState == State.HALF_OPEN
+        || (mState == State.CLOSED && mConsecutiveFailures >= mFailureThreshold)) {
+      mProbeInFlight = false;
+      mOpenedAtMillis = System.currentTimeMillis();
+      transition(State.OPEN);
+    }
+  }
+
+  /**
+   * Records that an allowed call tells nothing about the service, because it was never made
+   * after all or was turned away for reasons of its own, such as its user's rate limit. A probe
+   * that tells nothing lets the next call probe instead.
+   */
+  public synchronized void recordSkipped() {
+    if (mState == State.HALF_OPEN) {
+      mProbeInFlight = false;
+    }
+  }
+
+  public String getName() {
+    return mName;
+  }
+
+  public synchronized State getState() {
+    return mState;
+  }
+
+  /**
+   * Gets the number of times the breaker has moved into the specified state.
+   */
+  public long getTransitionCount(State state) {
+    return mTransitionCounts.get(state).get();
+  }
+
+  private void transition(State state) {
+    LOG.info("Circuit breaker " + mName + " is now " + state + " (was " + mState + ")");
+    mState = state;
+    mTransitionCounts.get(state).incrementAndGet();
+  }
+}
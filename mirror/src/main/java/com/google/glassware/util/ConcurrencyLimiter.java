@@ -0,0 +1,246 @@
+package com.google.glassware.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many calls to a service are in flight at once, adapting the limit to the service's
+ * latency with additive increase, multiplicative decrease (AIMD), the way TCP sizes its window.
+ * <p/>
+ * The limiter learns a baseline latency for each endpoint, which follows faster calls at once
+ * but slower ones only over minutes, so it stays near the endpoint's unloaded latency. Every call
+ * is compared with its endpoint's baseline, and the ratios are averaged over roughly the last ten
+ * calls; comparing each call with its own endpoint keeps a mix of fast and slow endpoints from
+ * looking like congestion. While the average ratio stays within {@code tolerance}, each call
+ * that completes while the limit is actually being used raises the limit by {@code 1 / limit},
+ * so about one per limit's worth of calls. When the ratio climbs past it, because calls are
+ * queueing at the service, or a call fails because the service is overloaded, the limit is cut
+ * by {@code backoffRatio}, at most once per round trip. The limit shrinks until calls stop
+ * queueing, instead of piling more calls on.
+ * <p/>
+ * Calls over the limit wait up to a deadline for a slot; at most {@code maxQueued} wait at once
+ * and the rest are refused immediately, which bounds how long any call waits.
+ */
+public class ConcurrencyLimiter {
+
+  /**
+   * The weight of each call in the recent average of latency ratios.
+   */
+  private static final double RATIO_WEIGHT = 0.1;
+
+  /**
+   * Roughly how long it takes a baseline to rise to a slower latency that persists.
+   */
+  private static final long BASELINE_RISE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+  /**
+   * An endpoint's baseline latency.
+   */
+  private static class Baseline {
+    double rttNanos;
+    long updatedNanos;
+  }
+
+  private final double mMinLimit;
+  private final double mMaxLimit;
+  private final double mTolerance;
+  private final double mBackoffRatio;
+  private final int mMaxQueued;
+
+  private final ReentrantLock mLock = new ReentrantLock();
+  private final Condition mSlotFree = mLock.newCondition();
+  private double mLimit;
+  private int mInFlight;
+  private int mQueued;
+  private final Map<String, Baseline> mBaselines = new HashMap<String, Baseline>();
+  private double mLatencyRatio = 1;
+  private long mRejectedCount;
+  private long mLastDecreaseNanos = System.nanoTime();
+
+  /**
+   * Initializes a limiter.
+   *
+   * @param initialLimit the number of calls allowed in flight to start with
+   * @param minLimit     the lowest the limit can go
+   * @param maxLimit     the highest the limit can go
+   * @param tolerance    how many times their baseline latency calls may take on average
+   *                     before the limit is cut
+   * @param backoffRatio what the limit is multiplied by when it is cut
+   * @param maxQueued    the most calls that may wait for a slot at once
+   */
+  public ConcurrencyLimiter(double initialLimit, double minLimit, double maxLimit,
+      double tolerance, double backoffRatio, int maxQueued) {
+    mMinLimit = minLimit;
+    mMaxLimit = maxLimit;
+    mTolerance = tolerance;
+    mBackoffRatio = backoffRatio;
+    mMaxQueued = maxQueued;
+    mLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+  }
+
+  /**
+   * Takes a slot for a call, waiting up to the specified time for one if the limit is reached.
+   * Every successful acquire must be followed by a {@link #release}.
+   *
+   * @return true if the call may go ahead, or false if it should be shed
+   */
+  public boolean acquire(long maxWaitMillis) throws InterruptedException {
+    mLock.lock();
+    try {
+      if (mInFlight < (int) mLimit) {
+        mInFlight++;
+        return true;
+      }
+      if (mQueued >= mMaxQueued || maxWaitMillis <= 0) {
+        mRejectedCount++;
+        return false;
+      }
+      mQueued++;
+      try {
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (mInFlight >= (int) mLimit) {
+          if (remainingNanos <= 0) {
+            mRejectedCount++;
+            return false;
+          }
+          remainingNanos = mSlotFree.awaitNanos(remainingNanos);
+        }
+        mInFlight++;
+        return true;
+      } finally {
+        mQueued--;
+      }
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Gives back a call's slot and adjusts the limit from how the call went.
+   *
+   * @param endpoint   what the call was to, such as {@code GET timeline}
+   * @param rttNanos   how long the call took, or a negative number if it shouldn't be used as a
+   *                   latency sample, such as a long upload
+   * @param overloaded whether the call failed in a way that shows the service is overloaded,
+   *                   such as a timeout or a 503
+   */
+  public void release(String endpoint, long rttNanos, boolean overloaded) {
+    mLock.lock();
+    try {
+      // Whether the limit was the constraint on this call; an idle limiter learns nothing.
+      boolean saturated = mInFlight >= mLimit / 2;
+      mInFlight--;
+      long now = System.nanoTime();
+      if (overloaded) {
+        decrease(now, Math.max(rttNanos, 0));
+      } else if (rttNanos >= 0) {
+        double ratio = updateBaseline(endpoint, rttNanos, now);
+        mLatencyRatio += (ratio - mLatencyRatio) * RATIO_WEIGHT;
+        if (mLatencyRatio > mTolerance) {
+          decrease(now, rttNanos);
+        } else if (saturated) {
+          mLimit = Math.min(mMaxLimit, mLimit + 1 / mLimit);
+        }
+      }
+      mSlotFree.signalAll();
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Gets the number of calls currently allowed in flight.
+   */
+  public int getLimit() {
+    mLock.lock();
+    try {
+      return (int) mLimit;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  public int getInFlight() {
+    mLock.lock();
+    try {
+      return mInFlight;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Gets the number of calls waiting for a slot.
+   */
+  public int getQueued() {
+    mLock.lock();
+    try {
+      return mQueued;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Gets the number of calls shed because no slot came free in time.
+   */
+  public long getRejectedCount() {
+    mLock.lock();
+    try {
+      return mRejectedCount;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Gets how many times their baseline latency recent calls have taken, on average.
+   */
+  public double getLatencyRatio() {
+    mLock.lock();
+    try {
+      return mLatencyRatio;
+    } finally {
+      mLock.unlock();
+    }
+  }
+
+  /**
+   * Compares a call's latency with its endpoint's baseline, then moves the baseline toward it.
+   *
+   * @return the call's latency divided by the baseline
+   */
+  private double updateBaseline(String endpoint, long rttNanos, long now) {
+    Baseline baseline = mBaselines.get(endpoint);
+    if (baseline == null) {
+      baseline = new Baseline();
+      baseline.rttNanos = rttNanos;
+      baseline.updatedNanos = now;
+      mBaselines.put(endpoint, baseline);
+    }
+    double ratio = rttNanos / Math.max(1, baseline.rttNanos);
+    if (rttNanos < baseline.rttNanos) {
+      baseline.rttNanos = rttNanos;
+    } else {
+      double weight = Math.min(1, (double) (now - baseline.updatedNanos) / BASELINE_RISE_NANOS);
+      baseline.rttNanos += (rttNanos - baseline.rttNanos) * weight;
+    }
+    baseline.updatedNanos = now;
+    return ratio;
+  }
+
+  /**
+   * Cuts the limit, unless it was already cut while this call was in flight: the calls that
+   * were in flight together all saw the same congestion, and it should only count once.
+   */
+  private void decrease(long now, long rttNanos) {
+    if (now - mLastDecreaseNanos < rttNanos) {
+      return;
+    }
+    mLastDecreaseNanos = now;
+    mLimit = Math.max(mMinLimit, mLimit * mBackoffRatio);
+  }
+}
@@ -0,0 +1,62 @@
+package com.google.glassware.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that fails once more than a fixed number of bytes have been read from it,
+ * rather than quietly truncating the data the way {@code ByteStreams.limit} does. Use it to
+ * guard parsers against request bodies that are far longer than any legitimate one.
+ */
+public class LimitedInputStream extends FilterInputStream {
+
+  private final long mLimit;
+  private long mCount;
+
+  /**
+   * Initializes a stream that reads at most {@code limit} bytes from {@code in}.
+   */
+  public LimitedInputStream(InputStream in, long limit) {
+    super(in);
+    mLimit = limit;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int value = super.read();
+    if (value >= 0) {
+      count(1);
+    }
+    return value;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    // Ask for one byte past the limit so that a body of exactly the limit still succeeds.
+    int read = super.read(buffer, offset, (int) Math.min(length, mLimit - mCount + 1));
+    if (read > 0) {
+      count(read);
+    }
+    return read;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = super.skip(Math.min(n, mLimit - mCount + 1));
+    count(skipped);
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private void count(long bytes) throws IOException {
+    mCount += bytes;
+    if (mCount > mLimit) {
+      throw new IOException("Input is longer than the limit of " + mLimit + " bytes");
+    }
+  }
+}
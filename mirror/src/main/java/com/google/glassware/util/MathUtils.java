@@ -13,7 +13,7 @@ public class MathUtils {
   /**
    * The Earth's radius, in kilometers.
    */
-  private static final double EARTH_RADIUS_KM = 6371.0;
+  public static final double EARTH_RADIUS_KM = 6371.0;
 
   /**
    * Calculates {@code a mod b} in a way that respects negative values (for example,
@@ -39,6 +39,18 @@ public class MathUtils {
     return (a % b + b) % b;
   }
 
+  /**
+   * Calculates {@code a mod b} in a way that respects negative values (for example,
+   * {@code mod(-1, 5) == 4}, rather than {@code -1}).
+   *
+   * @param a the dividend
+   * @param b the divisor
+   * @return {@code a mod b}
+   */
+  public static double mod(double a, double b) {
+    return (a % b + b) % b;
+  }
+
   /**
    * Converts the specified heading angle into an index between 0-15 that can be used to retrieve
    * the direction name for that heading (known as "boxing the compass", down to the half-wind
@@ -92,14 +104,32 @@ public class MathUtils {
    */
   public static float getDistance(double latitude1, double longitude1, double latitude2,
                                   double longitude2) {
+    return getDistance(latitude1, longitude1, Math.cos(Math.toRadians(latitude1)), latitude2,
+        longitude2, Math.cos(Math.toRadians(latitude2)));
+  }
+
+  /**
+   * Gets the great circle distance in kilometers between two geographical points, given the
+   * cosine of each point's latitude, for callers that have computed the cosines ahead of time.
+   * The result is bit for bit the same as that of
+   * {@link #getDistance(double, double, double, double)}.
+   *
+   * @param latitude1    the latitude of the first point, in degrees
+   * @param longitude1   the longitude of the first point, in degrees
+   * @param cosLatitude1 {@code Math.cos(Math.toRadians(latitude1))}
+   * @param latitude2    the latitude of the second point, in degrees
+   * @param longitude2   the longitude of the second point, in degrees
+   * @param cosLatitude2 {@code Math.cos(Math.toRadians(latitude2))}
+   * @return the distance, in kilometers, between the two points
+   */
+  public static float getDistance(double latitude1, double longitude1, double cosLatitude1,
+                                  double latitude2, double longitude2, double cosLatitude2) {
     double dLat = Math.toRadians(latitude2 - latitude1);
     double dLon = Math.toRadians(longitude2 - longitude1);
-    double lat1 = Math.toRadians(latitude1);
-    double lat2 = Math.toRadians(latitude2);
     double sqrtHaversineLat = Math.sin(dLat / 2);
     double sqrtHaversineLon = Math.sin(dLon / 2);
     double a = sqrtHaversineLat * sqrtHaversineLat + sqrtHaversineLon * sqrtHaversineLon
-        * Math.cos(lat1) * Math.cos(lat2);
+        * cosLatitude1 * cosLatitude2;
     double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
 
     return (float) (EARTH_RADIUS_KM * c);
@@ -0,0 +1,133 @@
+package com.google.glassware.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter. The bucket holds up to {@code capacity} tokens and refills at a
+ * steady rate; each permitted operation takes one token, so bursts of up to the capacity go
+ * through at once and the long-run rate never exceeds the refill rate.
+ * <p/>
+ * Tokens are refilled lazily from the elapsed time whenever the bucket is used, so an idle bucket
+ * costs nothing.
+ */
+public class TokenBucket {
+
+  private final double mCapacity;
+  private final double mTokensPerNano;
+  private double mTokens;
+  private long mLastRefillNanos;
+
+  /**
+   * Initializes a full bucket.
+   *
+   * @param capacity        the most tokens the bucket holds, which is the largest burst allowed
+   * @param tokensPerSecond how fast the bucket refills
+   */
+  public TokenBucket(double capacity, double tokensPerSecond) {
+    if (capacity < 1 || tokensPerSecond <= 0) {
+      throw new IllegalArgumentException("A bucket needs a capacity of at least 1 and a positive "
+          + "refill rate, not " + capacity + " and " + tokensPerSecond);
+    }
+    mCapacity = capacity;
+    mTokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+    mTokens = capacity;
+    mLastRefillNanos = System.nanoTime();
+  }
+
+  /**
+   * Takes a token if one is available right now.
+   *
+   * @return true if a token was taken
+   */
+  public synchronized boolean tryAcquire() {
+    refill(System.nanoTime());
+    if (mTokens >= 1) {
+      mTokens -= 1;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Takes a token, waiting for one until the deadline if none is available. Gives up at once if
+   * the bucket can't refill by the deadline.
+   *
+   * @param deadlineNanos the latest {@link System#nanoTime} to wait until
+   * @return true if a token was taken, or false if the deadline would pass first
+   */
+  public boolean acquire(long deadlineNanos) throws InterruptedException {
+    return acquire(1, deadlineNanos);
+  }
+
+  /**
+   * Takes several tokens at once, waiting for them until the deadline if too few are available.
+   * Gives up at once if the bucket can't refill by the deadline.
+   *
+   * @param count         how many tokens to take, at most the bucket's capacity
+   * @param deadlineNanos the latest {@link System#nanoTime} to wait until
+   * @return true if the tokens were taken, or false if the deadline would pass first
+   */
+  public boolean acquire(int count, long deadlineNanos) throws InterruptedException {
+    if (count > mCapacity) {
+      throw new IllegalArgumentException("Can't take " + count + " tokens from a bucket that "
+          + "holds " + mCapacity);
+    }
+    while (true) {
+      long waitNanos;
+      synchronized (this) {
+        long now = System.nanoTime();
+        refill(now);
+        if (mTokens >= count) {
+          mTokens -= count;
+          return true;
+        }
+        waitNanos = (long) Math.ceil((count - mTokens) / mTokensPerNano);
+        if (now + waitNanos - deadlineNanos > 0) {
+          return false;
+        }
+      }
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+  }
+
+  /**
+   * Puts back a token taken by a call that didn't happen after all.
+   */
+  public void release() {
+    release(1);
+  }
+
+  /**
+   * Puts back tokens taken for calls that didn't happen after all.
+   */
+  public synchronized void release(int count) {
+    mTokens = Math.min(mCapacity, mTokens + count);
+  }
+
+  /**
+   * Gets the number of tokens available right now, which may be fractional.
+   */
+  public synchronized double getAvailable() {
+    refill(System.nanoTime());
+    return mTokens;
+  }
+
+  public double getCapacity() {
+    return mCapacity;
+  }
+
+  /**
+   * Gets how fast the bucket refills, in tokens per second.
+   */
+  public double getRate() {
+    return mTokensPerNano * TimeUnit.SECONDS.toNanos(1);
+  }
+
+  private void refill(long now) {
+    long elapsed = now - mLastRefillNanos;
+    if (elapsed > 0) {
+      mTokens = Math.min(mCapacity, mTokens + elapsed * mTokensPerNano);
+      mLastRefillNanos = now;
+    }
+  }
+}
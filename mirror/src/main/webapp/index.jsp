@@ -15,11 +15,10 @@ limitations under the License.
 -->
 <%@ page import="com.google.api.client.auth.oauth2.Credential" %>
 <%@ page import="com.google.api.services.mirror.model.Contact" %>
-<%@ page import="com.google.glassware.MirrorClient" %>
+<%@ page import="com.google.glassware.DashboardService" %>
 <%@ page import="com.google.glassware.WebUtil" %>
 <%@ page import="java.util.List" %>
 <%@ page import="com.google.api.services.mirror.model.TimelineItem" %>
-<%@ page import="com.google.api.services.mirror.model.Subscription" %>
 <%@ page import="com.google.api.services.mirror.model.Attachment" %>
 <%@ page import="com.google.glassware.MainServlet" %>
 <%@ page import="org.apache.commons.lang3.StringEscapeUtils" %>
@@ -31,28 +30,16 @@ limitations under the License.
   String userId = com.google.glassware.AuthUtil.getUserId(request);
   String appBaseUrl = WebUtil.buildUrl(request, "/");
 
-  Credential credential = com.google.glassware.AuthUtil.getCredential(userId);
+  Credential credential = com.google.glassware.AuthUtil.getCredential(request);
 
-  Contact contact = MirrorClient.getContact(credential, MainServlet.CONTACT_ID);
+  DashboardService.Dashboard dashboard = DashboardService.getShared().get(userId, credential);
 
-  List<TimelineItem> timelineItems = MirrorClient.listItems(credential, 3L).getItems();
+  Contact contact = dashboard.getContact();
 
+  List<TimelineItem> timelineItems = dashboard.getTimelineItems();
 
-  List<Subscription> subscriptions = MirrorClient.listSubscriptions(credential).getItems();
-  boolean timelineSubscriptionExists = false;
-  boolean locationSubscriptionExists = false;
-
-
-  if (subscriptions != null) {
-    for (Subscription subscription : subscriptions) {
-      if (subscription.getId().equals("timeline")) {
-        timelineSubscriptionExists = true;
-      }
-      if (subscription.getId().equals("locations")) {
-        locationSubscriptionExists = true;
-      }
-    }
-  }
+  boolean timelineSubscriptionExists = dashboard.isSubscribed("timeline");
+  boolean locationSubscriptionExists = dashboard.isSubscribed("locations");
 
 %>
 <html>
@@ -109,7 +96,7 @@ limitations under the License.
                 <%
                 if (timelineItem.getAttachments() != null) {
                   for (Attachment attachment : timelineItem.getAttachments()) {
-                    if (MirrorClient.getAttachmentContentType(credential, timelineItem.getId(), attachment.getId()).startsWith("")) { %>
+                    if (attachment.getContentType().startsWith("image")) { %>
                 <img src="<%= appBaseUrl + "attachmentproxy?attachment=" +
                   attachment.getId() + "&timelineItem=" + timelineItem.getId() %>">
                 <%  } else { %>
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.auth.oauth2.Credential;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks {@link ListableMemoryCredentialStore}, including listing users while others are stored
+ * and deleted.
+ */
+public class ListableMemoryCredentialStoreTest {
+
+  @Test
+  public void storesLoadsAndDeletes() {
+    ListableMemoryCredentialStore store = new ListableMemoryCredentialStore();
+    store.store("alice", TestCredentials.newCredential("alice", 1));
+    store.store("alice", TestCredentials.newCredential("alice", 2));
+    store.store("bob", TestCredentials.newCredential("bob", 1));
+    store.delete("bob", null);
+
+    Credential loaded = TestCredentials.newCredential();
+    assertTrue(store.load("alice", loaded));
+    assertEquals("access-alice-2", loaded.getAccessToken());
+    assertEquals("refresh-alice", loaded.getRefreshToken());
+    assertFalse(store.load("bob", TestCredentials.newCredential()));
+    assertEquals(1, store.size());
+  }
+
+  @Test
+  public void listsUsersPresentThroughoutConcurrentChanges() throws Exception {
+    final ListableMemoryCredentialStore store = new ListableMemoryCredentialStore();
+    final Set<String> stable = new HashSet<String>();
+    for (int i = 0; i < 1000; i++) {
+      store.store("stable" + i, TestCredentials.newCredential("stable" + i, 1));
+      stable.add("stable" + i);
+    }
+
+    final CountDownLatch done = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    List<Thread> writers = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      final int thread = t;
+      Thread writer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; done.getCount() > 0; i++) {
+              String userId = "churn" + thread + "-" + (i % 500);
+              if (i % 3 == 0) {
+                store.delete(userId, null);
+              } else {
+                store.store(userId, TestCredentials.newCredential(userId, i));
+              }
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      });
+      writer.start();
+      writers.add(writer);
+    }
+
+    try {
+      for (int round = 0; round < 50; round++) {
+        assertTrue(new HashSet<String>(store.listAllUsers()).containsAll(stable));
+        Set<String> iterated = new HashSet<String>();
+        for (Iterator<String> users = store.iterateUsers(); users.hasNext(); ) {
+          iterated.add(users.next());
+        }
+        assertTrue(iterated.containsAll(stable));
+      }
+    } finally {
+      done.countDown();
+      for (Thread writer : writers) {
+        writer.join();
+      }
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.auth.oauth2.Credential;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Checks that {@link LogCredentialStore} recovers what was stored through it: by replaying its
+ * log, after compacting the log into snapshots, and after the end of the log is torn by a crash.
+ */
+public class LogCredentialStoreTest {
+
+  /**
+   * Large enough that nothing is compacted but the snapshot taken at startup.
+   */
+  private static final long NO_COMPACTION_BYTES = 1L << 40;
+
+  @Rule
+  public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void replaysStoresAndDeletes() throws Exception {
+    File directory = mFolder.newFolder();
+    LogCredentialStore store = new LogCredentialStore(directory, NO_COMPACTION_BYTES);
+    for (int i = 0; i < 100; i++) {
+      store.store("user" + i, TestCredentials.newCredential("user" + i, 1));
+    }
+    store.store("user7", TestCredentials.newCredential("user7", 2));
+    store.delete("user8", null);
+    Credential noExpiry = TestCredentials.newCredential("user9", 1);
+    noExpiry.setExpirationTimeMilliseconds(null);
+    store.store("user9", noExpiry);
+    store.close();
+
+    LogCredentialStore reopened = new LogCredentialStore(directory, NO_COMPACTION_BYTES);
+    try {
+      assertEquals(99, reopened.size());
+      assertStored(reopened, "user0", 1);
+      assertStored(reopened, "user7", 2);
+      assertFalse(reopened.load("user8", TestCredentials.newCredential()));
+      Credential loaded = TestCredentials.newCredential();
+      assertTrue(reopened.load("user9", loaded));
+      assertEquals(null, loaded.getExpirationTimeMilliseconds());
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void compactionKeepsEveryCredential() throws Exception {
+    File directory = mFolder.newFolder();
+    // Small enough that the log is compacted many times over.
+    LogCredentialStore store = new LogCredentialStore(directory, 4096);
+    for (int version = 1; version <= 5; version++) {
+      for (int i = 0; i < 500; i++) {
+        store.store("user" + i, TestCredentials.newCredential("user" + i, version));
+      }
+    }
+    for (int i = 0; i < 500; i += 2) {
+      store.delete("user" + i, null);
+    }
+    store.close();
+
+    String[] files = directory.list();
+    Arrays.sort(files);
+    assertTrue("A snapshot was written: " + Arrays.toString(files),
+        files[files.length - 1].startsWith("snapshot-"));
+    assertTrue("Compacted logs were deleted: " + Arrays.toString(files), files.length < 10);
+
+    LogCredentialStore reopened = new LogCredentialStore(directory, 4096);
+    try {
+      assertEquals(250, reopened.size());
+      for (int i = 0; i < 500; i++) {
+        if (i % 2 == 0) {
+          assertFalse(reopened.load("user" + i, TestCredentials.newCredential()));
+        } else {
+          assertStored(reopened, "user" + i, 5);
+        }
+      }
+    } finally {
+      reopened.close();
+    }
+  }
+
+  @Test
+  public void ignoresTornEndOfLog() throws Exception {
+    File directory = mFolder.newFolder();
+    LogCredentialStore store = new LogCredentialStore(directory, NO_COMPACTION_BYTES);
+    store.store("first", TestCredentials.newCredential("first", 1));
+    store.store("second", TestCredentials.newCredential("second", 1));
+    store.close();
+
+    // The snapshot taken at startup runs alongside the stores and may already hold both, so
+    // drop it to make recovery depend on the log alone.
+    for (File file : directory.listFiles()) {
+      if (file.getName().startsWith("snapshot-")) {
+        assertTrue(file.delete());
+      }
+    }
+    // Cut the last record short and append garbage, as a crash in the middle of a write would.
+    File log = newestFile(directory, "log-");
+    RandomAccessFile file = new RandomAccessFile(log, "rw");
+    try {
+      file.setLength(file.length() - 5);
+    } finally {
+      file.close();
+    }
+    FileOutputStream out = new FileOutputStream(log, true);
+    try {
+      out.write(new byte[] {1, 2, 3});
+    } finally {
+      out.close();
+    }
+
+    LogCredentialStore reopened = new LogCredentialStore(directory, NO_COMPACTION_BYTES);
+    try {
+      assertEquals(1, reopened.size());
+      assertStored(reopened, "first", 1);
+      // The reopened store keeps working after the damaged record.
+      reopened.store("third", TestCredentials.newCredential("third", 1));
+    } finally {
+      reopened.close();
+    }
+    LogCredentialStore again = new LogCredentialStore(directory, NO_COMPACTION_BYTES);
+    try {
+      assertEquals(2, again.size());
+      assertStored(again, "third", 1);
+    } finally {
+      again.close();
+    }
+  }
+
+  private static void assertStored(LogCredentialStore store, String userId, int version) {
+    Credential expected = TestCredentials.newCredential(userId, version);
+    Credential loaded = TestCredentials.newCredential();
+    assertTrue(userId + " is stored", store.load(userId, loaded));
+    assertEquals(expected.getAccessToken(), loaded.getAccessToken());
+    assertEquals(expected.getRefreshToken(), loaded.getRefreshToken());
+    assertEquals(expected.getExpirationTimeMilliseconds(),
+        loaded.getExpirationTimeMilliseconds());
+  }
+
+  private static File newestFile(File directory, String prefix) {
+    String[] files = directory.list();
+    Arrays.sort(files);
+    for (int i = files.length - 1; i >= 0; i--) {
+      if (files[i].startsWith(prefix)) {
+        return new File(directory, files[i]);
+      }
+    }
+    throw new AssertionError("No " + prefix + " file in " + Arrays.toString(files));
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.glassware;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.ClientParametersAuthentication;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+
+/**
+ * Builds credentials for credential store tests.
+ */
+final class TestCredentials {
+
+  private TestCredentials() {
+  }
+
+  /**
+   * Creates an empty credential to load into.
+   */
+  static Credential newCredential() {
+    return new Credential.Builder(BearerToken.authorizationHeaderAccessMethod())
+        .setTransport(new NetHttpTransport())
+        .setJsonFactory(new JacksonFactory())
+        .setTokenServerEncodedUrl("https://accounts.google.com/o/oauth2/token")
+        .setClientAuthentication(new ClientParametersAuthentication("client", "secret"))
+        .build();
+  }
+
+  /**
+   * Creates a credential whose tokens are derived from the user ID and a version number.
+   */
+  static Credential newCredential(String userId, int version) {
+    Credential credential = newCredential();
+    credential.setAccessToken("access-" + userId + "-" + version);
+    credential.setRefreshToken("refresh-" + userId);
+    credential.setExpirationTimeMilliseconds(1000000000000L + version);
+    return credential;
+  }
+}
@@ -0,0 +1,133 @@
+package com.google.glassware.model;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.glassware.util.MathUtils;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that the grid-indexed queries of {@link Landmarks}, over both the heap and the
+ * memory-mapped tables, return exactly what a linear haversine scan returns, including for
+ * places at the edge of the radius and near the antimeridian and the poles.
+ */
+public class LandmarksTest {
+
+  @ClassRule
+  public static final TemporaryFolder FOLDER = new TemporaryFolder();
+
+  private static List<Place> sPlaces;
+  private static List<Place> sMappedPlaces;
+  private static Landmarks sHeapLandmarks;
+  private static Landmarks sMappedLandmarks;
+
+  @BeforeClass
+  public static void createLandmarks() throws Exception {
+    Random random = new Random(7);
+    ArrayList<Place> places = new ArrayList<Place>();
+    TestPlaces.addScattered(places, random, 20000);
+    for (double[] query : TestPlaces.QUERIES) {
+      TestPlaces.addAround(places, random, query[0], query[1], 150, 300);
+      TestPlaces.addBoundaryPairs(places, random, query[0], query[1], Landmarks.MAX_DISTANCE_KM,
+          200);
+    }
+    sPlaces = places;
+    sHeapLandmarks = new Landmarks(places, 1);
+    File file = new File(FOLDER.getRoot(), "landmarks.bin");
+    LandmarksFile.write(places, file);
+    sMappedPlaces = TestPlaces.roundedForFile(places);
+    sMappedLandmarks = LandmarksFile.map(file, 1);
+  }
+
+  @Test
+  public void nearbyMatchesScanOnHeap() {
+    checkNearby(sHeapLandmarks, sPlaces);
+  }
+
+  @Test
+  public void nearbyMatchesScanWhenMapped() {
+    checkNearby(sMappedLandmarks, sMappedPlaces);
+  }
+
+  @Test
+  public void nearestMatchesScanOnHeap() {
+    checkNearest(sHeapLandmarks, sPlaces);
+  }
+
+  @Test
+  public void nearestMatchesScanWhenMapped() {
+    checkNearest(sMappedLandmarks, sMappedPlaces);
+  }
+
+  /**
+   * Checks a snapshot against a scan of the places it holds.
+   */
+  private static void checkNearby(Landmarks landmarks, List<Place> places) {
+    for (double[] query : TestPlaces.QUERIES) {
+      List<Place> expected =
+          TestPlaces.scanWithin(places, query[0], query[1], Landmarks.MAX_DISTANCE_KM);
+      assertEquals("Places near " + query[0] + "," + query[1], names(expected),
+          names(landmarks.getNearbyLandmarks(query[0], query[1])));
+    }
+  }
+
+  private static void checkNearest(Landmarks landmarks, List<Place> places) {
+    for (double[] query : TestPlaces.QUERIES) {
+      for (int k : new int[] {1, 5, 50, 1000}) {
+        for (double maxKm : new double[] {1, 20, Landmarks.MAX_DISTANCE_KM}) {
+          assertEquals("Nearest " + k + " within " + maxKm + " km of " + query[0] + ","
+              + query[1], names(scanNearest(places, query[0], query[1], k, maxKm)),
+              names(landmarks.getNearestLandmarks(query[0], query[1], k, maxKm)));
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the nearest places by sorting every place by distance, breaking ties by position.
+   */
+  private static List<Place> scanNearest(final List<Place> places, final double latitude,
+      final double longitude, int k, double maxKm) {
+    List<Integer> indexes = new ArrayList<Integer>();
+    for (int i = 0; i < places.size(); i++) {
+      if (distance(places.get(i), latitude, longitude) <= maxKm) {
+        indexes.add(i);
+      }
+    }
+    Collections.sort(indexes, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        int byDistance = Float.compare(distance(places.get(a), latitude, longitude),
+            distance(places.get(b), latitude, longitude));
+        return byDistance != 0 ? byDistance : a.compareTo(b);
+      }
+    });
+    List<Place> nearest = new ArrayList<Place>();
+    for (int i = 0; i < Math.min(k, indexes.size()); i++) {
+      nearest.add(places.get(indexes.get(i)));
+    }
+    return nearest;
+  }
+
+  private static float distance(Place place, double latitude, double longitude) {
+    return MathUtils.getDistance(latitude, longitude, place.getLatitude(), place.getLongitude());
+  }
+
+  private static List<String> names(List<Place> places) {
+    List<String> names = new ArrayList<String>(places.size());
+    for (Place place : places) {
+      names.add(place.getName());
+    }
+    return names;
+  }
+}
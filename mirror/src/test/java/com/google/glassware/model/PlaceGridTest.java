@@ -0,0 +1,70 @@
+package com.google.glassware.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.glassware.util.MathUtils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks the grid index: that its parallel build files every place in its cell in order, and
+ * that the cells covering a search circle hold every place within it.
+ */
+public class PlaceGridTest {
+
+  @Test
+  public void buildFilesEveryPlaceInItsCellInOrder() {
+    // Enough places that the build is split into slices when there are several processors.
+    Random random = new Random(17);
+    List<Place> places = new ArrayList<Place>();
+    TestPlaces.addScattered(places, random, 150000);
+    for (double[] query : TestPlaces.QUERIES) {
+      TestPlaces.addAround(places, random, query[0], query[1], 300, 5000);
+    }
+    ColumnarPlaceTable table = new ColumnarPlaceTable(places);
+    PlaceGrid grid = table.buildGrid();
+
+    boolean[] seen = new boolean[places.size()];
+    for (int cell = 0; cell < PlaceGrid.ROWS * PlaceGrid.COLUMNS; cell++) {
+      int previous = -1;
+      for (int offset = grid.getCellStart(cell); offset < grid.getCellEnd(cell); offset++) {
+        int index = grid.getEntry(offset);
+        Place place = places.get(index);
+        assertEquals(cell, PlaceGrid.getCell(place.getLatitude(), place.getLongitude()));
+        assertTrue("Entries of a cell keep the order of the places", index > previous);
+        assertTrue("Place " + index + " is filed once", !seen[index]);
+        seen[index] = true;
+        previous = index;
+      }
+    }
+    for (int i = 0; i < seen.length; i++) {
+      assertTrue("Place " + i + " is filed", seen[i]);
+    }
+  }
+
+  @Test
+  public void coverHoldsEveryPlaceWithinTheRadius() {
+    Random random = new Random(19);
+    for (double radiusKm : new double[] {0.001, 1, 50, 100, 500, 3000}) {
+      for (double[] query : TestPlaces.QUERIES) {
+        List<Place> places = new ArrayList<Place>();
+        TestPlaces.addAround(places, random, query[0], query[1], radiusKm, 2000);
+        TestPlaces.addBoundaryPairs(places, random, query[0], query[1], radiusKm, 200);
+
+        PlaceGrid.Window window = PlaceGrid.cover(query[0], query[1], radiusKm);
+        for (Place place : places) {
+          if (MathUtils.getDistance(query[0], query[1], place.getLatitude(),
+              place.getLongitude()) <= radiusKm) {
+            assertTrue(place.getName() + " is within " + radiusKm + " km but not covered",
+                window.contains(PlaceGrid.getCell(place.getLatitude(), place.getLongitude())));
+          }
+        }
+      }
+    }
+  }
+}
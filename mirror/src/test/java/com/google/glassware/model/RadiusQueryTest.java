@@ -0,0 +1,85 @@
+package com.google.glassware.model;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Checks that the dot product prefilter never changes which places are within a radius: the
+ * heap and mapped tables must find exactly the places a haversine scan finds, from a meter up to
+ * half the globe, including places on either side of the edge of each radius.
+ */
+public class RadiusQueryTest {
+
+  private static final double[] RADII_KM = {0.001, 0.01, 1, 10, 100, 1000, 10000, 20000};
+
+  @Rule
+  public final TemporaryFolder mFolder = new TemporaryFolder();
+
+  @Test
+  public void heapTableMatchesScan() {
+    Random random = new Random(11);
+    for (double radiusKm : RADII_KM) {
+      for (double[] query : TestPlaces.QUERIES) {
+        List<Place> places = placesAround(random, query, radiusKm);
+        ColumnarPlaceTable table = new ColumnarPlaceTable(places);
+        IndexList hits = new IndexList();
+        table.collectWithin(new RadiusQuery(query[0], query[1], radiusKm), table.buildGrid(), 0,
+            table.size(), hits);
+        hits.sort();
+        List<Place> found = new ArrayList<Place>();
+        for (int i = 0; i < hits.size(); i++) {
+          found.add(places.get(hits.get(i)));
+        }
+        assertEquals(radiusKm + " km around " + query[0] + "," + query[1],
+            names(TestPlaces.scanWithin(places, query[0], query[1], radiusKm)), names(found));
+      }
+    }
+  }
+
+  @Test
+  public void mappedTableMatchesScan() throws Exception {
+    Random random = new Random(13);
+    for (double radiusKm : RADII_KM) {
+      for (double[] query : TestPlaces.QUERIES) {
+        List<Place> places = placesAround(random, query, radiusKm);
+        File file = mFolder.newFile();
+        LandmarksFile.write(places, file);
+        Landmarks landmarks = LandmarksFile.map(file, 1);
+        // A nearest query with room for every place finds everything within the radius.
+        assertEquals(radiusKm + " km around " + query[0] + "," + query[1],
+            names(TestPlaces.scanWithin(TestPlaces.roundedForFile(places), query[0], query[1],
+                radiusKm)),
+            names(landmarks.getNearestLandmarks(query[0], query[1], places.size(), radiusKm)));
+      }
+    }
+  }
+
+  private static List<Place> placesAround(Random random, double[] query, double radiusKm) {
+    List<Place> places = new ArrayList<Place>();
+    TestPlaces.addScattered(places, random, 500);
+    TestPlaces.addAround(places, random, query[0], query[1], radiusKm * 1.5, 500);
+    TestPlaces.addBoundaryPairs(places, random, query[0], query[1], radiusKm, 100);
+    return places;
+  }
+
+  /**
+   * Gets the names of places, sorted, since nearest queries return them by distance.
+   */
+  private static Set<String> names(List<Place> places) {
+    Set<String> names = new TreeSet<String>();
+    for (Place place : places) {
+      names.add(place.getName());
+    }
+    return names;
+  }
+}
@@ -0,0 +1,134 @@
+package com.google.glassware.model;
+
+import com.google.glassware.util.MathUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds sets of places for landmark tests, including places placed right at the edge of a search
+ * radius, where rounding decides whether they are in it.
+ */
+final class TestPlaces {
+
+  /**
+   * Search points that cover the awkward parts of the grid: both sides of the antimeridian, both
+   * poles and points close to them, as well as ordinary places.
+   */
+  static final double[][] QUERIES = {
+      {-20.5168, 178.6608},
+      {0, 179.99},
+      {10, -179.95},
+      {-65, 180},
+      {89.5, 0},
+      {90, 0},
+      {-89.2, 120},
+      {-90, 45},
+      {45.5, 7.3},
+      {0, 0},
+  };
+
+  private TestPlaces() {
+  }
+
+  /**
+   * Adds places scattered over the whole globe.
+   */
+  static void addScattered(List<Place> places, Random random, int count) {
+    for (int i = 0; i < count; i++) {
+      places.add(place(Math.toDegrees(Math.asin(2 * random.nextDouble() - 1)),
+          360 * random.nextDouble() - 180, "Scattered " + i));
+    }
+  }
+
+  /**
+   * Adds places within a distance of a point.
+   */
+  static void addAround(List<Place> places, Random random, double latitude, double longitude,
+      double maxKm, int count) {
+    for (int i = 0; i < count; i++) {
+      places.add(destination(latitude, longitude, 360 * random.nextDouble(),
+          maxKm * random.nextDouble(), "Around " + latitude + "," + longitude + " " + i));
+    }
+  }
+
+  /**
+   * Adds pairs of places along random bearings from a point: the last place whose baseline
+   * haversine distance, as a {@code float}, is within the radius, and the first one past it.
+   */
+  static void addBoundaryPairs(List<Place> places, Random random, double latitude,
+      double longitude, double radiusKm, int pairs) {
+    for (int i = 0; i < pairs; i++) {
+      double bearing = 360 * random.nextDouble();
+      String name = "Boundary " + latitude + "," + longitude + " " + i;
+      double inside = radiusKm * 0.9999;
+      double outside = radiusKm * 1.0001;
+      for (int step = 0; step < 64; step++) {
+        double middle = (inside + outside) / 2;
+        Place place = destination(latitude, longitude, bearing, middle, name);
+        if (MathUtils.getDistance(latitude, longitude, place.getLatitude(), place.getLongitude())
+            <= radiusKm) {
+          inside = middle;
+        } else {
+          outside = middle;
+        }
+      }
+      places.add(destination(latitude, longitude, bearing, inside, name + " inside"));
+      places.add(destination(latitude, longitude, bearing, outside, name + " outside"));
+    }
+  }
+
+  /**
+   * Gets the place reached by travelling a distance along a great circle from a point.
+   */
+  static Place destination(double latitude, double longitude, double bearing, double distanceKm,
+      String name) {
+    double lat = Math.toRadians(latitude);
+    double angle = distanceKm / MathUtils.EARTH_RADIUS_KM;
+    double theta = Math.toRadians(bearing);
+    double lat2 = Math.asin(Math.sin(lat) * Math.cos(angle)
+        + Math.cos(lat) * Math.sin(angle) * Math.cos(theta));
+    double lon2 = Math.toRadians(longitude) + Math.atan2(
+        Math.sin(theta) * Math.sin(angle) * Math.cos(lat),
+        Math.cos(angle) - Math.sin(lat) * Math.sin(lat2));
+    return place(Math.toDegrees(lat2), Math.toDegrees(lon2), name);
+  }
+
+  /**
+   * Creates a place with its longitude wrapped into [-180, 180).
+   */
+  static Place place(double latitude, double longitude, String name) {
+    return new Place(latitude, MathUtils.mod(longitude + 180, 360) - 180, name);
+  }
+
+  /**
+   * Gets copies of places with their coordinates rounded as the binary landmarks format stores
+   * them, which is what a mapped table returns.
+   */
+  static List<Place> roundedForFile(List<Place> places) {
+    List<Place> rounded = new ArrayList<Place>(places.size());
+    for (Place place : places) {
+      rounded.add(new Place(
+          LandmarksFile.fromFixedPoint(LandmarksFile.toFixedPoint(place.getLatitude())),
+          LandmarksFile.fromFixedPoint(LandmarksFile.toFixedPoint(place.getLongitude())),
+          place.getName()));
+    }
+    return rounded;
+  }
+
+  /**
+   * Gets the places within a radius of a point by testing every place, in their original order.
+   */
+  static List<Place> scanWithin(List<Place> places, double latitude, double longitude,
+      double radiusKm) {
+    List<Place> within = new ArrayList<Place>();
+    for (Place place : places) {
+      if (MathUtils.getDistance(latitude, longitude, place.getLatitude(), place.getLongitude())
+          <= radiusKm) {
+        within.add(place);
+      }
+    }
+    return within;
+  }
+}